@@ -0,0 +1,91 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.EncData;
+
+/**
+ * Compares per-record AES-GCM encryption using a freshly obtained Cipher for
+ * every record (Cipher.getInstance() + init()) against AesGcmEncrypter, which
+ * re-uses a cached, per-thread Cipher and only re-initializes the IV.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesGcmCipherBenchmark {
+
+    @Param({"100", "300", "1024", "16384"})
+    int recordSize;
+
+    private SecretKey key;
+    private AesGcmEncrypter encrypter;
+    private byte[] plaintext;
+    private byte[] iv;
+    private EncData encData;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException, GeneralSecurityException {
+        key = EncUtils.generateAesKey(256);
+        encrypter = new AesGcmEncrypter(key);
+        plaintext = EncUtils.createRandom(recordSize);
+        iv = EncUtils.createRandom(AesGcmEncrypter.IV_SIZE);
+        encData = encrypter.encrypt(plaintext);
+    }
+
+    /**
+     * The per-record path prior to cipher caching.
+     */
+    @Benchmark
+    public byte[] encryptNewCipherPerRecord() throws GeneralSecurityException {
+        // a new IV per call, as is required for GCM
+        iv[0]++;
+        Cipher cipher = Cipher.getInstance(EncUtils.AES256_GCM_NOPADDING, "SunJCE");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(AesGcmEncrypter.KEY_SIZE, iv));
+        return cipher.doFinal(plaintext);
+    }
+
+    @Benchmark
+    public EncData encryptCachedCipher() throws GeneralSecurityException {
+        return encrypter.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] decryptNewCipherPerRecord() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(EncUtils.AES256_GCM_NOPADDING, "SunJCE");
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(AesGcmEncrypter.KEY_SIZE, encData.getIv()));
+        return cipher.doFinal(encData.getCiphertext());
+    }
+
+    @Benchmark
+    public byte[] decryptCachedCipher() throws GeneralSecurityException {
+        return encrypter.decrypt(encData);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.CipherSuiteManager;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+
+/**
+ * Compares the encryption throughput of the cipher suites available on the
+ * classpath. Which suite is fastest depends on the CPU: AES-GCM relies on
+ * AES and carry-less multiplication instructions, ChaCha20-Poly1305 does not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherSuiteBenchmark {
+
+    @Param({"AesGcmV1", "ChaCha20Poly1305V1"})
+    String suite;
+
+    @Param({"100", "1024", "16384"})
+    int recordSize;
+
+    private EncrypterDecrypter encrypter;
+    private ByteBuffer plaintext;
+    private ByteBuffer ciphertext;
+    private ByteBuffer encrypted;
+    private ByteBuffer decrypted;
+    private byte[] iv;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        encrypter = CipherSuiteManager.getInstance().getCipherSuite(suite)
+                .createEncrypterDecrypter(EncUtils.generateAesKey(256));
+        plaintext = ByteBuffer.wrap(EncUtils.createRandom(recordSize));
+        ciphertext = ByteBuffer.allocate(encrypter.getCiphertextSize(recordSize));
+        iv = encrypter.createIv();
+        encrypted = ByteBuffer.allocate(encrypter.getCiphertextSize(recordSize));
+        encrypter.encrypt(plaintext.duplicate(), iv, encrypted);
+        encrypted.flip();
+        decrypted = ByteBuffer.allocate(recordSize);
+    }
+
+    @Benchmark
+    public int encrypt() throws GeneralSecurityException {
+        plaintext.rewind();
+        ciphertext.clear();
+        return encrypter.encrypt(plaintext, encrypter.createIv(), ciphertext);
+    }
+
+    @Benchmark
+    public int decrypt() throws GeneralSecurityException {
+        decrypted.clear();
+        return encrypter.decrypt(encrypted.duplicate(), iv, decrypted);
+    }
+}
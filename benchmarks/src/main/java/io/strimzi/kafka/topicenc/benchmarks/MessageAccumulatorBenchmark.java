@@ -0,0 +1,118 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Compares the proxy's framing of Kafka messages received in fragments, as
+ * a large fetch response is, by MessageAccumulator and by the accumulator it
+ * replaced, which copied each fragment into a growing buffer and copied the
+ * remainder again whenever a message completed. The fragments hold several
+ * messages, the last of which spans into the next fragment.
+ *
+ * Run with the GC profiler to compare allocation per operation:
+ * java -jar target/benchmarks-*-fat.jar MessageAccumulatorBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageAccumulatorBenchmark {
+
+    @Param({"1024", "4194304"})
+    int messageSize;
+
+    @Param({"16384", "65536"})
+    int fragmentSize;
+
+    @Param({"4"})
+    int numMessages;
+
+    private List<Buffer> fragments;
+
+    @Setup
+    public void setup() {
+        Buffer stream = Buffer.buffer();
+        for (int i = 0; i < numMessages; i++) {
+            stream.appendInt(messageSize - 4).appendBytes(EncUtils.createRandom(messageSize - 4));
+        }
+        fragments = new ArrayList<>();
+        for (int pos = 0; pos < stream.length(); pos += fragmentSize) {
+            fragments.add(stream.getBuffer(pos, Math.min(pos + fragmentSize, stream.length())));
+        }
+    }
+
+    @Benchmark
+    public int accumulate() {
+        MessageAccumulator acc = new MessageAccumulator();
+        int n = 0;
+        for (Buffer fragment : fragments) {
+            acc.append(fragment);
+            n += acc.take().size();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int accumulateCopying() {
+        CopyingAccumulator acc = new CopyingAccumulator();
+        int n = 0;
+        for (Buffer fragment : fragments) {
+            acc.append(fragment);
+            n += acc.take().size();
+        }
+        return n;
+    }
+
+    /**
+     * The accumulator replaced by MessageAccumulator.
+     */
+    static class CopyingAccumulator {
+
+        private Buffer buffer = Buffer.buffer(0);
+
+        void append(Buffer fragment) {
+            buffer.appendBuffer(fragment);
+        }
+
+        List<Buffer> take() {
+            int pos = 0;
+            int remaining = buffer.length();
+            List<Buffer> result = new ArrayList<>();
+            while (remaining >= 4) {
+                int nextMsgLen = buffer.getInt(pos) + 4;
+                if (nextMsgLen > remaining) {
+                    break;
+                }
+                result.add(buffer.slice(pos, pos + nextMsgLen));
+                remaining -= nextMsgLen;
+                pos += nextMsgLen;
+            }
+            buffer = pos == buffer.length() ? Buffer.buffer(0) : buffer.getBuffer(pos, buffer.length());
+            return result;
+        }
+    }
+}
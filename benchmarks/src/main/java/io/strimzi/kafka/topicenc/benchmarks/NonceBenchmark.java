@@ -0,0 +1,84 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
+import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.RandomNonceGenerator;
+
+/**
+ * Compares 16-byte random IVs drawn from a shared SecureRandom against 12-byte
+ * counter-based nonces. State is shared by all benchmark threads, as an
+ * encrypter is shared by all connections producing to a topic, so the
+ * benchmarks also show contention. Vary the thread count with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class NonceBenchmark {
+
+    @Param({"100", "1024"})
+    int recordSize;
+
+    private RandomNonceGenerator randomNonces;
+    private CounterNonceGenerator counterNonces;
+    private AesGcmEncrypter randomNonceEncrypter;
+    private AesGcmEncrypter counterNonceEncrypter;
+    private byte[] plaintext;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        SecretKey key = EncUtils.generateAesKey(256);
+        randomNonces = new RandomNonceGenerator(16);
+        counterNonces = new CounterNonceGenerator(Long.MAX_VALUE);
+        randomNonceEncrypter = new AesGcmEncrypter(key, new RandomNonceGenerator(16));
+        counterNonceEncrypter = new AesGcmEncrypter(key, new CounterNonceGenerator(Long.MAX_VALUE));
+        plaintext = EncUtils.createRandom(recordSize);
+    }
+
+    @Benchmark
+    public byte[] randomNonce() {
+        return randomNonces.next();
+    }
+
+    @Benchmark
+    public byte[] counterNonce() throws GeneralSecurityException {
+        return counterNonces.next();
+    }
+
+    @Benchmark
+    public EncData encryptRandomNonce() throws GeneralSecurityException {
+        return randomNonceEncrypter.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public EncData encryptCounterNonce() throws GeneralSecurityException {
+        return counterNonceEncrypter.encrypt(plaintext);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.strimzi.kafka.topicenc.EncryptionModule;
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+
+/**
+ * Measures the latency of encrypting a single large produce request, of many
+ * partitions, with partitions processed sequentially or in parallel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelEncryptionBenchmark {
+
+    private static final int NUM_PARTITIONS = 32;
+    private static final int RECORDS_PER_PARTITION = 1000;
+    private static final int RECORD_SIZE = 300;
+
+    @Param({"1", "4"})
+    int parallelism;
+
+    private EncryptionModule encMod;
+    private List<MemoryRecords> partitionRecords;
+
+    @Setup
+    public void setup() throws Exception {
+        encMod = new EncryptionModule(new TestPolicyRepository(), parallelism);
+        partitionRecords = new ArrayList<>();
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            SimpleRecord[] records = new SimpleRecord[RECORDS_PER_PARTITION];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = new SimpleRecord(EncUtils.createRandom(RECORD_SIZE));
+            }
+            partitionRecords.add(MemoryRecords.withRecords(CompressionType.NONE, records));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        encMod.close();
+    }
+
+    @Benchmark
+    public int encryptRequest() throws Exception {
+        // encryption replaces the records of a partition, so build the request anew
+        List<PartitionProduceData> partitions = new ArrayList<>(NUM_PARTITIONS);
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            partitions.add(new PartitionProduceData()
+                    .setIndex(p)
+                    .setRecords(partitionRecords.get(p)));
+        }
+        TopicProduceData topicData = new TopicProduceData()
+                .setName("benchmark")
+                .setPartitionData(partitions);
+        return encMod.encrypt(Collections.singletonList(topicData));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.bouncycastle;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.GCMSIVBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
+import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.enc.NonceGenerator;
+
+/**
+ * An Encrypter/Decrypter for AES-GCM-SIV (RFC 8452), which is resistant to
+ * nonce misuse: a repeated nonce reveals only whether two plaintexts are
+ * equal, rather than compromising the key. The JDK does not provide
+ * AES-GCM-SIV, so the Bouncy Castle implementation is used.
+ */
+public class AesGcmSivEncrypter implements EncrypterDecrypter {
+
+    public static final int NONCE_SIZE = 12; // bytes
+    public static final int TAG_SIZE = 16; // bytes
+
+    private final KeyParameter key;
+    private final NonceGenerator nonces;
+    // Bouncy Castle ciphers are not thread-safe
+    private final ThreadLocal<GCMSIVBlockCipher> ciphers = ThreadLocal.withInitial(GCMSIVBlockCipher::new);
+
+    public AesGcmSivEncrypter(SecretKey key) throws InvalidKeyException {
+        this(key, new CounterNonceGenerator());
+    }
+
+    public AesGcmSivEncrypter(SecretKey key, NonceGenerator nonces) throws InvalidKeyException {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null || (encoded.length != 16 && encoded.length != 32)) {
+            throw new InvalidKeyException("AES-GCM-SIV requires a 128-bit or 256-bit key.");
+        }
+        if (nonces.getNonceSize() != NONCE_SIZE) {
+            throw new IllegalArgumentException("AES-GCM-SIV requires a 96-bit nonce.");
+        }
+        this.key = new KeyParameter(encoded);
+        this.nonces = nonces;
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return encrypt(plaintext, createIv());
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[getCiphertextSize(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), iv, ByteBuffer.wrap(ciphertext));
+        return new EncData(iv, ciphertext);
+    }
+
+    @Override
+    public byte[] decrypt(EncData encData) throws GeneralSecurityException {
+        ByteBuffer ciphertext = encData.getCiphertextBuffer();
+        byte[] plaintext = new byte[getPlaintextSize(ciphertext.remaining())];
+        decrypt(ciphertext, encData.getIv(), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    @Override
+    public byte[] createIv() throws GeneralSecurityException {
+        return nonces.next();
+    }
+
+    @Override
+    public int getIvSize() {
+        return NONCE_SIZE;
+    }
+
+    @Override
+    public int getCiphertextSize(int plaintextLen) {
+        return plaintextLen + TAG_SIZE;
+    }
+
+    @Override
+    public int getPlaintextSize(int ciphertextLen) {
+        return Math.max(0, ciphertextLen - TAG_SIZE);
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plaintext, byte[] iv, ByteBuffer ciphertext)
+            throws GeneralSecurityException {
+        return process(true, plaintext, iv, ciphertext);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer ciphertext, byte[] iv, ByteBuffer plaintext)
+            throws GeneralSecurityException {
+        if (ciphertext.remaining() < TAG_SIZE) {
+            throw new GeneralSecurityException("Ciphertext shorter than authentication tag.");
+        }
+        return process(false, ciphertext, iv, plaintext);
+    }
+
+    private int process(boolean encrypt, ByteBuffer in, byte[] iv, ByteBuffer out)
+            throws GeneralSecurityException {
+        if (iv == null || iv.length != NONCE_SIZE) {
+            throw new GeneralSecurityException("AES-GCM-SIV requires a 96-bit nonce.");
+        }
+        GCMSIVBlockCipher cipher = ciphers.get();
+        cipher.init(encrypt, new AEADParameters(key, TAG_SIZE * Byte.SIZE, iv));
+
+        // the Bouncy Castle API operates on arrays
+        int inLen = in.remaining();
+        int outLen = cipher.getOutputSize(inLen);
+        if (out.remaining() < outLen) {
+            throw new GeneralSecurityException("Output buffer too small.");
+        }
+        byte[] inBuf;
+        int inOffset;
+        if (in.hasArray()) {
+            inBuf = in.array();
+            inOffset = in.arrayOffset() + in.position();
+        } else {
+            inBuf = new byte[inLen];
+            in.duplicate().get(inBuf);
+            inOffset = 0;
+        }
+        boolean direct = !out.hasArray();
+        byte[] outBuf = direct ? new byte[outLen] : out.array();
+        int outOffset = direct ? 0 : out.arrayOffset() + out.position();
+        try {
+            int n = cipher.processBytes(inBuf, inOffset, inLen, outBuf, outOffset);
+            n += cipher.doFinal(outBuf, outOffset + n);
+            in.position(in.limit());
+            if (direct) {
+                out.put(outBuf, 0, n);
+            } else {
+                out.position(out.position() + n);
+            }
+            return n;
+        } catch (InvalidCipherTextException e) {
+            AEADBadTagException ex = new AEADBadTagException(e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.bouncycastle;
+
+import java.security.InvalidKeyException;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.ser.AeadV2SerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
+
+/**
+ * AES-GCM-SIV with serialization version 3, written in the compact version 2
+ * layout.
+ */
+public class AesGcmSivV1CipherSuite implements CipherSuite {
+
+    public static final String NAME = "AesGcmSivV1";
+    public static final short SERIALIZATION_VERSION = 3;
+
+    private final EncSerDer serDer = new AeadV2SerDer(SERIALIZATION_VERSION,
+            AesGcmSivEncrypter.NONCE_SIZE);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public EncSerDer getSerDer() {
+        return serDer;
+    }
+
+    @Override
+    public EncrypterDecrypter createEncrypterDecrypter(SecretKey key) throws InvalidKeyException {
+        return new AesGcmSivEncrypter(key);
+    }
+}
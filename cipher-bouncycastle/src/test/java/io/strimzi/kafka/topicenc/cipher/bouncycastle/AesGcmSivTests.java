@@ -0,0 +1,80 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.bouncycastle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+
+import javax.crypto.SecretKey;
+
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.CipherSuiteManager;
+import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+
+/**
+ * Testing of the AES-GCM-SIV cipher suite.
+ */
+public class AesGcmSivTests {
+
+    private static final String TEST_MSG = "abcdefghijklmnopqrstuvwxyz0123456789!@#$%^&*()_-=+[]{}";
+
+    /**
+     * Known answer from RFC 8452, appendix C.1.
+     */
+    @Test
+    public void knownAnswerTest() throws Exception {
+        HexFormat hex = HexFormat.of();
+        SecretKey key = EncUtils.createAesSecretKey(hex.parseHex("01000000000000000000000000000000"));
+        byte[] nonce = hex.parseHex("030000000000000000000000");
+        byte[] plaintext = hex.parseHex("0100000000000000");
+        byte[] expected = hex.parseHex("b5d839330ac7b786578782fff6013b815b287c22493a364c");
+
+        AesGcmSivEncrypter enc = new AesGcmSivEncrypter(key);
+        EncData encData = enc.encrypt(plaintext, nonce);
+        assertArrayEquals(expected, encData.getCiphertext());
+        assertArrayEquals(plaintext, enc.decrypt(encData));
+    }
+
+    /**
+     * The suite is discovered through the SPI and round-trips data through
+     * heap and direct buffers.
+     */
+    @Test
+    public void cipherSuiteTest() throws Exception {
+        CipherSuite suite = CipherSuiteManager.getInstance().getCipherSuite(AesGcmSivV1CipherSuite.NAME);
+        assertEquals(suite, CipherSuiteManager.getInstance()
+                .getCipherSuite(AesGcmSivV1CipherSuite.SERIALIZATION_VERSION));
+        EncrypterDecrypter enc = suite.createEncrypterDecrypter(EncUtils.generateAesKey(256));
+
+        byte[] testMsg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        byte[] iv = enc.createIv();
+        ByteBuffer ciphertext = ByteBuffer.allocateDirect(enc.getCiphertextSize(testMsg.length));
+        enc.encrypt(ByteBuffer.wrap(testMsg), iv, ciphertext);
+        ciphertext.flip();
+
+        byte[] serialized = suite.getSerDer().serialize(new EncData(iv, ciphertext));
+        EncData deserialized = suite.getSerDer().deserialize(serialized);
+        assertArrayEquals(testMsg, enc.decrypt(deserialized));
+
+        byte[] tampered = deserialized.getCiphertext();
+        tampered[0] ^= 1;
+        try {
+            enc.decrypt(new EncData(iv, tampered));
+            fail("Tampered ciphertext was decrypted.");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
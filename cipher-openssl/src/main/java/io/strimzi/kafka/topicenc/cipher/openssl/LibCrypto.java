@@ -0,0 +1,222 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.openssl;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * Bindings of the EVP cipher functions of the system libcrypto, OpenSSL 1.1
+ * or 3, through the Foreign Function and Memory API. The functions called for
+ * each record are linked as critical, so they may be passed heap segments
+ * directly and are called without a thread state transition; they neither
+ * block nor call back into Java.
+ */
+final class LibCrypto {
+
+    static final int EVP_CTRL_GCM_SET_IVLEN = 0x9;
+    static final int EVP_CTRL_GCM_GET_TAG = 0x10;
+    static final int EVP_CTRL_GCM_SET_TAG = 0x11;
+
+    private static final String[] LIBRARY_NAMES = {
+        "libcrypto.so.3", "libcrypto.so.1.1", "libcrypto.so", "libcrypto.3.dylib", "libcrypto.dylib"
+    };
+
+    private static final LibCrypto INSTANCE;
+    private static final Throwable LOAD_ERROR;
+
+    static {
+        LibCrypto instance = null;
+        Throwable error = null;
+        try {
+            instance = new LibCrypto(lookupLibrary());
+        } catch (Throwable e) {
+            error = e;
+        }
+        INSTANCE = instance;
+        LOAD_ERROR = error;
+    }
+
+    private final MethodHandle cipherCtxNew;
+    private final MethodHandle cipherCtxFree;
+    private final MethodHandle cipherInit;
+    private final MethodHandle cipherUpdate;
+    private final MethodHandle cipherFinal;
+    private final MethodHandle cipherCtxCtrl;
+    private final MemorySegment aes128Gcm;
+    private final MemorySegment aes192Gcm;
+    private final MemorySegment aes256Gcm;
+
+    private LibCrypto(SymbolLookup lib) throws Throwable {
+        Linker linker = Linker.nativeLinker();
+        Linker.Option critical = Linker.Option.critical(true);
+        // EVP_CIPHER_CTX *EVP_CIPHER_CTX_new(void)
+        cipherCtxNew = linker.downcallHandle(find(lib, "EVP_CIPHER_CTX_new"),
+                FunctionDescriptor.of(ADDRESS));
+        // void EVP_CIPHER_CTX_free(EVP_CIPHER_CTX *ctx)
+        cipherCtxFree = linker.downcallHandle(find(lib, "EVP_CIPHER_CTX_free"),
+                FunctionDescriptor.ofVoid(ADDRESS));
+        // int EVP_CipherInit_ex(EVP_CIPHER_CTX *ctx, const EVP_CIPHER *type, ENGINE *impl,
+        //         const unsigned char *key, const unsigned char *iv, int enc)
+        cipherInit = linker.downcallHandle(find(lib, "EVP_CipherInit_ex"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, JAVA_INT),
+                critical);
+        // int EVP_CipherUpdate(EVP_CIPHER_CTX *ctx, unsigned char *out, int *outl,
+        //         const unsigned char *in, int inl)
+        cipherUpdate = linker.downcallHandle(find(lib, "EVP_CipherUpdate"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, JAVA_INT),
+                critical);
+        // int EVP_CipherFinal_ex(EVP_CIPHER_CTX *ctx, unsigned char *outm, int *outl)
+        cipherFinal = linker.downcallHandle(find(lib, "EVP_CipherFinal_ex"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS),
+                critical);
+        // int EVP_CIPHER_CTX_ctrl(EVP_CIPHER_CTX *ctx, int type, int arg, void *ptr)
+        cipherCtxCtrl = linker.downcallHandle(find(lib, "EVP_CIPHER_CTX_ctrl"),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS),
+                critical);
+        // const EVP_CIPHER *EVP_aes_256_gcm(void), and the other key sizes
+        FunctionDescriptor cipherDesc = FunctionDescriptor.of(ADDRESS);
+        aes128Gcm = (MemorySegment) linker.downcallHandle(find(lib, "EVP_aes_128_gcm"), cipherDesc)
+                .invokeExact();
+        aes192Gcm = (MemorySegment) linker.downcallHandle(find(lib, "EVP_aes_192_gcm"), cipherDesc)
+                .invokeExact();
+        aes256Gcm = (MemorySegment) linker.downcallHandle(find(lib, "EVP_aes_256_gcm"), cipherDesc)
+                .invokeExact();
+    }
+
+    private static SymbolLookup lookupLibrary() {
+        IllegalArgumentException error = null;
+        for (String name : LIBRARY_NAMES) {
+            try {
+                return SymbolLookup.libraryLookup(name, Arena.global());
+            } catch (IllegalArgumentException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    private static MemorySegment find(SymbolLookup lib, String name) {
+        return lib.find(name).orElseThrow(() -> new UnsatisfiedLinkError("libcrypto symbol not found: " + name));
+    }
+
+    /**
+     * Returns the bindings, or null if libcrypto could not be loaded.
+     */
+    static LibCrypto getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the reason libcrypto could not be loaded, or null if it was.
+     */
+    static Throwable getLoadError() {
+        return LOAD_ERROR;
+    }
+
+    /**
+     * Returns the AES GCM cipher for keys of the given length in bytes.
+     */
+    MemorySegment aesGcm(int keyLength) throws InvalidKeyException {
+        return switch (keyLength) {
+            case 16 -> aes128Gcm;
+            case 24 -> aes192Gcm;
+            case 32 -> aes256Gcm;
+            default -> throw new InvalidKeyException("Invalid AES key length: " + keyLength);
+        };
+    }
+
+    MemorySegment newContext() throws GeneralSecurityException {
+        MemorySegment ctx;
+        try {
+            ctx = (MemorySegment) cipherCtxNew.invokeExact();
+        } catch (Throwable e) {
+            throw new GeneralSecurityException("EVP_CIPHER_CTX_new failed", e);
+        }
+        if (ctx.equals(MemorySegment.NULL)) {
+            throw new GeneralSecurityException("EVP_CIPHER_CTX_new failed");
+        }
+        return ctx;
+    }
+
+    void freeContext(MemorySegment ctx) {
+        try {
+            cipherCtxFree.invokeExact(ctx);
+        } catch (Throwable e) {
+            throw new IllegalStateException("EVP_CIPHER_CTX_free failed", e);
+        }
+    }
+
+    /**
+     * EVP_CipherInit_ex(). A NULL cipher or key retains that of the context.
+     */
+    void init(MemorySegment ctx, MemorySegment cipher, MemorySegment key, MemorySegment iv, int enc)
+            throws GeneralSecurityException {
+        int ret;
+        try {
+            ret = (int) cipherInit.invokeExact(ctx, cipher, MemorySegment.NULL, key, iv, enc);
+        } catch (Throwable e) {
+            throw new GeneralSecurityException("EVP_CipherInit_ex failed", e);
+        }
+        check(ret, "EVP_CipherInit_ex");
+    }
+
+    /**
+     * EVP_CipherUpdate(), returning the number of bytes written.
+     */
+    int update(MemorySegment ctx, MemorySegment out, MemorySegment outLen, MemorySegment in, int inLen)
+            throws GeneralSecurityException {
+        int ret;
+        try {
+            ret = (int) cipherUpdate.invokeExact(ctx, out, outLen, in, inLen);
+        } catch (Throwable e) {
+            throw new GeneralSecurityException("EVP_CipherUpdate failed", e);
+        }
+        check(ret, "EVP_CipherUpdate");
+        return outLen.get(JAVA_INT, 0);
+    }
+
+    /**
+     * EVP_CipherFinal_ex(), returning the number of bytes written, or -1 if
+     * authentication of the ciphertext failed.
+     */
+    int doFinal(MemorySegment ctx, MemorySegment out, MemorySegment outLen) throws GeneralSecurityException {
+        int ret;
+        try {
+            ret = (int) cipherFinal.invokeExact(ctx, out, outLen);
+        } catch (Throwable e) {
+            throw new GeneralSecurityException("EVP_CipherFinal_ex failed", e);
+        }
+        return ret == 1 ? outLen.get(JAVA_INT, 0) : -1;
+    }
+
+    /**
+     * EVP_CIPHER_CTX_ctrl().
+     */
+    void ctrl(MemorySegment ctx, int type, int arg, MemorySegment ptr) throws GeneralSecurityException {
+        int ret;
+        try {
+            ret = (int) cipherCtxCtrl.invokeExact(ctx, type, arg, ptr);
+        } catch (Throwable e) {
+            throw new GeneralSecurityException("EVP_CIPHER_CTX_ctrl failed", e);
+        }
+        check(ret, "EVP_CIPHER_CTX_ctrl");
+    }
+
+    private static void check(int ret, String function) throws GeneralSecurityException {
+        if (ret != 1) {
+            throw new GeneralSecurityException(function + " failed");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.openssl;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.enc.NonceGenerator;
+
+/**
+ * An Encrypter/Decrypter for AES GCM calling the EVP functions of the system
+ * libcrypto. Buffers are passed to libcrypto as memory segments, without
+ * copying, whether heap or direct. Each thread has its own cipher context for
+ * the key, initialized with the key once, so each record only sets the IV.
+ * The data is interchangeable with that of AesGcmEncrypter, which provides
+ * segmented encryption for this key.
+ */
+public class OpenSslAesGcmEncrypter implements EncrypterDecrypter {
+
+    public static final int TAG_SIZE = AesGcmEncrypter.TAG_SIZE;
+
+    private static final int DEFAULT_IV_SIZE = 12;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final LibCrypto lib;
+    private final SecretKey key;
+    private final MemorySegment cipher;
+    private final byte[] keyBytes;
+    private final NonceGenerator nonces;
+    private final ThreadLocal<CipherContext> contexts = new ThreadLocal<>();
+    private volatile EncrypterDecrypter segmented;
+
+    /**
+     * @param lib    the libcrypto bindings
+     * @param key    the key, whose material must be accessible
+     * @param nonces the nonce generator, used with this key only
+     * @throws InvalidKeyException if the key material is not accessible
+     */
+    OpenSslAesGcmEncrypter(LibCrypto lib, SecretKey key, NonceGenerator nonces) throws InvalidKeyException {
+        this.lib = lib;
+        this.key = key;
+        this.nonces = nonces;
+        this.keyBytes = key.getEncoded();
+        if (keyBytes == null) {
+            throw new InvalidKeyException("Key material is not accessible");
+        }
+        this.cipher = lib.aesGcm(keyBytes.length);
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return encrypt(plaintext, createIv());
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[getCiphertextSize(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), iv, ByteBuffer.wrap(ciphertext));
+        return new EncData(iv, ciphertext);
+    }
+
+    @Override
+    public byte[] decrypt(EncData encData) throws GeneralSecurityException {
+        ByteBuffer ciphertext = encData.getCiphertextBuffer();
+        byte[] plaintext = new byte[getPlaintextSize(ciphertext.remaining())];
+        decrypt(ciphertext, encData.getIv(), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plaintext, byte[] iv, ByteBuffer ciphertext) throws GeneralSecurityException {
+        int len = plaintext.remaining();
+        if (ciphertext.remaining() < len + TAG_SIZE) {
+            throw new ShortBufferException("Ciphertext buffer too short: " + ciphertext.remaining());
+        }
+        CipherContext ctx = getContext(iv, 1);
+        MemorySegment in = ctx.separate(MemorySegment.ofBuffer(plaintext), MemorySegment.ofBuffer(ciphertext));
+        MemorySegment out = MemorySegment.ofBuffer(ciphertext);
+        int written = lib.update(ctx.ctx, out, ctx.outLen, in, len);
+        written += lib.doFinal(ctx.ctx, out.asSlice(written), ctx.outLen);
+        lib.ctrl(ctx.ctx, LibCrypto.EVP_CTRL_GCM_GET_TAG, TAG_SIZE, out.asSlice(written, TAG_SIZE));
+        written += TAG_SIZE;
+        plaintext.position(plaintext.limit());
+        ciphertext.position(ciphertext.position() + written);
+        return written;
+    }
+
+    @Override
+    public int decrypt(ByteBuffer ciphertext, byte[] iv, ByteBuffer plaintext) throws GeneralSecurityException {
+        int len = ciphertext.remaining() - TAG_SIZE;
+        if (len < 0) {
+            throw new GeneralSecurityException("Ciphertext shorter than authentication tag.");
+        }
+        if (plaintext.remaining() < len) {
+            throw new ShortBufferException("Plaintext buffer too short: " + plaintext.remaining());
+        }
+        CipherContext ctx = getContext(iv, 0);
+        MemorySegment out = MemorySegment.ofBuffer(plaintext);
+        MemorySegment in = ctx.separate(MemorySegment.ofBuffer(ciphertext), out);
+        // the tag follows the ciphertext, so is not overwritten by the plaintext
+        lib.ctrl(ctx.ctx, LibCrypto.EVP_CTRL_GCM_SET_TAG, TAG_SIZE, in.asSlice(len, TAG_SIZE));
+        int written = lib.update(ctx.ctx, out, ctx.outLen, in, len);
+        int last = lib.doFinal(ctx.ctx, out.asSlice(written), ctx.outLen);
+        if (last < 0) {
+            // the plaintext is not authentic, so is not released
+            out.asSlice(0, written).fill((byte) 0);
+            throw new AEADBadTagException("Tag mismatch");
+        }
+        written += last;
+        ciphertext.position(ciphertext.limit());
+        plaintext.position(plaintext.position() + written);
+        return written;
+    }
+
+    @Override
+    public byte[] createIv() throws GeneralSecurityException {
+        return nonces.next();
+    }
+
+    @Override
+    public int getIvSize() {
+        return nonces.getNonceSize();
+    }
+
+    @Override
+    public int getCiphertextSize(int plaintextLen) {
+        return plaintextLen + TAG_SIZE;
+    }
+
+    @Override
+    public int getPlaintextSize(int ciphertextLen) {
+        return Math.max(0, ciphertextLen - TAG_SIZE);
+    }
+
+    @Override
+    public EncrypterDecrypter getSegmented() {
+        if (segmented == null) {
+            // sharing the nonce generator, so nonces remain unique for the key
+            segmented = new AesGcmEncrypter(key, nonces).getSegmented();
+        }
+        return segmented;
+    }
+
+    /**
+     * Returns the calling thread's cipher context, initialized with the IV
+     * for the given direction, 1 to encrypt or 0 to decrypt.
+     */
+    private CipherContext getContext(byte[] iv, int enc) throws GeneralSecurityException {
+        if (iv == null || iv.length == 0) {
+            throw new GeneralSecurityException("Initialization vector either null or empty.");
+        }
+        CipherContext ctx = contexts.get();
+        if (ctx == null) {
+            ctx = new CipherContext(lib);
+            // the key schedule is retained by later initializations
+            lib.init(ctx.ctx, cipher, MemorySegment.ofArray(keyBytes), MemorySegment.NULL, enc);
+            contexts.set(ctx);
+        }
+        if (iv.length != ctx.ivSize) {
+            // data encrypted with other IV sizes remains decryptable
+            lib.ctrl(ctx.ctx, LibCrypto.EVP_CTRL_GCM_SET_IVLEN, iv.length, MemorySegment.NULL);
+            ctx.ivSize = iv.length;
+        }
+        lib.init(ctx.ctx, MemorySegment.NULL, MemorySegment.NULL, MemorySegment.ofArray(iv), enc);
+        return ctx;
+    }
+
+    /**
+     * The native cipher context of a thread, freed when no longer reachable.
+     */
+    private static final class CipherContext {
+        final MemorySegment ctx;
+        final MemorySegment outLen = Arena.ofAuto().allocate(JAVA_INT);
+        int ivSize = DEFAULT_IV_SIZE;
+        private MemorySegment scratch = MemorySegment.NULL;
+
+        CipherContext(LibCrypto lib) throws GeneralSecurityException {
+            MemorySegment ctx = lib.newContext();
+            this.ctx = ctx;
+            CLEANER.register(this, () -> lib.freeContext(ctx));
+        }
+
+        /**
+         * Returns the input, or a copy of it if it partially overlaps the
+         * output, as when decrypting in place with the plaintext written
+         * before the ciphertext, which libcrypto does not permit.
+         */
+        MemorySegment separate(MemorySegment in, MemorySegment out) {
+            if (in.byteSize() == 0 || out.byteSize() == 0) {
+                return in;
+            }
+            boolean overlapping = in.asOverlappingSlice(out).isPresent();
+            if (!overlapping || in.asOverlappingSlice(out.asSlice(0, 1)).isPresent()
+                    && out.asOverlappingSlice(in.asSlice(0, 1)).isPresent()) {
+                // disjoint, or exactly in place
+                return in;
+            }
+            if (scratch.byteSize() < in.byteSize()) {
+                scratch = Arena.ofAuto().allocate(Long.highestOneBit(in.byteSize()) << 1);
+            }
+            return scratch.asSlice(0, in.byteSize()).copyFrom(in);
+        }
+    }
+}
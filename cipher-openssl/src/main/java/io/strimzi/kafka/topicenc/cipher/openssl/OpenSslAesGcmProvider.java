@@ -0,0 +1,51 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.openssl;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.topicenc.enc.AesGcmProvider;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.enc.NonceGenerator;
+
+/**
+ * The AES GCM provider calling the system libcrypto. It is unavailable, and
+ * the JCE used instead, if libcrypto cannot be loaded.
+ */
+public class OpenSslAesGcmProvider implements AesGcmProvider {
+
+    public static final String NAME = "openssl";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenSslAesGcmProvider.class);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        if (LibCrypto.getInstance() == null) {
+            LOGGER.info("libcrypto could not be loaded: {}", LibCrypto.getLoadError().toString());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public EncrypterDecrypter createEncrypterDecrypter(SecretKey key, NonceGenerator nonces)
+            throws GeneralSecurityException {
+        LibCrypto lib = LibCrypto.getInstance();
+        if (lib == null) {
+            throw new GeneralSecurityException("libcrypto is not available", LibCrypto.getLoadError());
+        }
+        return new OpenSslAesGcmEncrypter(lib, key, nonces);
+    }
+}
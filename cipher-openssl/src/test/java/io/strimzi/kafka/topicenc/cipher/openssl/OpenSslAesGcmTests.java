@@ -0,0 +1,134 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.cipher.openssl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.AesGcmProviderManager;
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
+import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+
+/**
+ * Testing of the OpenSSL AES GCM provider. Skipped if libcrypto is not
+ * installed.
+ */
+public class OpenSslAesGcmTests {
+
+    private LibCrypto lib;
+
+    @Before
+    public void testsInit() {
+        lib = LibCrypto.getInstance();
+        assumeNotNull(lib);
+    }
+
+    /**
+     * Known answer from the GCM specification, test case 15 (AES-256).
+     */
+    @Test
+    public void knownAnswerTest() throws Exception {
+        HexFormat hex = HexFormat.of();
+        SecretKey key = EncUtils.createAesSecretKey(
+                hex.parseHex("feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308"));
+        byte[] iv = hex.parseHex("cafebabefacedbaddecaf888");
+        byte[] plaintext = hex.parseHex("d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+                + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255");
+        byte[] expected = hex.parseHex("522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa"
+                + "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662898015ad"
+                + "b094dac5d93471bdec1a502270e3cc6c");
+
+        EncrypterDecrypter enc = new OpenSslAesGcmEncrypter(lib, key, new CounterNonceGenerator());
+        EncData encData = enc.encrypt(plaintext, iv);
+        assertArrayEquals(expected, encData.getCiphertext());
+        assertArrayEquals(plaintext, enc.decrypt(encData));
+    }
+
+    /**
+     * Data is interchangeable with the JCE, through heap and direct buffers.
+     */
+    @Test
+    public void jceInteropTest() throws Exception {
+        SecretKey key = EncUtils.generateAesKey(256);
+        EncrypterDecrypter openssl = new OpenSslAesGcmEncrypter(lib, key, new CounterNonceGenerator());
+        EncrypterDecrypter jce = new AesGcmEncrypter(key);
+        for (int size : new int[] {0, 1, 15, 16, 1000, 70000}) {
+            byte[] plaintext = EncUtils.createRandom(size);
+            assertArrayEquals(plaintext, jce.decrypt(openssl.encrypt(plaintext)));
+            assertArrayEquals(plaintext, openssl.decrypt(jce.encrypt(plaintext)));
+
+            byte[] iv = openssl.createIv();
+            ByteBuffer ciphertext = ByteBuffer.allocateDirect(openssl.getCiphertextSize(size));
+            assertEquals(size + OpenSslAesGcmEncrypter.TAG_SIZE,
+                    openssl.encrypt(ByteBuffer.wrap(plaintext), iv, ciphertext));
+            ciphertext.flip();
+            ByteBuffer decrypted = ByteBuffer.allocateDirect(size);
+            openssl.decrypt(ciphertext, iv, decrypted);
+            decrypted.flip();
+            assertEquals(ByteBuffer.wrap(plaintext), decrypted);
+        }
+    }
+
+    /**
+     * Decryption in place, the plaintext being written before the ciphertext
+     * in the same buffer, as by the Encryption Module.
+     */
+    @Test
+    public void inPlaceTest() throws Exception {
+        SecretKey key = EncUtils.generateAesKey(256);
+        EncrypterDecrypter enc = new OpenSslAesGcmEncrypter(lib, key, new CounterNonceGenerator());
+        byte[] plaintext = EncUtils.createRandom(1000);
+        EncData encData = enc.encrypt(plaintext);
+        for (int shift : new int[] {0, 1, 100, 2000}) {
+            ByteBuffer buf = ByteBuffer.allocate(shift + encData.getCiphertext().length);
+            buf.position(shift);
+            buf.put(encData.getCiphertext());
+            ByteBuffer ciphertext = buf.duplicate().position(shift);
+            ByteBuffer out = buf.duplicate().clear();
+            enc.decrypt(ciphertext, encData.getIv(), out);
+            assertArrayEquals(plaintext, Arrays.copyOf(buf.array(), plaintext.length));
+        }
+    }
+
+    @Test
+    public void tamperedTest() throws Exception {
+        SecretKey key = EncUtils.generateAesKey(128);
+        EncrypterDecrypter enc = new OpenSslAesGcmEncrypter(lib, key, new CounterNonceGenerator());
+        EncData encData = enc.encrypt(EncUtils.createRandom(100));
+        byte[] tampered = encData.getCiphertext();
+        tampered[0] ^= 1;
+        try {
+            enc.decrypt(new EncData(encData.getIv(), tampered));
+            fail("Tampered ciphertext was decrypted.");
+        } catch (AEADBadTagException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The provider is discovered through the SPI and passes the known-answer
+     * test, so may be chosen by the calibration.
+     */
+    @Test
+    public void providerTest() throws Exception {
+        assertTrue(AesGcmProviderManager.getInstance().getProviderNames().contains(OpenSslAesGcmProvider.NAME));
+    }
+}
@@ -4,14 +4,19 @@
  */
 package io.strimzi.kafka.topicenc.common;
 
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Map;
 
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -28,6 +33,14 @@ public class EncUtils {
     public static final String AES = "AES";
     public static final String AES_GCM_PADDING = AES + "/GCM/PKCS5Padding";
     public static final String AES256_GCM_NOPADDING = "AES_256/GCM/NoPadding";
+    public static final int KEY_ID_SIZE = 4; // bytes
+
+    private static final byte[] KEY_ID_LABEL = "topicenc key id".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_DERIVATION_SALT = "topicenc key derivation".getBytes(StandardCharsets.US_ASCII);
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    // SecureRandom is thread-safe and costly to instantiate and seed
+    private static final SecureRandom RANDOM = new SecureRandom();
 
     /**
      * Create an array of bytes with random bits, suitable for use as nonce or
@@ -38,7 +51,7 @@ public class EncUtils {
      */
     public static byte[] createRandom(int numBytes) {
         byte[] buf = new byte[numBytes];
-        new SecureRandom().nextBytes(buf);
+        RANDOM.nextBytes(buf);
         return buf;
     }
 
@@ -67,6 +80,75 @@ public class EncUtils {
         return new SecretKeySpec(decodedKey, 0, decodedKey.length, AES);
     }
 
+    /**
+     * Returns a short identifier of a key: the first KEY_ID_SIZE bytes of the
+     * SHA-256 digest of a fixed label and the key. The identifier tells keys
+     * apart without revealing them. Returns an empty array for keys whose
+     * material is not accessible.
+     *
+     * @param key the key
+     * @return the key identifier
+     */
+    public static byte[] keyId(SecretKey key) {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            return new byte[0];
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(KEY_ID_LABEL);
+            return Arrays.copyOf(digest.digest(encoded), KEY_ID_SIZE);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Derives an AES key from another key with HKDF (RFC 5869), using
+     * HMAC-SHA256, a fixed salt and the given context, such as a topic name,
+     * as the info. The derived key has the length of the given key. Distinct
+     * contexts yield independent keys, and the same context always yields the
+     * same key.
+     *
+     * @param key     the key from which to derive, with accessible material
+     * @param context the context of the derived key
+     * @return the derived key
+     * @throws InvalidKeyException if the key material is not accessible
+     */
+    public static SecretKey deriveAesKey(SecretKey key, String context) throws InvalidKeyException {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            throw new InvalidKeyException("Key material is not accessible, so keys cannot be derived from it");
+        }
+        try {
+            // extract
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(new SecretKeySpec(KEY_DERIVATION_SALT, HMAC_SHA256));
+            byte[] prk = mac.doFinal(encoded);
+            Arrays.fill(encoded, (byte) 0);
+
+            // expand
+            mac.init(new SecretKeySpec(prk, HMAC_SHA256));
+            byte[] info = context.getBytes(StandardCharsets.UTF_8);
+            byte[] okm = new byte[encoded.length];
+            byte[] t = new byte[0];
+            for (int pos = 0, i = 1; pos < okm.length; i++) {
+                mac.update(t);
+                mac.update(info);
+                mac.update((byte) i);
+                t = mac.doFinal();
+                int n = Math.min(t.length, okm.length - pos);
+                System.arraycopy(t, 0, okm, pos, n);
+                pos += n;
+            }
+            return createAesSecretKey(okm);
+        } catch (NoSuchAlgorithmException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static void logCiphers() {
         for (Provider provider : Security.getProviders()) {
             LOGGER.debug("Cipher provider: {}", provider.getName());
@@ -1,6 +1,7 @@
 package io.strimzi.kafka.topicenc.common;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.fail;
 
 import java.security.NoSuchAlgorithmException;
@@ -41,6 +42,22 @@ public class EncUtilsTest {
         assertEquals("keys are not equal.", key, keyCopy);
     }
 
+    /**
+     * Derived keys have the length of the key they are derived from, and are
+     * the same for the same context, distinct for distinct contexts.
+     */
+    @Test
+    public void testKeyDerivation() throws Exception {
+        SecretKey key = getTestKey();
+        SecretKey derived = EncUtils.deriveAesKey(key, "orders");
+        assertEquals(32, derived.getEncoded().length);
+        assertEquals(derived, EncUtils.deriveAesKey(key, "orders"));
+        assertNotEquals(derived, EncUtils.deriveAesKey(key, "orders/0"));
+        assertNotEquals(derived, EncUtils.deriveAesKey(getTestKey(), "orders"));
+        assertNotEquals(key, derived);
+        assertEquals(16, EncUtils.deriveAesKey(EncUtils.generateAesKey(128), "orders").getEncoded().length);
+    }
+
     private SecretKey getTestKey() throws NoSuchAlgorithmException {
         return EncUtils.generateAesKey(256);
     }
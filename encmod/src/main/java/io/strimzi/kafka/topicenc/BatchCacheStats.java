@@ -0,0 +1,29 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+/**
+ * A snapshot of the statistics of the Encryption Module's cache of
+ * decrypted batches.
+ *
+ * @param hits      the number of batches served from the cache
+ * @param misses    the number of batches decrypted, not being cached
+ * @param evictions the number of batches evicted to keep within the capacity
+ * @param entries   the number of batches cached
+ * @param bytes     the memory used by the cached batches, in bytes
+ * @param maxBytes  the capacity of the cache, in bytes
+ */
+public record BatchCacheStats(long hits, long misses, long evictions, int entries, long bytes,
+        long maxBytes) {
+
+    /**
+     * Returns the proportion of lookups served from the cache, or 0 if none
+     * were made.
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.utils.BufferSupplier;
+
+/**
+ * A pool of heap buffers into which the records of encrypted or decrypted
+ * partitions are written. Buffers come in power-of-two size classes, so a
+ * buffer released after one request can serve any later request of up to
+ * twice its size. The pool is bounded by the total size of the buffers it
+ * holds; buffers released beyond the bound are left to the garbage collector.
+ *
+ * Sizes below the smallest class, or above the largest, are allocated
+ * directly and never pooled. Only buffers acquired from the pool are taken
+ * back, so buffers of other origin, such as fetched records decrypted in
+ * place, are never pooled by mistake. Instances are thread safe.
+ */
+class BufferPool {
+
+    static final int MIN_CLASS_SIZE = 4 * 1024;
+    static final int MAX_CLASS_SIZE = 16 * 1024 * 1024;
+    static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    // the arrays of the buffers handed out, weakly held as they need not be released
+    private final Set<byte[]> issued = Collections.newSetFromMap(
+            Collections.synchronizedMap(new WeakHashMap<>()));
+
+    BufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        classes = new ArrayBlockingQueue[NUM_CLASSES];
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            int classSize = MIN_CLASS_SIZE << i;
+            // enough buffers of each class to reach the bound
+            int capacity = (int) Math.max(1, Math.min(1024, maxPooledBytes / classSize));
+            classes[i] = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least size bytes.
+     */
+    ByteBuffer acquire(int size) {
+        if (size < MIN_CLASS_SIZE || size > MAX_CLASS_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        int index = classIndex(size);
+        ByteBuffer buf = classes[index].poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocate(MIN_CLASS_SIZE << index);
+        } else {
+            pooledBytes.addAndGet(-buf.capacity());
+            buf.clear();
+        }
+        issued.add(buf.array());
+        return buf;
+    }
+
+    /**
+     * Return a buffer, or a view of it, to the pool. The buffer must no longer
+     * be used by the caller. Buffers not acquired from the pool, or already
+     * released, are ignored.
+     */
+    void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE
+                || Integer.bitCount(capacity) != 1
+                || !buf.hasArray() || buf.arrayOffset() != 0 || buf.isReadOnly()
+                || !issued.remove(buf.array())) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        if (!classes[classIndex(capacity)].offer(ByteBuffer.wrap(buf.array()))) {
+            pooledBytes.addAndGet(-capacity);
+        }
+    }
+
+    /**
+     * Returns a view of the pool as a BufferSupplier, through which codecs
+     * acquire and release buffers. Closing it has no effect on the pool.
+     */
+    BufferSupplier asBufferSupplier() {
+        return new BufferSupplier() {
+            @Override
+            public ByteBuffer get(int capacity) {
+                return acquire(capacity);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                BufferPool.this.release(buffer);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Returns the total size of the buffers held by the pool.
+     */
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private static int classIndex(int size) {
+        int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - MIN_CLASS_SHIFT);
+    }
+}
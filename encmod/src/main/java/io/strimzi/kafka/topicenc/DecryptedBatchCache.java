@@ -0,0 +1,107 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decrypted record batches, so batches fetched by several consumers, as
+ * when consumer groups fan out over a topic, are decrypted once. A batch is
+ * identified by its topic, partition, base offset and the CRC of the stored
+ * batch, so a batch rewritten at the same offset, as by compaction, is not
+ * mistaken for the one cached.
+ *
+ * The cache is held on the heap and bounded by the bytes of the batches it
+ * holds, plus an estimate of the overhead of each entry; the least recently
+ * used batches are evicted first. Batches larger than an eighth of the
+ * capacity are not cached, so a single large batch does not flush the
+ * cache. Instances are thread safe.
+ */
+class DecryptedBatchCache {
+
+    // estimate of the heap used by an entry other than its bytes
+    static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Identifies a batch as stored in the log.
+     */
+    record Key(String topic, int partition, long baseOffset, long crc) {
+    }
+
+    private final long maxBytes;
+    private final Map<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes the capacity of the cache, in bytes
+     */
+    DecryptedBatchCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Decrypted batch cache size must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the decrypted batch, or null if not cached.
+     */
+    synchronized byte[] get(Key key) {
+        byte[] batch = entries.get(key);
+        if (batch != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return batch;
+    }
+
+    /**
+     * Cache a decrypted batch, copying it from the buffer.
+     *
+     * @param key   identifies the stored batch
+     * @param buf   the buffer holding the decrypted batch
+     * @param start the position of the decrypted batch in buf
+     * @param end   the end of the decrypted batch in buf
+     */
+    void put(Key key, ByteBuffer buf, int start, int end) {
+        int size = end - start;
+        if (size + ENTRY_OVERHEAD > maxBytes / 8) {
+            return;
+        }
+        byte[] batch = new byte[size];
+        buf.get(start, batch);
+        synchronized (this) {
+            byte[] old = entries.put(key, batch);
+            if (old != null) {
+                bytes -= old.length + ENTRY_OVERHEAD;
+            }
+            bytes += size + ENTRY_OVERHEAD;
+            Iterator<byte[]> lru = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= lru.next().length + ENTRY_OVERHEAD;
+                lru.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Evict all batches, as when a key is purged or the policies change.
+     */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized BatchCacheStats getStats() {
+        return new BatchCacheStats(hits, misses, evictions, entries.size(), bytes, maxBytes);
+    }
+}
@@ -4,177 +4,370 @@
  */
 package io.strimzi.kafka.topicenc;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.SecretKey;
 
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
 import org.apache.kafka.common.message.FetchResponseData;
 import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
 import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
 import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.BaseRecords;
 import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.DefaultRecordBatch;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.RecordBatch;
-import org.apache.kafka.common.record.SimpleRecord;
 import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.ByteBufferOutputStream;
+import org.apache.kafka.common.utils.ByteUtils;
+import org.apache.kafka.common.utils.CloseableIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.PartitionExecutor.PartitionTask;
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.compress.PayloadCodec;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.CipherSuiteManager;
+import io.strimzi.kafka.topicenc.enc.DataKey;
+import io.strimzi.kafka.topicenc.enc.DataKeyManager;
 import io.strimzi.kafka.topicenc.enc.EncData;
 import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
 import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
 import io.strimzi.kafka.topicenc.kms.KmsException;
 import io.strimzi.kafka.topicenc.policy.PolicyRepository;
 import io.strimzi.kafka.topicenc.policy.TopicPolicy;
-import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
 import io.strimzi.kafka.topicenc.ser.EncSerDer;
 import io.strimzi.kafka.topicenc.ser.EncSerDerException;
+import io.strimzi.kafka.topicenc.ser.HeaderMetadata;
 
 /**
  * This class is the main component encompassing the Kafka topic encryption
  * implementation.
  */
-public class EncryptionModule implements EncModControl {
+public class EncryptionModule implements EncModControl, AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EncryptionModule.class);
 
-    private Map<String, EncrypterDecrypter> keyCache;
-    private EncSerDer encSerDer;
+    /**
+     * Header marking a record whose value is an encrypted record batch. The
+     * header value is the number of records in the encrypted batch.
+     */
+    public static final String BATCH_HEADER = "__topicenc.batch";
+
+    /**
+     * Header holding the wrapped data key with which a record, or batch, was
+     * encrypted.
+     */
+    public static final String DEK_HEADER = "__topicenc.dek";
+
+    /**
+     * Header referencing, by its short ID, the data key carried in the
+     * DEK_HEADER header of the first encrypted record of the same batch. Used
+     * in place of DEK_HEADER by the other records of a batch on topics
+     * declared not to be compacted, whose batches keep all their records.
+     */
+    public static final String DEK_REF_HEADER = "__topicenc.dekref";
+
+    /**
+     * Header holding the encryption metadata of a record, or batch, when the
+     * policy places it outside the value. See HeaderMetadata.
+     */
+    public static final String META_HEADER = "__topicenc.meta";
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    // decompression buffers, re-used by the batches processed on each thread
+    private static final ThreadLocal<BufferSupplier> BUFFER_SUPPLIERS =
+            ThreadLocal.withInitial(BufferSupplier::create);
+
+    // upper bounds of the size of a record other than its key, value and headers,
+    // and of the size of a placeholder record in a batch encrypted as a unit
+    private static final int MAX_RECORD_FIELDS_SIZE = 36;
+    private static final int MAX_PLACEHOLDER_SIZE = 11;
+
+    private TopicKeyCache keyCache;
+    private KmsKeyCache kmsKeys;
+    private DecryptedBatchCache batchCache;
+    private PolicyDecisions decisions;
+    private CipherSuiteManager cipherSuites;
     private PolicyRepository policyRepo;
+    private PartitionExecutor partitionExecutor;
+    private ExecutorService refreshExecutor;
+    private BufferPool bufferPool;
+    private BufferSupplier pooledBuffers;
 
     public EncryptionModule(PolicyRepository policyRepo) {
+        this(policyRepo, 1);
+    }
+
+    /**
+     * @param policyRepo  the topic policies
+     * @param parallelism the number of threads with which the partitions of a
+     *                    request are encrypted or decrypted. 1 processes
+     *                    partitions sequentially on the calling thread.
+     */
+    public EncryptionModule(PolicyRepository policyRepo, int parallelism) {
+        this(policyRepo, parallelism, new KeyCacheConfig());
+    }
+
+    /**
+     * @param policyRepo     the topic policies
+     * @param parallelism    the number of threads with which the partitions of
+     *                       a request are encrypted or decrypted
+     * @param keyCacheConfig the configuration of the cache of topic keys
+     */
+    public EncryptionModule(PolicyRepository policyRepo, int parallelism, KeyCacheConfig keyCacheConfig) {
+        this(policyRepo, parallelism, keyCacheConfig, 0);
+    }
+
+    /**
+     * @param policyRepo      the topic policies
+     * @param parallelism     the number of threads with which the partitions of
+     *                        a request are encrypted or decrypted
+     * @param keyCacheConfig  the configuration of the cache of topic keys
+     * @param batchCacheBytes the capacity, in bytes, of the cache of decrypted
+     *                        batches, serving consumers fetching the same
+     *                        batches. 0 disables the cache.
+     */
+    public EncryptionModule(PolicyRepository policyRepo, int parallelism, KeyCacheConfig keyCacheConfig,
+            long batchCacheBytes) {
         this.policyRepo = policyRepo;
-        keyCache = new HashMap<>();
-        encSerDer = new AesGcmV1SerDer();
+        refreshExecutor = Executors.newSingleThreadExecutor(EncryptionModule::createRefreshThread);
+        keyCache = new TopicKeyCache(keyCacheConfig, this::createTopicEncrypter, refreshExecutor,
+                System::nanoTime);
+        // KMS keys are retrieved again as topic keys are refreshed
+        kmsKeys = new KmsKeyCache(TimeUnit.MILLISECONDS.toNanos(
+                keyCacheConfig.getTtlMs() - keyCacheConfig.getRefreshAheadMs()), System::nanoTime);
+        batchCache = batchCacheBytes > 0 ? new DecryptedBatchCache(batchCacheBytes) : null;
+        decisions = new PolicyDecisions(policyRepo, PolicyDecisions.DEFAULT_MAX_SIZE, this::policiesChanged);
+        cipherSuites = CipherSuiteManager.getInstance();
+        partitionExecutor = new PartitionExecutor(parallelism);
+        bufferPool = new BufferPool();
+        pooledBuffers = bufferPool.asBufferSupplier();
     }
 
     public boolean encrypt(TopicProduceData topicData)
             throws EncSerDerException, GeneralSecurityException, KmsException {
+        return encrypt(Collections.singletonList(topicData)) > 0;
+    }
 
-        final EncrypterDecrypter encrypter;
-        try {
-            encrypter = getTopicEncrypter(topicData.name());
-        } catch (Exception e) {
-            String msg = String.format("Error obtaining encrypter for topic: %s", topicData.name());
-            throw new KmsException(msg, e);
-        }
-
-        if (encrypter == null) {
-            LOGGER.debug("No encryption - topic {} is not configured for encryption",
-                    topicData.name());
-            return false;
-        }
+    /**
+     * Encrypt the data of all topics of a produce request configured for
+     * encryption. The partitions of all topics are processed in parallel if
+     * the module was created with a parallelism greater than one.
+     *
+     * @param topics the topic data of a produce request
+     * @return the number of topics encrypted
+     */
+    public int encrypt(Collection<TopicProduceData> topics)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
 
-        // If this far, the data should be encrypted.
-        // Navigate into each record and encrypt.
-        for (PartitionProduceData partitionData : topicData.partitionData()) {
+        List<PartitionTask> tasks = new ArrayList<>();
+        long totalBytes = 0;
+        int numTopics = 0;
+        for (TopicProduceData topicData : topics) {
+            final TopicEncryptionContext topicCtx;
+            try {
+                topicCtx = getTopicEncrypter(topicData.name());
+            } catch (Exception e) {
+                String msg = String.format("Error obtaining encrypter for topic: %s", topicData.name());
+                throw new KmsException(msg, e);
+            }
 
-            MemoryRecords recs = (MemoryRecords) partitionData.records();
-            MemoryRecordsBuilder builder = createMemoryRecsBuilder(recs.buffer().capacity());
-            for (org.apache.kafka.common.record.Record record : recs.records()) {
-                if (record.hasValue()) {
-                    // encrypt record value:
-                    byte[] plaintext = new byte[record.valueSize()];
-                    record.value().get(plaintext);
-                    EncData ciphertext = encrypter.encrypt(plaintext);
+            if (topicCtx == null) {
+                LOGGER.debug("No encryption - topic {} is not configured for encryption",
+                        topicData.name());
+                continue;
+            }
 
-                    // serialize the ciphertext and metadata, add to the builder:
-                    encSerDer.serialize(builder, record, ciphertext);
-                }
+            // If this far, the data should be encrypted.
+            numTopics++;
+            for (PartitionProduceData partitionData : topicData.partitionData()) {
+                TopicEncryptionContext partitionCtx = topicCtx.getPartitionContext(partitionData.index());
+                totalBytes += partitionData.records().sizeInBytes();
+                tasks.add(() -> encryptPartition(partitionCtx, partitionData));
             }
-            // overwrite the partition's memoryrecords with the encrypted records:
-            partitionData.setRecords(builder.build());
         }
-        return true;
+        partitionExecutor.runAll(tasks, totalBytes);
+        return numTopics;
     }
 
     public boolean decrypt(FetchableTopicResponse fetchRsp)
             throws EncSerDerException, GeneralSecurityException, KmsException {
+        return decrypt(Collections.singletonList(fetchRsp)) > 0;
+    }
 
-        String topicName = fetchRsp.topic();
-        final EncrypterDecrypter encrypter;
-        try {
-            encrypter = getTopicEncrypter(topicName);
-        } catch (Exception e) {
-            String msg = String.format("Error obtaining encrypter for topic: %s ", topicName);
-            throw new KmsException(msg, e);
-        }
-
-        if (encrypter == null) {
-            LOGGER.debug("No decryption - topic {} is not configured for encryption", topicName);
-            return false;
-        }
-
-        // If this far, the data was encrypted.
-        // Navigate into each record and decrypt.
-        for (FetchResponseData.PartitionData partitionData : fetchRsp.partitions()) {
+    /**
+     * Decrypt the data of all topics of a fetch response configured for
+     * encryption. The partitions of all topics are processed in parallel if
+     * the module was created with a parallelism greater than one.
+     *
+     * @param topics the topic responses of a fetch response
+     * @return the number of topics decrypted
+     */
+    public int decrypt(Collection<FetchableTopicResponse> topics)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
 
-            if (LOGGER.isDebugEnabled()) {
-                String msg = String.format(
-                        "partition: %d, logStartOffset: %08X, lastStableOffset: %08X, "
-                                + "partition leader epoch: %04X",
-                        partitionData.partitionIndex(), partitionData.currentLeader().leaderEpoch(),
-                        partitionData.logStartOffset(), partitionData.lastStableOffset());
-                LOGGER.debug(msg);
+        List<PartitionTask> tasks = new ArrayList<>();
+        long totalBytes = 0;
+        int numTopics = 0;
+        for (FetchableTopicResponse fetchRsp : topics) {
+            String topicName = fetchRsp.topic();
+            final TopicEncryptionContext topicCtx;
+            try {
+                topicCtx = getTopicEncrypter(topicName);
+            } catch (Exception e) {
+                String msg = String.format("Error obtaining encrypter for topic: %s ", topicName);
+                throw new KmsException(msg, e);
             }
 
-            MemoryRecords recs = (MemoryRecords) partitionData.records();
-
-            long firstOffset = getFirstOffset(recs);
-            MemoryRecordsBuilder builder = createMemoryRecsBuilder(recs.sizeInBytes(),
-                    partitionData.currentLeader().leaderEpoch(), firstOffset);
-            for (org.apache.kafka.common.record.Record record : recs.records()) {
-                if (record.hasValue()) {
-                    byte[] ciphertext = new byte[record.valueSize()];
-                    record.value().get(ciphertext);
+            if (topicCtx == null) {
+                LOGGER.debug("No decryption - topic {} is not configured for encryption", topicName);
+                continue;
+            }
 
-                    // serialize value into version, iv, ciphertext:
-                    EncData md = encSerDer.deserialize(ciphertext);
+            // If this far, the data was encrypted.
+            numTopics++;
+            for (FetchResponseData.PartitionData partitionData : fetchRsp.partitions()) {
+                TopicEncryptionContext partitionCtx = topicCtx.getPartitionContext(partitionData.partitionIndex());
+                totalBytes += partitionData.records().sizeInBytes();
+                tasks.add(() -> decryptPartition(topicName, partitionCtx, partitionData));
+            }
+        }
+        partitionExecutor.runAll(tasks, totalBytes);
+        return numTopics;
+    }
 
-                    // decrypt, add to records builder:
-                    byte[] plaintext = encrypter.decrypt(md);
+    /**
+     * Return the buffers holding the records written by encrypt(topics) to the
+     * module's buffer pool. To be called once the produce request is no longer
+     * needed, typically after it has been serialized; its records must not be
+     * used afterwards.
+     *
+     * @param topics the topic data passed to encrypt()
+     */
+    public void releaseEncrypted(Collection<TopicProduceData> topics) {
+        for (TopicProduceData topicData : topics) {
+            if (decisions.isEncrypted(topicData.name())) {
+                for (PartitionProduceData partitionData : topicData.partitionData()) {
+                    release(partitionData.records());
+                }
+            }
+        }
+    }
 
-                    SimpleRecord newRec = new SimpleRecord(record.timestamp(), record.key(),
-                            ByteBuffer.wrap(plaintext),
-                            record.headers());
-                    builder.append(newRec);
+    /**
+     * Return the buffers holding the records written by decrypt(topics) to the
+     * module's buffer pool. To be called once the fetch response is no longer
+     * needed, typically after it has been serialized; its records must not be
+     * used afterwards.
+     *
+     * @param topics the topic responses passed to decrypt()
+     */
+    public void releaseDecrypted(Collection<FetchableTopicResponse> topics) {
+        for (FetchableTopicResponse topicRsp : topics) {
+            if (decisions.isEncrypted(topicRsp.topic())) {
+                for (FetchResponseData.PartitionData partitionData : topicRsp.partitions()) {
+                    release(partitionData.records());
                 }
             }
-            // overwrite the partition's memoryrecords with the decrypted records:
-            MemoryRecords newRecs = builder.build();
-            partitionData.setRecords(newRecs);
         }
-        return true;
+    }
+
+    private void release(BaseRecords records) {
+        if (records instanceof MemoryRecords) {
+            bufferPool.release(((MemoryRecords) records).buffer());
+        }
     }
 
     /**
-     * EncMod control interface. Empty, placeholder implementation for the time
-     * being.
+     * EncMod control interface. Evicts the keys of all topics encrypted with
+     * the key reference, so the key is retrieved from the KMS again when next
+     * needed.
      */
     @Override
     public void purgeKey(String keyref) {
+        kmsKeys.purge(keyref);
+        keyCache.purge(keyref);
+        // batches decrypted with the key are no longer to be served
+        if (batchCache != null) {
+            batchCache.clear();
+        }
+        LOGGER.debug("Purged key {}", keyref);
+    }
+
+    /**
+     * Returns the statistics of the cache of decrypted batches, or null if
+     * the cache is disabled.
+     */
+    public BatchCacheStats getBatchCacheStats() {
+        return batchCache != null ? batchCache.getStats() : null;
+    }
+
+    /**
+     * Stop the threads of the module: that refreshing topic keys and those
+     * processing partitions in parallel. The module is not to be used once
+     * closed.
+     */
+    @Override
+    public void close() {
+        refreshExecutor.shutdownNow();
+        partitionExecutor.shutdown();
+    }
+
+    private void policiesChanged() {
+        kmsKeys.clear();
+        keyCache.clear();
+        if (batchCache != null) {
+            batchCache.clear();
+        }
     }
 
     /**
      * Consults the policy db whether a topic is to be encrypted. If topic is not to
      * be encrypted, returns null.
-     * 
+     *
      * @throws Exception
      */
-    protected EncrypterDecrypter getTopicEncrypter(String topicName) throws Exception {
-
-        String topicKey = topicName.toLowerCase();
-
-        // first check cache
-        EncrypterDecrypter enc = keyCache.get(topicKey);
-        if (enc != null) {
-            return enc;
+    protected TopicEncryptionContext getTopicEncrypter(String topicName) throws Exception {
+        // most topics are typically not encrypted, so are decided with a single lookup
+        String topicKey = decisions.getTopicKey(topicName);
+        if (topicKey == null) {
+            return null;
         }
+        return keyCache.get(topicKey);
+    }
+
+    /**
+     * Create the encryption context of a topic, retrieving its key from the
+     * KMS. With key derivation, the KMS key is shared by the topics deriving
+     * their keys from it, and retrieved once for all of them. When reloading
+     * a cached context whose policy and key are unchanged, the cached context
+     * is kept, with its data keys and decrypters. Otherwise, earlier versions
+     * of the key remain available for decryption.
+     */
+    private TopicEncryptionContext createTopicEncrypter(String topicKey,
+            TopicEncryptionContext previous) throws Exception {
 
         // query policy db for a policy for this topic:
         TopicPolicy policy = policyRepo.getTopicPolicy(topicKey);
@@ -186,49 +379,881 @@ public class EncryptionModule implements EncModControl {
 
         // encryption policy exists for this topic. Retrieve key
         KeyMgtSystem kms = policy.getKms();
-        SecretKey key = kms.getKey(policy.getKeyReference());
+        SecretKey kmsKey;
+        SecretKey key;
+        String derivationContext;
+        if (policy.isDerivedKey()) {
+            kmsKey = kmsKeys.get(kms, policy.getKeyReference());
+            derivationContext = topicKey;
+            key = EncUtils.deriveAesKey(kmsKey, derivationContext);
+        } else {
+            kmsKey = kms.getKey(policy.getKeyReference());
+            derivationContext = null;
+            key = kmsKey;
+        }
+        if (previous != null && previous.getPolicy() == policy && previous.getKeyId().length > 0
+                && Arrays.equals(previous.getKeyId(), EncUtils.keyId(key))) {
+            return previous;
+        }
+
+        // Instantiate the encrypter/decrypter for this topic
+        // from the cipher suite named by the policy.
+        CipherSuite suite = cipherSuites.getCipherSuite(policy.getEncMethod());
+        DataKeyManager dataKeys = TopicEncryptionContext.createDataKeys(key, suite, policy);
+        return new TopicEncryptionContext(policy, suite, key, dataKeys, createPayloadCodec(policy),
+                derivationContext, policy.isPartitionKeyDerivation() ? kmsKey : null, previous);
+    }
+
+    private static Thread createRefreshThread(Runnable r) {
+        Thread thread = new Thread(r, "topicenc-key-refresh");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static PayloadCodec createPayloadCodec(TopicPolicy policy) throws IOException {
+        CompressionType type = policy.getCompressionType();
+        if (type == CompressionType.NONE) {
+            return PayloadCodec.NONE;
+        }
+        byte[] dictionary = null;
+        if (policy.getCompressionDictionary() != null) {
+            dictionary = Files.readAllBytes(Path.of(policy.getCompressionDictionary()));
+        }
+        return new PayloadCodec(type, dictionary);
+    }
+
+    /**
+     * Navigate into each record, or batch, of a partition and encrypt.
+     */
+    private void encryptPartition(TopicEncryptionContext topicCtx, PartitionProduceData partitionData)
+            throws EncSerDerException, GeneralSecurityException {
+        MemoryRecords recs = (MemoryRecords) partitionData.records();
+        MemoryRecords encRecs = topicCtx.getPolicy().isBatchGranularity()
+                ? encryptBatches(topicCtx, recs)
+                : encryptRecords(topicCtx, recs);
+
+        // overwrite the partition's memoryrecords with the encrypted records:
+        partitionData.setRecords(encRecs);
+    }
+
+    /**
+     * Navigate into each batch of a partition and decrypt. Batches found in
+     * the cache of decrypted batches, if enabled, are copied from it.
+     */
+    private void decryptPartition(String topicName, TopicEncryptionContext topicCtx,
+            FetchResponseData.PartitionData partitionData)
+            throws EncSerDerException, GeneralSecurityException {
+
+        if (LOGGER.isDebugEnabled()) {
+            String msg = String.format(
+                    "partition: %d, logStartOffset: %08X, lastStableOffset: %08X, "
+                            + "partition leader epoch: %04X",
+                    partitionData.partitionIndex(), partitionData.currentLeader().leaderEpoch(),
+                    partitionData.logStartOffset(), partitionData.lastStableOffset());
+            LOGGER.debug(msg);
+        }
+
+        MemoryRecords recs = (MemoryRecords) partitionData.records();
+
+        // decryption shrinks records, unless they were compressed before encryption,
+        // so the decrypted batches are written over the fetched records.
+        InPlaceWriter out = new InPlaceWriter(recs.buffer(), bufferPool);
+        RecordWalker walker = new RecordWalker(recs.buffer());
+        DecryptionInput input = new DecryptionInput();
+        int batchPos = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            // batches are contiguous in the records buffer. Fields of the batch
+            // are read before it is overwritten.
+            int batchSize = batch.sizeInBytes();
+            int batchEnd = batchPos + batchSize;
+            // batches emptied by compaction are retained for their producer state
+            if (batch.isControlBatch() || isEmpty(batch)) {
+                out.setReadLimit(batchEnd);
+                out.copy(batchPos, batchSize);
+            } else {
+                DecryptedBatchCache.Key cacheKey = getBatchCacheKey(topicName, partitionData, batch);
+                byte[] cached = cacheKey != null ? batchCache.get(cacheKey) : null;
+                if (cached != null) {
+                    out.setReadLimit(batchEnd);
+                    out.write(cached);
+                } else {
+                    int outStart = out.output().position();
+                    decryptStoredBatch(topicCtx, batch, batchPos, batchEnd, walker, input, out);
+                    if (cacheKey != null) {
+                        // a moved output retains the bytes written before the move
+                        batchCache.put(cacheKey, out.output(), outStart, out.output().position());
+                    }
+                }
+            }
+            batchPos = batchEnd;
+        }
+        if (input.scratch != null) {
+            bufferPool.release(input.scratch);
+        }
+        // overwrite the partition's memoryrecords with the decrypted records:
+        partitionData.setRecords(MemoryRecords.readableRecords(out.finish()));
+    }
 
-        // Instantiate the encrypter/decrypter for this topic.
-        // We always assume AES GCM encrypter now.
-        // TODO: factory for creating type of encrypter according to policy
-        enc = new AesGcmEncrypter(key);
+    /**
+     * Decrypt a stored batch, in whichever granularity it was encrypted. The
+     * granularity is determined from the data, so data written under an
+     * earlier policy remains readable: a batch encrypted as a single unit is
+     * marked by the BATCH_HEADER header of its first record. The records of
+     * a batch are read once; those of a compressed batch are decompressed
+     * once.
+     */
+    private void decryptStoredBatch(TopicEncryptionContext topicCtx, MutableRecordBatch batch,
+            int batchPos, int batchEnd, RecordWalker walker, DecryptionInput input, InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+        input.batchDataKey = null;
+        input.batchDataKeyId = null;
+        if (!RecordWalker.canWalk(batch)) {
+            decryptCompressedRecords(topicCtx, batch, batchEnd, input, out);
+            return;
+        }
+        walker.reset(batch, batchPos);
+        if (walker.next() && findHeader(walker.headers(), BATCH_HEADER) != null) {
+            decryptBatch(topicCtx, batch, walker.headers(), walker.value(), batchEnd, input, out);
+        } else {
+            walker.reset(batch, batchPos);
+            decryptRecords(topicCtx, batch, batchPos, walker, input, out);
+        }
+    }
 
-        // add to cache and return
-        keyCache.put(topicKey, enc);
-        return enc;
+    /**
+     * Returns the key of a stored batch in the cache of decrypted batches, or
+     * null if the cache is disabled. Only v2 batches, whose CRC covers their
+     * records, are cached.
+     */
+    private DecryptedBatchCache.Key getBatchCacheKey(String topicName,
+            FetchResponseData.PartitionData partitionData, MutableRecordBatch batch) {
+        if (batchCache == null || batch.magic() < RecordBatch.MAGIC_VALUE_V2) {
+            return null;
+        }
+        return new DecryptedBatchCache.Key(topicName, partitionData.partitionIndex(),
+                batch.baseOffset(), batch.checksum());
     }
 
-    private long getFirstOffset(MemoryRecords recs) {
-        for (org.apache.kafka.common.record.Record r : recs.records()) {
-            if (r.hasValue()) {
-                return r.offset();
+    /**
+     * Encrypt each record value individually, compressing it first if the
+     * policy specifies a codec. Each batch is rebuilt with the compression
+     * type, offsets and header fields of the original batch, so idempotent and
+     * transactional producers are unaffected. The records of each batch are
+     * encrypted with the current data key, which is added to the record
+     * headers. The records of uncompressed batches are
+     * walked in place, and each value is encrypted directly into the output
+     * batch; those of compressed batches are decompressed into buffers
+     * re-used across batches.
+     */
+    private MemoryRecords encryptRecords(TopicEncryptionContext topicCtx, MemoryRecords recs)
+            throws EncSerDerException, GeneralSecurityException {
+
+        // all batches are written to one buffer, sized for the worst case
+        int recordOverhead = getRecordOverhead(topicCtx);
+        long size = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            size += getEncryptedBatchSize(topicCtx, batch, recordOverhead);
+        }
+        InPlaceWriter out = new InPlaceWriter(recs.buffer(), bufferPool, toCapacity(size));
+        EncryptedValue encValue = new EncryptedValue();
+        RecordWalker walker = new RecordWalker(recs.buffer());
+        int batchPos = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            DataKey dek = getDataKey(topicCtx, countRecords(batch));
+            EncrypterDecrypter encrypter = dek.getEncrypter();
+            Header dekHeader = getDataKeyHeader(dek);
+            Header dekRefHeader = getDataKeyRefHeader(topicCtx, dek);
+            if (RecordWalker.canWalk(batch)) {
+                walker.reset(batch, batchPos);
+                int batchStart = out.beginBatch(batchPos);
+                while (walker.next()) {
+                    if (encryptRecord(topicCtx, encrypter, dekHeader, walker, encValue, out)
+                            && dekRefHeader != null) {
+                        dekHeader = dekRefHeader;
+                    }
+                }
+                out.endBatch(batchStart);
+            } else {
+                encryptCompressedRecords(topicCtx, encrypter, dekHeader, dekRefHeader, batch, encValue,
+                        getEncryptedBatchSize(topicCtx, batch, recordOverhead), out);
             }
+            // batches are contiguous in the records buffer
+            batchPos += batch.sizeInBytes();
         }
-        return 0;
+        return MemoryRecords.readableRecords(out.finish());
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize) {
-        return createMemoryRecsBuilder(bufSize, RecordBatch.NO_PARTITION_LEADER_EPOCH);
+    /**
+     * Encrypt a record of an uncompressed batch. The value is encrypted
+     * directly into its place in the output record, which keeps the offset
+     * and timestamp deltas of the original.
+     *
+     * @return true if the value was encrypted, false for a tombstone
+     */
+    private boolean encryptRecord(TopicEncryptionContext topicCtx, EncrypterDecrypter encrypter,
+            Header dekHeader, RecordWalker record, EncryptedValue encValue, InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+        if (!record.hasValue()) {
+            // tombstones are kept as they are
+            out.writeRecord(record.offsetDelta(), record.timestampDelta(), record.key(), -1, record.headers());
+            out.writeHeaders(record.headers());
+            return false;
+        }
+        prepareValue(topicCtx, encrypter, topicCtx.getCodec(), record.value(), encValue);
+        Header[] headers = addHeader(addHeader(record.headers(), dekHeader), encValue.metadata);
+        out.writeRecord(record.offsetDelta(), record.timestampDelta(), record.key(), encValue.size, headers);
+        writeValue(topicCtx, encValue, out.output());
+        out.writeHeaders(headers);
+        releaseValue(encValue);
+        return true;
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize, int partitionEpoch) {
-        return createMemoryRecsBuilder(bufSize, partitionEpoch, 0L);
+    /**
+     * Encrypt the records of a batch compressed by the producer, or of a
+     * legacy batch. The batch is rebuilt, with its compression type, offsets
+     * and header fields, in a pooled buffer and then copied to the output.
+     * As the builder compresses the values appended to it, each value is
+     * encrypted into a scratch buffer, re-used across records.
+     */
+    private void encryptCompressedRecords(TopicEncryptionContext topicCtx, EncrypterDecrypter encrypter,
+            Header dekHeader, Header dekRefHeader, MutableRecordBatch batch, EncryptedValue encValue, int size,
+            InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+        ByteBufferOutputStream tmp = new ByteBufferOutputStream(bufferPool.acquire(size));
+        MemoryRecordsBuilder builder = createMemoryRecsBuilder(batch, batch.compressionType(), tmp);
+        ByteBuffer scratch = null;
+        try (CloseableIterator<Record> records = batch.streamingIterator(BUFFER_SUPPLIERS.get())) {
+            while (records.hasNext()) {
+                Record record = records.next();
+                if (record.hasValue()) {
+                    prepareValue(topicCtx, encrypter, topicCtx.getCodec(), record.value(), encValue);
+                    scratch = prepareBuffer(scratch, encValue.size);
+                    writeValue(topicCtx, encValue, scratch);
+                    releaseValue(encValue);
+                    scratch.flip();
+                    Header[] headers = addHeader(addHeader(record.headers(), dekHeader), encValue.metadata);
+                    builder.appendWithOffset(record.offset(), record.timestamp(), record.key(), scratch, headers);
+                    if (dekRefHeader != null) {
+                        dekHeader = dekRefHeader;
+                    }
+                } else {
+                    // tombstones are kept as they are
+                    builder.appendWithOffset(record.offset(), record.timestamp(), record.key(),
+                            null, record.headers());
+                }
+            }
+        }
+        if (scratch != null) {
+            bufferPool.release(scratch);
+        }
+        writeBatch(builder, batch);
+        ByteBuffer encrypted = tmp.buffer();
+        encrypted.flip();
+        out.ensure(encrypted.remaining());
+        out.output().put(encrypted);
+        bufferPool.release(encrypted);
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize, int partitionEpoch,
-            long baseOffset) {
-        ByteBuffer buffer = ByteBuffer.allocate(10); // will be expanded as needed
-        return new MemoryRecordsBuilder(buffer, RecordBatch.CURRENT_MAGIC_VALUE,
-                CompressionType.NONE,
-                TimestampType.CREATE_TIME,
-                baseOffset,
-                RecordBatch.NO_TIMESTAMP, // log appendTime
-                RecordBatch.NO_PRODUCER_ID,
-                RecordBatch.NO_PRODUCER_EPOCH,
-                0, // baseSequence. RecordBatch.NO_SEQUENCE
-                false, // isTransactional
-                false, // isBatch
-                partitionEpoch, // RecordBatch.NO_PARTITION_LEADER_EPOCH,
-                bufSize);
+    /**
+     * Encrypt each record batch as a single unit. The batch, in its wire format
+     * including any compression, is encrypted and becomes the value of the first
+     * record of the new batch. Batches not compressed by the producer are
+     * compressed first if the policy specifies a codec. This record is marked with BATCH_HEADER. The
+     * remaining records of the new batch are empty placeholders, ensuring the
+     * broker assigns the same offsets as it would to the original batch. The
+     * new batch keeps the producer id, epoch, sequence and transactional flag
+     * of the original. The data key is added to the headers of the first
+     * record. The batch is encrypted directly into the
+     * value of that record in the output.
+     */
+    private MemoryRecords encryptBatches(TopicEncryptionContext topicCtx, MemoryRecords recs)
+            throws EncSerDerException, GeneralSecurityException {
+
+        int headersSize = getHeaderSize(BATCH_HEADER, Integer.toString(Integer.MAX_VALUE).length())
+                + getDataKeyHeaderSize(topicCtx);
+        long size = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            int valueSize = getEncryptedSize(topicCtx, batch.sizeInBytes());
+            size += DefaultRecordBatch.RECORD_BATCH_OVERHEAD + MAX_RECORD_FIELDS_SIZE + valueSize
+                    + headersSize + (long) countRecords(batch) * MAX_PLACEHOLDER_SIZE;
+        }
+        InPlaceWriter out = new InPlaceWriter(recs.buffer(), bufferPool, toCapacity(size));
+        ByteBuffer recsBuf = recs.buffer();
+        int batchPos = 0;
+        EncryptedValue encValue = new EncryptedValue();
+        for (MutableRecordBatch batch : recs.batches()) {
+            // batches are contiguous in the records buffer
+            ByteBuffer plaintext = recsBuf.duplicate();
+            plaintext.position(batchPos).limit(batchPos + batch.sizeInBytes());
+            batchPos += batch.sizeInBytes();
+
+            int numRecords = countRecords(batch);
+            DataKey dek = getDataKey(topicCtx, 1);
+            PayloadCodec codec = batch.compressionType() == CompressionType.NONE
+                    ? topicCtx.getCodec()
+                    : PayloadCodec.NONE;
+            prepareValue(topicCtx, dek.getEncrypter(), codec, plaintext, encValue);
+            Header batchHeader = new RecordHeader(BATCH_HEADER,
+                    Integer.toString(numRecords).getBytes(StandardCharsets.UTF_8));
+            Header[] headers = addHeader(new Header[] {batchHeader}, getDataKeyHeader(dek));
+            headers = addHeader(headers, encValue.metadata);
+
+            // the ciphertext is incompressible, so the carrier batch is not compressed.
+            // The original batch, including its compression, is restored on decryption.
+            // All records take the batch's maximum timestamp.
+            long timestamp = batch.maxTimestamp();
+            long baseTimestamp = batch.deleteHorizonMs().orElse(timestamp);
+            long timestampDelta = timestamp - baseTimestamp;
+            int batchStart = out.beginBatch();
+            out.writeRecord(0, timestampDelta, null, encValue.size, headers);
+            writeValue(topicCtx, encValue, out.output());
+            releaseValue(encValue);
+            out.writeHeaders(headers);
+            for (int i = 1; i < numRecords; i++) {
+                out.writeRecord(i, timestampDelta, null, -1, NO_HEADERS);
+                out.writeHeaders(NO_HEADERS);
+            }
+            out.endBatch(batchStart, batch, baseTimestamp, timestamp, numRecords);
+        }
+        return MemoryRecords.readableRecords(out.finish());
+    }
+
+    /**
+     * Decrypt the records of an uncompressed batch, encrypted individually,
+     * over the batch itself. Each value is decrypted directly into its place
+     * in the rewritten record, which keeps the offset and timestamp deltas of
+     * the stored record, so offset gaps left by compaction are preserved. The
+     * batch keeps the header of the stored batch, with a new length and CRC.
+     * The records are walked in the input buffer, each being read before it
+     * is overwritten.
+     */
+    private void decryptRecords(TopicEncryptionContext topicCtx, MutableRecordBatch batch,
+            int batchPos, RecordWalker walker, DecryptionInput input, InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+
+        int batchStart = out.beginBatch(batchPos);
+        while (walker.next()) {
+            long timestampDelta = walker.timestampDelta();
+            int offsetDelta = walker.offsetDelta();
+            out.setReadLimit(walker.position() + walker.sizeInBytes());
+            if (!walker.hasValue()) {
+                out.writeRecord(offsetDelta, timestampDelta, walker.key(), -1, walker.headers());
+                out.writeHeaders(walker.headers());
+                continue;
+            }
+            Header[] headers = walker.headers();
+            readEncryptedValue(topicCtx, headers, walker.value(), input);
+            headers = removeEncryptionHeaders(headers);
+            if (input.codecId == CompressionType.NONE.id) {
+                int valueSize = input.decrypter.getPlaintextSize(input.ciphertext.remaining());
+                out.writeRecord(offsetDelta, timestampDelta, walker.key(), valueSize, headers);
+                input.decrypter.decrypt(input.ciphertext, input.iv, out.output());
+            } else {
+                ByteBuffer plaintext = decryptValue(topicCtx, input);
+                out.writeRecord(offsetDelta, timestampDelta, walker.key(), plaintext.remaining(), headers);
+                out.output().put(plaintext);
+                releasePlaintext(input, plaintext);
+            }
+            out.writeHeaders(headers);
+        }
+        out.endBatch(batchStart);
+    }
+
+    /**
+     * Decrypt a batch compressed by the producer, or a legacy batch, which
+     * cannot be rewritten in place. The records are decompressed once, into
+     * buffers re-used across batches. A batch encrypted as a single unit, its
+     * carrier batch having been compressed by the broker, is decrypted from
+     * its first record. Otherwise the batch is rebuilt, with the compression
+     * type, offsets and header fields of the stored batch, so offset gaps left
+     * by compaction are preserved, in a pooled buffer and then copied to the
+     * output.
+     */
+    private void decryptCompressedRecords(TopicEncryptionContext topicCtx, MutableRecordBatch batch,
+            int batchEnd, DecryptionInput input, InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+
+        try (CloseableIterator<Record> records = batch.streamingIterator(BUFFER_SUPPLIERS.get())) {
+            Record record = records.next();
+            if (findHeader(record.headers(), BATCH_HEADER) != null) {
+                decryptBatch(topicCtx, batch, record.headers(), record.value(), batchEnd, input, out);
+                return;
+            }
+            ByteBufferOutputStream tmp = new ByteBufferOutputStream(bufferPool.acquire(batch.sizeInBytes()));
+            MemoryRecordsBuilder builder = createMemoryRecsBuilder(batch, batch.compressionType(), tmp);
+            do {
+                if (record.hasValue()) {
+                    Header[] headers = record.headers();
+                    readEncryptedValue(topicCtx, headers, record.value(), input);
+                    ByteBuffer plaintext = decryptValue(topicCtx, input);
+                    headers = removeEncryptionHeaders(headers);
+                    builder.appendWithOffset(record.offset(), record.timestamp(), record.key(),
+                            plaintext, headers);
+                    releasePlaintext(input, plaintext);
+                } else {
+                    builder.appendWithOffset(record.offset(), record.timestamp(), record.key(),
+                            null, record.headers());
+                }
+                record = records.hasNext() ? records.next() : null;
+            } while (record != null);
+            writeBatch(builder, batch);
+            ByteBuffer decrypted = tmp.buffer();
+            decrypted.flip();
+            out.setReadLimit(batchEnd);
+            out.ensure(decrypted.remaining());
+            out.output().put(decrypted);
+            bufferPool.release(decrypted);
+        }
+    }
+
+    /**
+     * Decrypt a batch encrypted as a single unit over the batch in which it was
+     * stored. Unless it was compressed before encryption, the original batch is
+     * decrypted directly into place. The original batch takes the offsets,
+     * leader epoch and, for log append time topics, timestamp of the stored
+     * batch.
+     */
+    private void decryptBatch(TopicEncryptionContext topicCtx, MutableRecordBatch storedBatch,
+            Header[] encHeaders, ByteBuffer encValue, int batchEnd, DecryptionInput input, InPlaceWriter out)
+            throws EncSerDerException, GeneralSecurityException {
+
+        long lastOffset = storedBatch.lastOffset();
+        int leaderEpoch = storedBatch.partitionLeaderEpoch();
+        boolean logAppendTime = storedBatch.timestampType() == TimestampType.LOG_APPEND_TIME;
+        long maxTimestamp = storedBatch.maxTimestamp();
+
+        readEncryptedValue(topicCtx, encHeaders, encValue, input);
+        out.setReadLimit(batchEnd);
+        int start = out.output().position();
+        if (input.codecId == CompressionType.NONE.id) {
+            out.ensure(input.decrypter.getPlaintextSize(input.ciphertext.remaining()));
+            input.decrypter.decrypt(input.ciphertext, input.iv, out.output());
+        } else {
+            ByteBuffer plaintext = decryptValue(topicCtx, input);
+            out.ensure(plaintext.remaining());
+            out.output().put(plaintext);
+            releasePlaintext(input, plaintext);
+        }
+        ByteBuffer decrypted = out.output().duplicate();
+        decrypted.flip().position(start);
+        for (MutableRecordBatch batch : MemoryRecords.readableRecords(decrypted.slice()).batches()) {
+            batch.setLastOffset(lastOffset);
+            batch.setPartitionLeaderEpoch(leaderEpoch);
+            if (logAppendTime) {
+                batch.setMaxTimestamp(TimestampType.LOG_APPEND_TIME, maxTimestamp);
+            }
+        }
+    }
+
+    /**
+     * A value prepared for encryption: the plaintext, compressed if that
+     * reduces its size, the encrypter, segmented for large values, the IV and
+     * the size of the value once written. If the policy places the encryption
+     * metadata in a header, the metadata is that header. Re-used for the
+     * values of a partition.
+     */
+    private static final class EncryptedValue {
+        EncrypterDecrypter encrypter;
+        ByteBuffer plaintext;
+        int codecId;
+        boolean segmented;
+        byte[] iv;
+        int ciphertextLen;
+        int size;
+        Header metadata;
+    }
+
+    /**
+     * Prepare a plaintext value for encryption. The value is left uncompressed
+     * if compression does not reduce its size, and is encrypted in segments if
+     * larger than the policy's segment threshold. The metadata, recording the
+     * suite version, codec, segmentation, topic key ID and IV, either precedes
+     * the ciphertext in the serialized value or is placed in a META_HEADER
+     * header, leaving the ciphertext alone in the value.
+     */
+    private void prepareValue(TopicEncryptionContext topicCtx, EncrypterDecrypter encrypter,
+            PayloadCodec codec, ByteBuffer plaintext, EncryptedValue result)
+            throws EncSerDerException, GeneralSecurityException {
+        result.codecId = CompressionType.NONE.id;
+        ByteBuffer compressed = codec.compress(plaintext, pooledBuffers);
+        if (compressed != null) {
+            plaintext = compressed;
+            result.codecId = codec.getType().id;
+        }
+        result.segmented = false;
+        if (plaintext.remaining() > topicCtx.getPolicy().getSegmentThreshold()
+                && encrypter.getSegmented() != null) {
+            encrypter = encrypter.getSegmented();
+            result.segmented = true;
+        }
+        EncSerDer serDer = topicCtx.getCipherSuite().getSerDer();
+        result.encrypter = encrypter;
+        result.plaintext = plaintext;
+        result.iv = encrypter.createIv();
+        result.ciphertextLen = encrypter.getCiphertextSize(plaintext.remaining());
+        if (topicCtx.getPolicy().isHeaderMetadata()) {
+            result.size = result.ciphertextLen;
+            result.metadata = new RecordHeader(META_HEADER, new HeaderMetadata(serDer.getVersion(),
+                    result.codecId, result.segmented, result.iv, topicCtx.getKeyId()).serialize());
+        } else {
+            result.size = serDer.serializedSize(topicCtx.getKeyId().length, result.iv.length,
+                    result.ciphertextLen);
+            result.metadata = null;
+        }
+    }
+
+    /**
+     * Write a prepared value, encrypting it directly into the output, which
+     * must have room for its size.
+     */
+    private static void writeValue(TopicEncryptionContext topicCtx, EncryptedValue value, ByteBuffer out)
+            throws EncSerDerException, GeneralSecurityException {
+        if (value.metadata == null) {
+            topicCtx.getCipherSuite().getSerDer().serializeHeader(out, value.codecId, value.segmented,
+                    topicCtx.getKeyId(), value.iv, value.ciphertextLen);
+        }
+        value.encrypter.encrypt(value.plaintext, value.iv, out);
+    }
+
+    /**
+     * Return the buffer of a written value, if compressed, to the pool.
+     */
+    private void releaseValue(EncryptedValue value) {
+        if (value.codecId != CompressionType.NONE.id) {
+            bufferPool.release(value.plaintext);
+        }
+    }
+
+    /**
+     * What is required to decrypt a value: the decrypter, the IV and the
+     * ciphertext, a view on the value, and the codec with which the plaintext
+     * was compressed. Re-used for the values of a partition, it also holds
+     * the wrapped data key carried by the batch being decrypted, and its ID,
+     * for the records referencing it.
+     */
+    private static final class DecryptionInput {
+        EncrypterDecrypter decrypter;
+        int codecId;
+        byte[] iv;
+        ByteBuffer ciphertext;
+        byte[] batchDataKey;
+        byte[] batchDataKeyId;
+        ByteBuffer scratch;
+    }
+
+    /**
+     * Read the metadata of an encrypted value, from the META_HEADER header if
+     * present, otherwise from the serialized value, into input.
+     */
+    private void readEncryptedValue(TopicEncryptionContext topicCtx, Header[] headers,
+            ByteBuffer value, DecryptionInput input)
+            throws EncSerDerException, GeneralSecurityException {
+        CipherSuite suite;
+        boolean segmented;
+        byte[] keyId;
+        Header metaHeader = findHeader(headers, META_HEADER);
+        if (metaHeader != null) {
+            HeaderMetadata md = HeaderMetadata.deserialize(metaHeader.value());
+            keyId = md.getKeyId();
+            suite = cipherSuites.getCipherSuite(md.getVersion());
+            input.codecId = md.getCodec();
+            segmented = md.isSegmented();
+            input.iv = md.getIv();
+            input.ciphertext = value;
+        } else {
+            // the serialization version identifies the suite the value was encrypted with
+            suite = cipherSuites.getCipherSuite(EncSerDer.readVersion(value));
+            input.codecId = EncSerDer.readCodec(value);
+            segmented = EncSerDer.readSegmented(value);
+            keyId = EncSerDer.readKeyId(value);
+            // deserialize value into version, iv, ciphertext.
+            EncData md = suite.getSerDer().deserialize(value);
+            input.iv = md.getIv();
+            input.ciphertext = md.getCiphertextBuffer();
+        }
+        input.decrypter = getDecrypter(topicCtx, suite, keyId, headers, input);
+        if (segmented) {
+            input.decrypter = input.decrypter.getSegmented();
+            if (input.decrypter == null) {
+                throw new GeneralSecurityException(
+                        "Cipher suite " + suite.getName() + " does not support segmented data");
+            }
+        }
+    }
+
+    /**
+     * Decrypt an encrypted value, decompressing the plaintext if it was
+     * compressed. The ciphertext is read in place and decrypted into the
+     * scratch buffer of the input, and decompressed into a pooled buffer.
+     * The buffer returned is ready to be read, and is to be passed to
+     * releasePlaintext() once read.
+     */
+    private ByteBuffer decryptValue(TopicEncryptionContext topicCtx, DecryptionInput input)
+            throws EncSerDerException, GeneralSecurityException {
+        EncrypterDecrypter decrypter = input.decrypter;
+        input.scratch = prepareBuffer(input.scratch, decrypter.getPlaintextSize(input.ciphertext.remaining()));
+        decrypter.decrypt(input.ciphertext, input.iv, input.scratch);
+        input.scratch.flip();
+        return topicCtx.getCodec().decompress(input.codecId, input.scratch, pooledBuffers);
+    }
+
+    /**
+     * Return the buffer of a decrypted value to the pool, unless it is the
+     * scratch buffer of the input, kept for the next value.
+     */
+    private void releasePlaintext(DecryptionInput input, ByteBuffer plaintext) {
+        if (plaintext != input.scratch) {
+            bufferPool.release(plaintext);
+        }
+    }
+
+    /**
+     * Returns the data key, wrapped by the topic key, with which to perform
+     * the given number of encryptions. Data is never encrypted with the topic
+     * key itself, see TopicEncryptionContext.createDataKeys().
+     */
+    private static DataKey getDataKey(TopicEncryptionContext topicCtx, int numEncryptions)
+            throws GeneralSecurityException {
+        return topicCtx.getDataKeys().getDataKey(numEncryptions);
+    }
+
+    private static Header getDataKeyHeader(DataKey dek) {
+        return new RecordHeader(DEK_HEADER, dek.getWrappedKey());
+    }
+
+    /**
+     * Returns the header with which the records of a batch following its
+     * first encrypted record reference the data key, or null if each record
+     * carries the wrapped data key: unless the topic is declared not to be
+     * compacted, compaction may remove the first record of a batch.
+     */
+    private static Header getDataKeyRefHeader(TopicEncryptionContext topicCtx, DataKey dek) {
+        if (!topicCtx.getPolicy().isDeclaredUncompacted()) {
+            return null;
+        }
+        return new RecordHeader(DEK_REF_HEADER, dek.getId());
+    }
+
+    /**
+     * Returns the decrypter for a record encrypted with the given suite and
+     * the version of the topic key with the given ID: that of the data key
+     * carried in the record headers, or referenced by them and carried by an
+     * earlier record of the batch, if present, otherwise that of the topic
+     * key. A data key carried by the record is recorded in input for the
+     * records following it.
+     *
+     * @throws GeneralSecurityException if the referenced data key is not that of the batch
+     */
+    private static EncrypterDecrypter getDecrypter(TopicEncryptionContext topicCtx,
+            CipherSuite suite, byte[] keyId, Header[] headers, DecryptionInput input)
+            throws GeneralSecurityException {
+        Header dekHeader = findHeader(headers, DEK_HEADER);
+        byte[] wrappedKey;
+        if (dekHeader != null) {
+            wrappedKey = dekHeader.value();
+            input.batchDataKey = wrappedKey;
+            input.batchDataKeyId = null;
+        } else {
+            Header dekRefHeader = findHeader(headers, DEK_REF_HEADER);
+            if (dekRefHeader == null) {
+                return topicCtx.getDecrypter(suite, keyId);
+            }
+            wrappedKey = input.batchDataKey;
+            if (wrappedKey != null && input.batchDataKeyId == null) {
+                input.batchDataKeyId = DataKeyManager.dataKeyId(wrappedKey);
+            }
+            if (wrappedKey == null || !Arrays.equals(input.batchDataKeyId, dekRefHeader.value())) {
+                throw new GeneralSecurityException("Data key referenced by a record is not carried by its batch");
+            }
+        }
+        return topicCtx.getDataKeys(keyId).getDecrypter(wrappedKey, suite);
+    }
+
+    private static Header[] removeEncryptionHeaders(Header[] headers) {
+        return removeHeader(removeHeader(removeHeader(headers, DEK_HEADER), DEK_REF_HEADER), META_HEADER);
+    }
+
+    private static Header findHeader(Header[] headers, String key) {
+        for (Header header : headers) {
+            if (key.equals(header.key())) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    private static Header[] addHeader(Header[] headers, Header header) {
+        if (header == null) {
+            return headers;
+        }
+        Header[] result = Arrays.copyOf(headers, headers.length + 1);
+        result[headers.length] = header;
+        return result;
+    }
+
+    private static Header[] removeHeader(Header[] headers, String key) {
+        if (findHeader(headers, key) == null) {
+            return headers;
+        }
+        return Arrays.stream(headers)
+                .filter(h -> !key.equals(h.key()))
+                .toArray(Header[]::new);
+    }
+
+    private static int countRecords(RecordBatch batch) {
+        Integer count = batch.countOrNull();
+        if (count != null) {
+            return count;
+        }
+        // older message formats do not record the count
+        int n = 0;
+        for (@SuppressWarnings("unused") Record r : batch) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns a buffer with exactly size bytes remaining, re-using the given
+     * buffer if it is large enough, and otherwise replacing it with one from
+     * the pool, to which it is returned.
+     */
+    private ByteBuffer prepareBuffer(ByteBuffer buf, int size) {
+        if (buf == null || buf.capacity() < size) {
+            if (buf != null) {
+                bufferPool.release(buf);
+            }
+            buf = bufferPool.acquire(size);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns an upper bound of the size of a batch whose record values are
+     * encrypted individually.
+     */
+    private static int getEncryptedBatchSize(TopicEncryptionContext topicCtx, RecordBatch batch,
+            int recordOverhead) {
+        return toCapacity(batch.sizeInBytes() + (long) countRecords(batch) * recordOverhead
+                + getSegmentOverhead(topicCtx, batch.sizeInBytes()));
+    }
+
+    /**
+     * Returns an upper bound of the growth of a record whose value is
+     * encrypted individually: the metadata and authentication tag, the data key
+     * header, and the growth of the record's length fields.
+     */
+    private static int getRecordOverhead(TopicEncryptionContext topicCtx) {
+        int overhead = getEncryptedSize(topicCtx, 0) + getDataKeyHeaderSize(topicCtx);
+        // the value length, record length and header count fields may grow
+        return overhead + 2 * ByteUtils.sizeOfVarint(overhead) + 1;
+    }
+
+    /**
+     * Returns the size of an encrypted, uncompressed value of the given
+     * plaintext size, including its metadata, whether serialized with the
+     * value or in a header.
+     */
+    private static int getEncryptedSize(TopicEncryptionContext topicCtx, int plaintextSize) {
+        EncrypterDecrypter encrypter = topicCtx.getEncrypter();
+        if (plaintextSize > topicCtx.getPolicy().getSegmentThreshold() && encrypter.getSegmented() != null) {
+            encrypter = encrypter.getSegmented();
+        }
+        int ciphertextSize = encrypter.getCiphertextSize(plaintextSize);
+        if (topicCtx.getPolicy().isHeaderMetadata()) {
+            return ciphertextSize + getHeaderSize(META_HEADER,
+                    HeaderMetadata.serializedSize(encrypter.getIvSize(), topicCtx.getKeyId().length));
+        }
+        return topicCtx.getCipherSuite().getSerDer().serializedSize(topicCtx.getKeyId().length,
+                encrypter.getIvSize(), ciphertextSize);
+    }
+
+    /**
+     * Returns an upper bound of the additional authentication tags of values,
+     * of the given total size, encrypted in segments.
+     */
+    private static int getSegmentOverhead(TopicEncryptionContext topicCtx, int size) {
+        EncrypterDecrypter encrypter = topicCtx.getEncrypter();
+        if (size <= topicCtx.getPolicy().getSegmentThreshold() || encrypter.getSegmented() == null) {
+            return 0;
+        }
+        return encrypter.getSegmented().getCiphertextSize(size) - encrypter.getCiphertextSize(size);
+    }
+
+    /**
+     * Returns the size of the header carrying the wrapped data key, an upper
+     * bound of the per-record cost of data keys: 56 bytes, on each record
+     * with record granularity unless the topic is declared not to be
+     * compacted, in which case the first record of a batch carries it and
+     * the others a 23-byte DEK_REF_HEADER.
+     */
+    private static int getDataKeyHeaderSize(TopicEncryptionContext topicCtx) {
+        return getHeaderSize(DEK_HEADER, DataKeyManager.WRAPPED_KEY_SIZE);
+    }
+
+    private static int getHeaderSize(String key, int valueSize) {
+        int keySize = key.length(); // header keys are ASCII
+        return ByteUtils.sizeOfVarint(keySize) + keySize + ByteUtils.sizeOfVarint(valueSize) + valueSize;
+    }
+
+    /**
+     * The size of a partition's records is bounded by the maximum request
+     * size, so fits in an int.
+     */
+    private static int toCapacity(long size) {
+        return (int) Math.min(size, Integer.MAX_VALUE - 8);
+    }
+
+    private static boolean isEmpty(RecordBatch batch) {
+        Integer count = batch.countOrNull();
+        return count != null && count == 0;
+    }
+
+    /**
+     * Creates a builder for a batch replacing the given batch. The new batch
+     * keeps the base offset and the header fields of the original: producer
+     * id, epoch and base sequence, transactional flag, partition leader epoch,
+     * timestamp type and delete horizon. Only the compression may differ.
+     * Records are to be appended with their original offsets. The batch is
+     * written to the output stream at its current position, so the batches of
+     * a partition share one buffer.
+     */
+    private static MemoryRecordsBuilder createMemoryRecsBuilder(RecordBatch batch,
+            CompressionType compression, ByteBufferOutputStream out) {
+        TimestampType timestampType = batch.timestampType();
+        if (timestampType == TimestampType.NO_TIMESTAMP_TYPE) {
+            // legacy batches are converted to the current format
+            timestampType = TimestampType.CREATE_TIME;
+        }
+        long logAppendTime = timestampType == TimestampType.LOG_APPEND_TIME
+                ? batch.maxTimestamp()
+                : RecordBatch.NO_TIMESTAMP;
+        return new MemoryRecordsBuilder(out,
+                RecordBatch.CURRENT_MAGIC_VALUE,
+                compression,
+                timestampType,
+                batch.baseOffset(),
+                logAppendTime,
+                batch.producerId(),
+                batch.producerEpoch(),
+                batch.baseSequence(),
+                batch.isTransactional(),
+                false, // isControlBatch
+                batch.partitionLeaderEpoch(),
+                Integer.MAX_VALUE, // writeLimit, the builder is never asked whether it is full
+                batch.deleteHorizonMs().orElse(RecordBatch.NO_TIMESTAMP));
+    }
+
+    /**
+     * Complete the batch replacing the given batch in the output stream. Compaction
+     * may have removed the last records of the original, leaving its last
+     * offset beyond that of its last record. The original last offset is
+     * restored, so consumers resume fetching after the batch.
+     */
+    private static void writeBatch(MemoryRecordsBuilder builder, RecordBatch batch) {
+        builder.overrideLastOffset(batch.lastOffset());
+        builder.close();
     }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.DefaultRecord;
+import org.apache.kafka.common.record.DefaultRecordBatch;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.ByteUtils;
+import org.apache.kafka.common.utils.Crc32C;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Writes the decrypted batches of a partition over the fetched records they
+ * are decrypted from. Decryption shrinks records, so the output, written from
+ * the start of the records buffer, never overtakes the input still to be
+ * read. Callers declare, with setReadLimit(), the end of the input consumed
+ * so far; a write that would pass it, as when a payload compressed before
+ * encryption is decompressed, moves the output to a pooled buffer, where the
+ * remaining batches are written. The output also starts in a pooled buffer if
+ * the records buffer is read-only. Encryption, which grows records, writes
+ * its output to a pooled buffer from the start.
+ *
+ * Batches are rewritten in the v2 format: beginBatch() reserves room for
+ * the batch header, the records are written with writeRecord() and
+ * writeHeaders(), and endBatch() writes the header of the original batch
+ * with the new length and CRC, or a new header for the batch replacing it.
+ */
+class InPlaceWriter {
+
+    // batch header fields not exposed by DefaultRecordBatch
+    private static final int ATTRIBUTES_OFFSET = DefaultRecordBatch.CRC_OFFSET + 4;
+
+    private final BufferPool pool;
+    private final ByteBuffer in;
+    private final byte[] batchHeader = new byte[DefaultRecordBatch.RECORD_BATCH_OVERHEAD];
+    private ByteBuffer out;
+    private boolean inPlace;
+    private int readLimit;
+
+    /**
+     * @param records the fetched records, from position to limit
+     * @param pool    the pool from which to take a buffer should the output move
+     */
+    InPlaceWriter(ByteBuffer records, BufferPool pool) {
+        this.pool = pool;
+        this.in = records.slice();
+        inPlace = !in.isReadOnly();
+        out = inPlace ? in.duplicate() : pool.acquire(in.limit());
+    }
+
+    /**
+     * As the other constructor, the output being written to a pooled buffer
+     * of at least the given capacity rather than over the records.
+     */
+    InPlaceWriter(ByteBuffer records, BufferPool pool, int capacity) {
+        this.pool = pool;
+        this.in = records.slice();
+        inPlace = false;
+        out = pool.acquire(capacity);
+    }
+
+    /**
+     * Returns the fetched records, positioned at 0. Positions passed to this
+     * writer are relative to the start of this buffer.
+     */
+    ByteBuffer input() {
+        return in.duplicate();
+    }
+
+    /**
+     * Returns the output, positioned where the next bytes are to be written.
+     * Its remaining bytes are only valid up to the size last ensured.
+     */
+    ByteBuffer output() {
+        return out;
+    }
+
+    /**
+     * Indicates whether the output is still written over the input.
+     */
+    boolean isInPlace() {
+        return inPlace;
+    }
+
+    /**
+     * Declare that the input up to the given position has been read, or is
+     * held in the objects of the record, or batch, being written.
+     */
+    void setReadLimit(int position) {
+        readLimit = position;
+    }
+
+    /**
+     * Ensure the output can take size more bytes, moving it out of the input
+     * buffer, or growing it, as required.
+     */
+    void ensure(int size) {
+        int required = out.position() + size;
+        if (inPlace) {
+            if (required <= readLimit) {
+                return;
+            }
+            // the unread input must be preserved
+            inPlace = false;
+            moveTo(pool.acquire(Math.max(required, in.limit())));
+        } else if (required > out.capacity()) {
+            ByteBuffer old = out;
+            moveTo(pool.acquire(Math.max(required, old.capacity() * 2)));
+            pool.release(old);
+        }
+    }
+
+    private void moveTo(ByteBuffer dest) {
+        ByteBuffer written = out.duplicate();
+        written.flip();
+        dest.put(written);
+        out = dest;
+    }
+
+    /**
+     * Begin the batch at the given input position, saving its header and
+     * reserving room for the header in the output.
+     *
+     * @return the output position of the batch, to be passed to endBatch()
+     */
+    int beginBatch(int position) {
+        in.get(position, batchHeader);
+        setReadLimit(position + batchHeader.length);
+        ensure(batchHeader.length);
+        int batchStart = out.position();
+        out.position(batchStart + batchHeader.length);
+        return batchStart;
+    }
+
+    /**
+     * Begin a batch whose header is not that of an input batch, reserving
+     * room for the header in the output.
+     *
+     * @return the output position of the batch, to be passed to
+     *         endBatch(int, RecordBatch, long, long, int)
+     */
+    int beginBatch() {
+        ensure(DefaultRecordBatch.RECORD_BATCH_OVERHEAD);
+        int batchStart = out.position();
+        out.position(batchStart + DefaultRecordBatch.RECORD_BATCH_OVERHEAD);
+        return batchStart;
+    }
+
+    /**
+     * Complete the uncompressed batch begun with beginBatch() at the given
+     * output position, which replaces the given batch. The header takes the
+     * offsets, producer id, epoch and base sequence, transactional flag,
+     * partition leader epoch, timestamp type and delete horizon of the batch
+     * replaced, legacy batches taking the create time type.
+     */
+    void endBatch(int batchStart, RecordBatch replaced, long baseTimestamp, long maxTimestamp,
+            int numRecords) {
+        TimestampType timestampType = replaced.timestampType();
+        if (timestampType == TimestampType.NO_TIMESTAMP_TYPE) {
+            timestampType = TimestampType.CREATE_TIME;
+        }
+        ByteBuffer batch = out.duplicate();
+        batch.position(batchStart);
+        DefaultRecordBatch.writeHeader(batch, replaced.baseOffset(),
+                (int) (replaced.lastOffset() - replaced.baseOffset()), out.position() - batchStart,
+                RecordBatch.CURRENT_MAGIC_VALUE, CompressionType.NONE, timestampType, baseTimestamp,
+                maxTimestamp, replaced.producerId(), replaced.producerEpoch(), replaced.baseSequence(),
+                replaced.isTransactional(), false, replaced.deleteHorizonMs().isPresent(),
+                replaced.partitionLeaderEpoch(), numRecords);
+    }
+
+    /**
+     * Complete the batch begun at the given output position, writing the
+     * saved header with the length and CRC of the rewritten batch.
+     */
+    void endBatch(int batchStart) {
+        int size = out.position() - batchStart;
+        out.put(batchStart, batchHeader);
+        out.putInt(batchStart + Records.SIZE_OFFSET, size - Records.LOG_OVERHEAD);
+        ByteBuffer batch = out.duplicate();
+        batch.position(batchStart);
+        long crc = Crc32C.compute(batch, ATTRIBUTES_OFFSET, size - ATTRIBUTES_OFFSET);
+        out.putInt(batchStart + DefaultRecordBatch.CRC_OFFSET, (int) crc);
+    }
+
+    /**
+     * Write a record up to its value, ensuring room for the whole record. The
+     * caller then writes valueSize bytes of value, if not -1, followed by the
+     * headers with writeHeaders().
+     */
+    void writeRecord(int offsetDelta, long timestampDelta, ByteBuffer key, int valueSize,
+            Header[] headers) {
+        int keySize = key == null ? -1 : key.remaining();
+        int bodySize = DefaultRecord.sizeOfBodyInBytes(offsetDelta, timestampDelta, keySize,
+                valueSize, headers);
+        ensure(ByteUtils.sizeOfVarint(bodySize) + bodySize);
+        ByteUtils.writeVarint(bodySize, out);
+        out.put((byte) 0); // attributes
+        ByteUtils.writeVarlong(timestampDelta, out);
+        ByteUtils.writeVarint(offsetDelta, out);
+        ByteUtils.writeVarint(keySize, out);
+        if (key != null) {
+            // the key moves towards the start of the buffer, so may overlap its new position
+            out.put(key.duplicate());
+        }
+        ByteUtils.writeVarint(valueSize, out);
+    }
+
+    /**
+     * Write the headers of the record begun with writeRecord().
+     */
+    void writeHeaders(Header[] headers) {
+        ByteUtils.writeVarint(headers.length, out);
+        for (Header header : headers) {
+            byte[] key = Utils.utf8(header.key());
+            ByteUtils.writeVarint(key.length, out);
+            out.put(key);
+            byte[] value = header.value();
+            if (value == null) {
+                ByteUtils.writeVarint(-1, out);
+            } else {
+                ByteUtils.writeVarint(value.length, out);
+                out.put(value);
+            }
+        }
+    }
+
+    /**
+     * Copy size bytes of the input, as those of a batch passed through
+     * unchanged, to the output.
+     */
+    void copy(int position, int size) {
+        ensure(size);
+        out.put(in.slice(position, size));
+    }
+
+    /**
+     * Write a batch already decrypted, as one taken from a cache, to the
+     * output.
+     */
+    void write(byte[] batch) {
+        ensure(batch.length);
+        out.put(batch);
+    }
+
+    /**
+     * Returns the records written, ready to be read.
+     */
+    ByteBuffer finish() {
+        ByteBuffer written = out.duplicate();
+        written.flip();
+        return written;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+/**
+ * Configuration of the cache in which the Encryption Module holds the keys,
+ * and related state, of encrypted topics.
+ */
+public class KeyCacheConfig {
+
+    public static final long DEFAULT_TTL_MS = 60 * 60 * 1000L;
+    public static final long DEFAULT_REFRESH_AHEAD_MS = 5 * 60 * 1000L;
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private long ttlMs = DEFAULT_TTL_MS;
+    private long refreshAheadMs = DEFAULT_REFRESH_AHEAD_MS;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Returns the time in milliseconds after which a topic's key is retrieved
+     * from the KMS again.
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public KeyCacheConfig setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+        return this;
+    }
+
+    /**
+     * Returns the time in milliseconds before expiry from which a topic's key
+     * is retrieved again in the background when the topic is used, so the
+     * topic's requests never wait for the KMS.
+     */
+    public long getRefreshAheadMs() {
+        return refreshAheadMs;
+    }
+
+    public KeyCacheConfig setRefreshAheadMs(long refreshAheadMs) {
+        this.refreshAheadMs = refreshAheadMs;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of topics whose keys are cached. The least
+     * recently used topics are evicted first.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public KeyCacheConfig setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Check the configuration is consistent.
+     *
+     * @return this configuration
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public KeyCacheConfig validate() {
+        if (ttlMs < 1) {
+            throw new IllegalArgumentException("Key cache TTL must be positive.");
+        }
+        if (refreshAheadMs < 0 || refreshAheadMs >= ttlMs) {
+            throw new IllegalArgumentException(
+                    "Key cache refresh-ahead time must be at least 0 and less than the TTL.");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Key cache size must be positive.");
+        }
+        return this;
+    }
+}
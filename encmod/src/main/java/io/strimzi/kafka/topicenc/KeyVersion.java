@@ -0,0 +1,67 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.DataKeyManager;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+
+/**
+ * A version of a topic key, identified by its key ID, with the decrypters
+ * initialized with it and the manager of the data keys it wraps.
+ */
+class KeyVersion {
+
+    private final SecretKey key;
+    private final byte[] keyId;
+    private final DataKeyManager dataKeys;
+
+    // decrypters for data encrypted with this key under each suite
+    private final Map<String, EncrypterDecrypter> decrypters = new ConcurrentHashMap<>();
+
+    KeyVersion(SecretKey key, DataKeyManager dataKeys) {
+        this.key = key;
+        this.keyId = EncUtils.keyId(key);
+        this.dataKeys = dataKeys;
+    }
+
+    byte[] getKeyId() {
+        return keyId;
+    }
+
+    DataKeyManager getDataKeys() {
+        return dataKeys;
+    }
+
+    /**
+     * Returns the decrypter, initialized with this key, for data encrypted
+     * with the given cipher suite.
+     */
+    EncrypterDecrypter getDecrypter(CipherSuite suite) throws GeneralSecurityException {
+        EncrypterDecrypter dec = decrypters.get(suite.getName());
+        if (dec == null) {
+            dec = suite.createEncrypterDecrypter(key);
+            EncrypterDecrypter existing = decrypters.putIfAbsent(suite.getName(), dec);
+            if (existing != null) {
+                dec = existing;
+            }
+        }
+        return dec;
+    }
+
+    /**
+     * Register a decrypter created elsewhere, such as the topic encrypter.
+     */
+    void putDecrypter(CipherSuite suite, EncrypterDecrypter dec) {
+        decrypters.put(suite.getName(), dec);
+    }
+}
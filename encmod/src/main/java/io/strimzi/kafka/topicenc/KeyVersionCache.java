@@ -0,0 +1,132 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.DataKeyManager;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+
+/**
+ * The versions of a topic's key with which data may have been encrypted,
+ * indexed by key ID. Data records the ID of the key that encrypted it, so the
+ * key version for data written before a key rotation is found with a single
+ * lookup.
+ *
+ * Versions are retrieved from the KMS only when data references a key ID not
+ * in the cache, and all available versions are retrieved at once. A key ID
+ * the KMS does not know is remembered as unknown, so data encrypted with a
+ * lost key does not cause a KMS call per batch. The cache is bounded, the
+ * least recently used versions being evicted first.
+ *
+ * Where the topic key is derived from the KMS key, each version retrieved is
+ * derived in the same way.
+ */
+class KeyVersionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyVersionCache.class);
+
+    static final int DEFAULT_SIZE = 16;
+
+    private final TopicPolicy policy;
+    private final CipherSuite suite;
+    private final String derivationContext;
+
+    // a null value marks a key ID unknown to the KMS
+    private final Map<ByteBuffer, KeyVersion> versions;
+
+    /**
+     * @param policy            the topic policy, referencing the key in its KMS
+     * @param suite             the cipher suite of the topic
+     * @param derivationContext the context with which the topic key is
+     *                          derived from the KMS key, or null if not derived
+     * @param maxSize           the maximum number of key IDs held
+     */
+    KeyVersionCache(TopicPolicy policy, CipherSuite suite, String derivationContext, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Key version cache size must be positive.");
+        }
+        this.policy = policy;
+        this.suite = suite;
+        this.derivationContext = derivationContext;
+        this.versions = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, KeyVersion> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Add a key version, such as the current version of the key.
+     */
+    synchronized void put(KeyVersion version) {
+        if (version.getKeyId().length > 0) {
+            versions.put(ByteBuffer.wrap(version.getKeyId()), version);
+        }
+    }
+
+    /**
+     * Returns the version of the key with the given ID, retrieving the key's
+     * versions from the KMS if the ID has not been seen before.
+     *
+     * @throws GeneralSecurityException if no version of the key has the ID
+     */
+    synchronized KeyVersion get(byte[] keyId) throws GeneralSecurityException {
+        ByteBuffer id = ByteBuffer.wrap(keyId);
+        KeyVersion version = versions.get(id);
+        if (version == null && !versions.containsKey(id)) {
+            load();
+            version = versions.get(id);
+            if (version == null) {
+                versions.put(id, null);
+            }
+        }
+        if (version == null) {
+            throw new GeneralSecurityException(String.format(
+                    "Data encrypted with key %s, not a known version of key %s",
+                    Base64.getEncoder().encodeToString(keyId), policy.getKeyReference()));
+        }
+        return version;
+    }
+
+    private void load() throws GeneralSecurityException {
+        List<SecretKey> keys;
+        try {
+            keys = policy.getKms().getKeyVersions(policy.getKeyReference());
+        } catch (KmsException e) {
+            throw new GeneralSecurityException(
+                    "Error retrieving versions of key " + policy.getKeyReference(), e);
+        }
+        for (SecretKey kmsKey : keys) {
+            SecretKey key = derivationContext != null
+                    ? EncUtils.deriveAesKey(kmsKey, derivationContext)
+                    : kmsKey;
+            // data keys of earlier versions are only unwrapped
+            KeyVersion version = new KeyVersion(key, new DataKeyManager(key, suite,
+                    policy.getDekMaxRecords(), policy.getDekMaxAgeMs()));
+            ByteBuffer id = ByteBuffer.wrap(version.getKeyId());
+            if (id.hasRemaining() && versions.get(id) == null) {
+                versions.put(id, version);
+            }
+        }
+        LOGGER.debug("Retrieved {} versions of key {}", keys.size(), policy.getKeyReference());
+    }
+}
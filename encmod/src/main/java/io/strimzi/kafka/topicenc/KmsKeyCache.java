@@ -0,0 +1,75 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+
+/**
+ * The keys retrieved from the KMS from which topic keys are derived, shared
+ * by all topics whose policies reference them, so a key is retrieved once
+ * however many topics derive their keys from it. A key is retrieved again
+ * once older than the maximum age, and concurrent retrievals of the same key
+ * are coalesced into one. Instances are thread safe.
+ */
+class KmsKeyCache {
+
+    private record Key(KeyMgtSystem kms, String keyReference) {
+    }
+
+    private static final class Entry {
+        SecretKey key;
+        long loadedNanos;
+    }
+
+    private final long maxAgeNanos;
+    private final LongSupplier clock;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxAgeNanos the age in nanoseconds at which a key is retrieved again
+     * @param clock       the source of time, in nanoseconds
+     */
+    KmsKeyCache(long maxAgeNanos, LongSupplier clock) {
+        this.maxAgeNanos = maxAgeNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the key with the given reference, retrieving it from the KMS if
+     * not cached or too old.
+     */
+    SecretKey get(KeyMgtSystem kms, String keyReference) throws KmsException {
+        Entry entry = entries.computeIfAbsent(new Key(kms, keyReference), k -> new Entry());
+        synchronized (entry) {
+            long now = clock.getAsLong();
+            if (entry.key == null || now - entry.loadedNanos >= maxAgeNanos) {
+                entry.key = kms.getKey(keyReference);
+                entry.loadedNanos = now;
+            }
+            return entry.key;
+        }
+    }
+
+    /**
+     * Evict the keys with the given reference, as when a key is revoked.
+     */
+    void purge(String keyReference) {
+        entries.keySet().removeIf(k -> keyReference.equals(k.keyReference()));
+    }
+
+    /**
+     * Evict all keys, as when the policies have changed.
+     */
+    void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import io.strimzi.kafka.topicenc.ser.EncSerDerException;
+
+/**
+ * Runs the encryption or decryption of the partitions of a request. With a
+ * parallelism greater than one, partitions are processed concurrently by a
+ * fork/join pool, the calling thread processing one partition itself. Each
+ * task writes its result back into its own partition, so the order of the
+ * request is unaffected.
+ *
+ * Requests with few bytes are processed sequentially on the calling thread,
+ * where the cost of dispatching tasks would outweigh the gain.
+ */
+class PartitionExecutor {
+
+    /**
+     * The number of bytes in a request below which partitions are processed
+     * sequentially.
+     */
+    static final int PARALLEL_THRESHOLD_BYTES = 64 * 1024;
+
+    /**
+     * The encryption or decryption of a single partition.
+     */
+    interface PartitionTask {
+        void run() throws EncSerDerException, GeneralSecurityException;
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism the number of threads with which to process partitions.
+     *                    1 processes all partitions on the calling thread.
+     */
+    PartitionExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        // the calling thread processes one partition, so needs no pool thread
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism - 1) : null;
+    }
+
+    /**
+     * Run all tasks, returning when all have completed. If any task fails, the
+     * exception of the first failed task, in task order, is thrown.
+     *
+     * @param tasks      the tasks
+     * @param totalBytes the number of bytes the tasks process
+     */
+    void runAll(List<PartitionTask> tasks, long totalBytes)
+            throws EncSerDerException, GeneralSecurityException {
+        if (pool == null || tasks.size() < 2 || totalBytes < PARALLEL_THRESHOLD_BYTES) {
+            for (PartitionTask task : tasks) {
+                task.run();
+            }
+            return;
+        }
+
+        List<ForkJoinTask<Void>> forked = new ArrayList<>(tasks.size() - 1);
+        for (PartitionTask task : tasks.subList(1, tasks.size())) {
+            forked.add(pool.submit(() -> {
+                task.run();
+                return null;
+            }));
+        }
+        Exception failure = null;
+        try {
+            tasks.get(0).run();
+        } catch (EncSerDerException | GeneralSecurityException | RuntimeException e) {
+            failure = e;
+        }
+        // wait for all tasks, even after a failure, as they modify the request
+        for (ForkJoinTask<Void> task : forked) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new GeneralSecurityException("Interrupted processing partitions", e);
+                }
+            }
+        }
+        if (failure != null) {
+            rethrow(failure);
+        }
+    }
+
+    /**
+     * Stop the threads of the pool, once their tasks have completed.
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static void rethrow(Exception e) throws EncSerDerException, GeneralSecurityException {
+        if (e instanceof EncSerDerException) {
+            throw (EncSerDerException) e;
+        } else if (e instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        throw new IllegalStateException("Error processing partitions", e);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.strimzi.kafka.topicenc.policy.PolicyRepository;
+
+/**
+ * The decisions whether topics are encrypted, keyed on topic names exactly as
+ * they appear in requests, so deciding for a known topic is a single lookup
+ * with no normalization of its name. Unencrypted topics are cached as well as
+ * encrypted ones.
+ *
+ * Each decision records the generation of the policies it was taken on, and
+ * decisions of an earlier generation are taken again. When the generation
+ * changes, a listener is notified, so state derived from the earlier policies
+ * can be discarded. The cache is bounded, being cleared when full, as topic
+ * names are chosen by clients. Instances are thread safe.
+ */
+class PolicyDecisions {
+
+    static final int DEFAULT_MAX_SIZE = 100_000;
+
+    /**
+     * The decision for a topic: the key under which an encrypted topic's
+     * context is cached, or null if the topic is not encrypted.
+     */
+    private record Decision(String topicKey, long generation) {
+    }
+
+    private final PolicyRepository policyRepo;
+    private final int maxSize;
+    private final Runnable onChange;
+    private final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+    private volatile long generation;
+
+    /**
+     * @param policyRepo the topic policies
+     * @param maxSize    the number of topics above which the cache is cleared
+     * @param onChange   called when the generation of the policies changes
+     */
+    PolicyDecisions(PolicyRepository policyRepo, int maxSize, Runnable onChange) {
+        this.policyRepo = policyRepo;
+        this.maxSize = maxSize;
+        this.onChange = onChange;
+        this.generation = policyRepo.getGeneration();
+    }
+
+    /**
+     * Returns the key under which the context of a topic is cached, or null
+     * if the topic is not encrypted.
+     *
+     * @param topicName the topic name as it appears in a request
+     */
+    String getTopicKey(String topicName) {
+        long generation = policyRepo.getGeneration();
+        if (generation != this.generation) {
+            changed(generation);
+        }
+        Decision decision = decisions.get(topicName);
+        if (decision == null || decision.generation() != generation) {
+            decision = decide(topicName, generation);
+        }
+        return decision.topicKey();
+    }
+
+    /**
+     * Indicates whether a topic is encrypted, if decided, without deciding.
+     */
+    boolean isEncrypted(String topicName) {
+        Decision decision = decisions.get(topicName);
+        return decision != null && decision.topicKey() != null;
+    }
+
+    private synchronized void changed(long newGeneration) {
+        if (newGeneration != generation) {
+            decisions.clear();
+            onChange.run();
+            generation = newGeneration;
+        }
+    }
+
+    private Decision decide(String topicName, long generation) {
+        String topicKey = topicName.toLowerCase();
+        Decision decision = new Decision(
+                policyRepo.getTopicPolicy(topicKey) != null ? topicKey : null, generation);
+        if (decisions.size() >= maxSize) {
+            decisions.clear();
+        }
+        decisions.put(topicName, decision);
+        return decision;
+    }
+}
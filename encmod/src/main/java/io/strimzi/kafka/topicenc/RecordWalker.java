@@ -0,0 +1,281 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.InvalidRecordException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.DefaultRecordBatch;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.ByteUtils;
+
+/**
+ * A cursor over the records of uncompressed v2 batches, reading the fields of
+ * each record in a single pass directly from the batch's wire layout. The key
+ * and value are exposed as views on the records buffer, re-used from one
+ * record to the next, so walking a batch creates no object per record other
+ * than the headers of records which have them. One instance serves all the
+ * batches of a partition; it is not thread safe.
+ *
+ * The walker is itself the current Record, so code handling the Records of
+ * a batch's iterator, as for compressed batches, handles walked records too.
+ * Unlike those Records, it is only valid until the cursor is advanced, and
+ * the timestamp delta of a record is available even in a log append time
+ * batch.
+ */
+class RecordWalker implements Record {
+
+    // batch header field not exposed by DefaultRecordBatch: after the CRC,
+    // the attributes and the last offset delta
+    private static final int BASE_TIMESTAMP_OFFSET = DefaultRecordBatch.CRC_OFFSET + 4 + 2 + 4;
+
+    private final ByteBuffer buf;
+    private final ByteBuffer key;
+    private final ByteBuffer value;
+
+    // the batch
+    private long baseOffset;
+    private long baseTimestamp;
+    private long logAppendTime;
+    private int baseSequence;
+    private int remaining;
+
+    // the current record
+    private int position;
+    private int sizeInBytes;
+    private long timestampDelta;
+    private int offsetDelta;
+    private boolean hasKey;
+    private boolean hasValue;
+    private Header[] headers;
+
+    /**
+     * @param records the records, from position to limit. Positions passed
+     *                to this walker are relative to the start of this buffer.
+     */
+    RecordWalker(ByteBuffer records) {
+        this.buf = records.slice();
+        this.key = buf.duplicate();
+        this.value = buf.duplicate();
+    }
+
+    /**
+     * Indicates whether the records of a batch can be walked: those of
+     * uncompressed v2 batches.
+     */
+    static boolean canWalk(RecordBatch batch) {
+        return batch.magic() >= RecordBatch.MAGIC_VALUE_V2 && batch.compressionType() == CompressionType.NONE;
+    }
+
+    /**
+     * Position the cursor before the first record of a batch.
+     *
+     * @param batch    the batch, for which canWalk() is true
+     * @param batchPos the position of the batch in the records
+     */
+    void reset(RecordBatch batch, int batchPos) {
+        baseOffset = batch.baseOffset();
+        logAppendTime = batch.timestampType() == TimestampType.LOG_APPEND_TIME
+                ? batch.maxTimestamp()
+                : RecordBatch.NO_TIMESTAMP;
+        baseSequence = batch.baseSequence();
+        remaining = batch.countOrNull();
+        buf.limit(batchPos + batch.sizeInBytes());
+        buf.position(batchPos + DefaultRecordBatch.RECORD_BATCH_OVERHEAD);
+        baseTimestamp = buf.getLong(batchPos + BASE_TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Advance to the next record of the batch.
+     *
+     * @return false if there are no more records
+     * @throws InvalidRecordException if the record is malformed
+     */
+    boolean next() {
+        if (remaining == 0) {
+            if (buf.hasRemaining()) {
+                throw new InvalidRecordException("Batch has " + buf.remaining() + " bytes after its last record");
+            }
+            return false;
+        }
+        remaining--;
+        position = buf.position();
+        int bodySize = ByteUtils.readVarint(buf);
+        int end = buf.position() + bodySize;
+        if (bodySize < 0 || end > buf.limit()) {
+            throw new InvalidRecordException("Invalid record size " + bodySize);
+        }
+        sizeInBytes = end - position;
+        buf.get(); // attributes
+        timestampDelta = ByteUtils.readVarlong(buf);
+        offsetDelta = ByteUtils.readVarint(buf);
+        hasKey = view(key, end);
+        hasValue = view(value, end);
+        int numHeaders = ByteUtils.readVarint(buf);
+        if (numHeaders == 0) {
+            headers = Record.EMPTY_HEADERS;
+        } else if (numHeaders < 0 || numHeaders > end - buf.position()) {
+            throw new InvalidRecordException("Invalid header count " + numHeaders);
+        } else {
+            headers = new Header[numHeaders];
+            for (int i = 0; i < numHeaders; i++) {
+                // the headers are decoded lazily, so each takes its own views
+                ByteBuffer headerKey = slice(ByteUtils.readVarint(buf), end);
+                if (headerKey == null) {
+                    throw new InvalidRecordException("Null header key");
+                }
+                headers[i] = new RecordHeader(headerKey, slice(ByteUtils.readVarint(buf), end));
+            }
+        }
+        if (buf.position() != end) {
+            throw new InvalidRecordException("Record size " + bodySize + " differs from its fields");
+        }
+        return true;
+    }
+
+    /**
+     * Set a view on the length-prefixed field at the current position.
+     *
+     * @return false if the field is null
+     */
+    private boolean view(ByteBuffer view, int end) {
+        int size = ByteUtils.readVarint(buf);
+        if (size < 0) {
+            return false;
+        }
+        int start = buf.position();
+        if (size > end - start) {
+            throw new InvalidRecordException("Invalid field size " + size);
+        }
+        view.limit(start + size).position(start);
+        buf.position(start + size);
+        return true;
+    }
+
+    private ByteBuffer slice(int size, int end) {
+        if (size < 0) {
+            return null;
+        }
+        int start = buf.position();
+        if (size > end - start) {
+            throw new InvalidRecordException("Invalid header size " + size);
+        }
+        buf.position(start + size);
+        return buf.slice(start, size);
+    }
+
+    /**
+     * Returns the position of the current record in the records.
+     */
+    int position() {
+        return position;
+    }
+
+    int offsetDelta() {
+        return offsetDelta;
+    }
+
+    /**
+     * Returns the timestamp delta stored with the record.
+     */
+    long timestampDelta() {
+        return timestampDelta;
+    }
+
+    @Override
+    public long offset() {
+        return baseOffset + offsetDelta;
+    }
+
+    @Override
+    public int sequence() {
+        return baseSequence == RecordBatch.NO_SEQUENCE
+                ? RecordBatch.NO_SEQUENCE
+                : DefaultRecordBatch.incrementSequence(baseSequence, offsetDelta);
+    }
+
+    /**
+     * Returns the size of the current record, including its length prefix.
+     */
+    @Override
+    public int sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns the timestamp of the record: that of the batch in a log append
+     * time batch.
+     */
+    @Override
+    public long timestamp() {
+        return logAppendTime != RecordBatch.NO_TIMESTAMP ? logAppendTime : baseTimestamp + timestampDelta;
+    }
+
+    @Override
+    public void ensureValid() {
+        // v2 records have no checksum of their own; the fields are checked by next()
+    }
+
+    @Override
+    public int keySize() {
+        return hasKey ? key.remaining() : -1;
+    }
+
+    @Override
+    public boolean hasKey() {
+        return hasKey;
+    }
+
+    /**
+     * Returns a view on the key, valid until the next record, or null.
+     */
+    @Override
+    public ByteBuffer key() {
+        return hasKey ? key : null;
+    }
+
+    @Override
+    public int valueSize() {
+        return hasValue ? value.remaining() : -1;
+    }
+
+    @Override
+    public boolean hasValue() {
+        return hasValue;
+    }
+
+    /**
+     * Returns a view on the value, valid until the next record, or null.
+     */
+    @Override
+    public ByteBuffer value() {
+        return hasValue ? value : null;
+    }
+
+    @Override
+    public boolean hasMagic(byte magic) {
+        return magic >= RecordBatch.MAGIC_VALUE_V2;
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return false;
+    }
+
+    @Override
+    public boolean hasTimestampType(TimestampType timestampType) {
+        return false;
+    }
+
+    @Override
+    public Header[] headers() {
+        return headers;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.compress.PayloadCodec;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.DataKeyManager;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+
+/**
+ * The state the Encryption Module holds for an encrypted topic: the topic's
+ * policy, the cipher suite selected by the policy, the encrypter/decrypter
+ * initialized with the topic key and the manager of data keys wrapped by the
+ * topic key, the earlier versions of the topic key, and the codec with which
+ * data is compressed before encryption. Where the policy derives a key per
+ * partition, the context also holds the contexts of the topic's partitions.
+ */
+public class TopicEncryptionContext {
+
+    private final TopicPolicy policy;
+    private final CipherSuite suite;
+    private final KeyVersion current;
+    private final KeyVersionCache versions;
+    private final EncrypterDecrypter encrypter;
+    private final PayloadCodec codec;
+    private final String derivationContext;
+
+    // with partition key derivation, the KMS key and the partitions' contexts,
+    // those of the replaced context providing the earlier key versions
+    private final SecretKey kmsKey;
+    private final Map<Integer, TopicEncryptionContext> partitions;
+    private final Map<Integer, TopicEncryptionContext> previousPartitions;
+
+    TopicEncryptionContext(TopicPolicy policy, CipherSuite suite, SecretKey key,
+            DataKeyManager dataKeys, PayloadCodec codec) throws GeneralSecurityException {
+        this(policy, suite, key, dataKeys, codec, null);
+    }
+
+    /**
+     * As the other constructor, replacing the context previous, if not null.
+     * If the key reference is unchanged, the versions of the key known to the
+     * previous context, including its current version, remain known.
+     */
+    TopicEncryptionContext(TopicPolicy policy, CipherSuite suite, SecretKey key,
+            DataKeyManager dataKeys, PayloadCodec codec, TopicEncryptionContext previous)
+            throws GeneralSecurityException {
+        this(policy, suite, key, dataKeys, codec, null, null, previous);
+    }
+
+    /**
+     * As the other constructors, for a key derived from the KMS key.
+     *
+     * @param derivationContext the context with which the key was derived
+     *                          from the KMS key, or null if not derived
+     * @param kmsKey            with partition key derivation, the KMS key from
+     *                          which the keys of partitions are derived,
+     *                          otherwise null
+     */
+    TopicEncryptionContext(TopicPolicy policy, CipherSuite suite, SecretKey key,
+            DataKeyManager dataKeys, PayloadCodec codec, String derivationContext, SecretKey kmsKey,
+            TopicEncryptionContext previous) throws GeneralSecurityException {
+        this.policy = policy;
+        this.suite = suite;
+        this.current = new KeyVersion(key, dataKeys);
+        this.encrypter = suite.createEncrypterDecrypter(key);
+        this.codec = codec;
+        this.derivationContext = derivationContext;
+        this.kmsKey = kmsKey;
+        this.partitions = kmsKey != null ? new ConcurrentHashMap<>() : null;
+        this.previousPartitions = kmsKey != null && previous != null ? previous.partitions : null;
+        current.putDecrypter(suite, encrypter);
+        if (previous != null && previous.policy.getKms() == policy.getKms()
+                && previous.policy.getKeyReference().equals(policy.getKeyReference())
+                && Objects.equals(previous.derivationContext, derivationContext)) {
+            versions = previous.versions;
+        } else {
+            versions = new KeyVersionCache(policy, suite, derivationContext, KeyVersionCache.DEFAULT_SIZE);
+        }
+        versions.put(current);
+    }
+
+    /**
+     * Returns the context with which a partition of the topic is encrypted:
+     * with partition key derivation, a context whose key is derived for the
+     * partition, created when first needed, otherwise this context.
+     *
+     * @param partition the partition index
+     */
+    public TopicEncryptionContext getPartitionContext(int partition) throws GeneralSecurityException {
+        if (partitions == null) {
+            return this;
+        }
+        TopicEncryptionContext ctx = partitions.get(partition);
+        if (ctx == null) {
+            String context = derivationContext + "/" + partition;
+            SecretKey key = EncUtils.deriveAesKey(kmsKey, context);
+            DataKeyManager dataKeys = createDataKeys(key, suite, policy);
+            TopicEncryptionContext previous = previousPartitions != null ? previousPartitions.get(partition) : null;
+            ctx = new TopicEncryptionContext(policy, suite, key, dataKeys, codec, context, null, previous);
+            TopicEncryptionContext existing = partitions.putIfAbsent(partition, ctx);
+            if (existing != null) {
+                ctx = existing;
+            }
+        }
+        return ctx;
+    }
+
+    /**
+     * Creates the manager of the data keys wrapped by a topic key, with which
+     * data is encrypted. In envelope key mode, data keys rotate on the
+     * policy's count and age limits. In direct key mode, each context starts
+     * with a data key of its own, rotated after the policy's budget of records
+     * per key, so the topic key never encrypts data itself and no key is used
+     * by more than one process, or beyond the budget, however many processes
+     * share the topic key or restart.
+     */
+    static DataKeyManager createDataKeys(SecretKey key, CipherSuite suite, TopicPolicy policy) {
+        if (policy.isEnvelopeKeyMode()) {
+            return new DataKeyManager(key, suite, policy.getDekMaxRecords(), policy.getDekMaxAgeMs());
+        }
+        return new DataKeyManager(key, suite, policy.getKeyMaxRecords(), Long.MAX_VALUE);
+    }
+
+    public TopicPolicy getPolicy() {
+        return policy;
+    }
+
+    public CipherSuite getCipherSuite() {
+        return suite;
+    }
+
+    /**
+     * Returns the ID of the topic key, recorded with the data it encrypts.
+     */
+    public byte[] getKeyId() {
+        return current.getKeyId();
+    }
+
+    public EncrypterDecrypter getEncrypter() {
+        return encrypter;
+    }
+
+    /**
+     * Returns the decrypter, initialized with the topic key, for data
+     * encrypted with the given cipher suite. The suite may differ from the one
+     * currently selected by the policy when the policy has changed.
+     */
+    public EncrypterDecrypter getDecrypter(CipherSuite dataSuite) throws GeneralSecurityException {
+        return current.getDecrypter(dataSuite);
+    }
+
+    /**
+     * As getDecrypter(dataSuite), for data encrypted with the version of the
+     * topic key with the given ID. An empty ID, recorded by data written
+     * before key IDs were, denotes the current version.
+     *
+     * @throws GeneralSecurityException if no version of the key has the ID
+     */
+    public EncrypterDecrypter getDecrypter(CipherSuite dataSuite, byte[] keyId)
+            throws GeneralSecurityException {
+        return getKeyVersion(keyId).getDecrypter(dataSuite);
+    }
+
+    /**
+     * Returns the data key manager, whose data keys encrypt data in either
+     * key mode.
+     */
+    public DataKeyManager getDataKeys() {
+        return current.getDataKeys();
+    }
+
+    /**
+     * Returns the manager of the data keys wrapped by the version of the topic
+     * key with the given ID, as for getDecrypter(dataSuite, keyId).
+     */
+    public DataKeyManager getDataKeys(byte[] keyId) throws GeneralSecurityException {
+        return getKeyVersion(keyId).getDataKeys();
+    }
+
+    private KeyVersion getKeyVersion(byte[] keyId) throws GeneralSecurityException {
+        if (keyId.length == 0 || Arrays.equals(keyId, current.getKeyId())) {
+            return current;
+        }
+        return versions.get(keyId);
+    }
+
+    /**
+     * Returns the codec with which data is compressed before encryption and
+     * decompressed after decryption.
+     */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The encryption contexts of topics, each holding a key retrieved from the
+ * KMS, cached for a limited time. A context used within the refresh-ahead
+ * window before it expires is reloaded in the background while the cached
+ * context continues to be served, so topics in use never wait for the KMS.
+ * A context not used in that window is reloaded when next used after expiry.
+ * Concurrent loads of the same topic are coalesced into one.
+ *
+ * The cache is bounded; when full, the least recently used topic is evicted.
+ * Contexts of a key reference can be purged, for example when the key is
+ * revoked. Instances are thread safe.
+ */
+class TopicKeyCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TopicKeyCache.class);
+
+    /**
+     * Creates the context of a topic.
+     */
+    interface Loader {
+        /**
+         * @param topic    the topic
+         * @param previous the topic's cached context, if being reloaded, otherwise null
+         * @return the topic's context, or null if the topic is not encrypted
+         */
+        TopicEncryptionContext load(String topic, TopicEncryptionContext previous) throws Exception;
+    }
+
+    private static final class Entry {
+        final TopicEncryptionContext context;
+        final long loadedNanos;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long accessNanos;
+
+        Entry(TopicEncryptionContext context, long loadedNanos) {
+            this.context = context;
+            this.loadedNanos = loadedNanos;
+            this.accessNanos = loadedNanos;
+        }
+    }
+
+    private final Loader loader;
+    private final Executor refresher;
+    private final LongSupplier clock;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final int maxSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<TopicEncryptionContext>> loads = new ConcurrentHashMap<>();
+    // incremented by each purge, so loads begun before it are not cached
+    private final AtomicLong purges = new AtomicLong();
+
+    /**
+     * @param config    the cache configuration
+     * @param loader    creates the contexts of topics
+     * @param refresher runs the reloads of contexts about to expire
+     * @param clock     the source of time, in nanoseconds
+     */
+    TopicKeyCache(KeyCacheConfig config, Loader loader, Executor refresher, LongSupplier clock) {
+        config.validate();
+        this.loader = loader;
+        this.refresher = refresher;
+        this.clock = clock;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getTtlMs());
+        this.refreshAfterNanos = ttlNanos - TimeUnit.MILLISECONDS.toNanos(config.getRefreshAheadMs());
+        this.maxSize = config.getMaxSize();
+    }
+
+    /**
+     * Returns the context of a topic, loading it if not cached or expired.
+     *
+     * @return the context, or null if the topic is not encrypted
+     */
+    TopicEncryptionContext get(String topic) throws Exception {
+        Entry entry = entries.get(topic);
+        long now = clock.getAsLong();
+        if (entry != null) {
+            long age = now - entry.loadedNanos;
+            if (age < ttlNanos) {
+                entry.accessNanos = now;
+                if (age >= refreshAfterNanos && entry.refreshing.compareAndSet(false, true)) {
+                    refresher.execute(() -> refresh(topic, entry));
+                }
+                return entry.context;
+            }
+        }
+        return load(topic, entry != null ? entry.context : null);
+    }
+
+    /**
+     * Indicates whether a topic's context is cached, without affecting it.
+     */
+    boolean contains(String topic) {
+        return entries.containsKey(topic);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Evict the contexts of all topics encrypted with the given key
+     * reference. Loads in progress are not cached.
+     */
+    void purge(String keyReference) {
+        purges.incrementAndGet();
+        entries.values().removeIf(e -> keyReference.equals(e.context.getPolicy().getKeyReference()));
+    }
+
+    /**
+     * Evict the contexts of all topics, as when the policies have changed.
+     * Loads in progress are not cached.
+     */
+    void clear() {
+        purges.incrementAndGet();
+        entries.clear();
+    }
+
+    private TopicEncryptionContext load(String topic, TopicEncryptionContext previous) throws Exception {
+        CompletableFuture<TopicEncryptionContext> future = new CompletableFuture<>();
+        CompletableFuture<TopicEncryptionContext> existing = loads.putIfAbsent(topic, future);
+        if (existing != null) {
+            // another thread is loading the topic
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+        try {
+            long purgeCount = purges.get();
+            TopicEncryptionContext context = loader.load(topic, previous);
+            put(topic, context, purgeCount);
+            future.complete(context);
+            return context;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(topic, future);
+        }
+    }
+
+    private void refresh(String topic, Entry entry) {
+        try {
+            long purgeCount = purges.get();
+            TopicEncryptionContext context = loader.load(topic, entry.context);
+            if (entries.get(topic) == entry) {
+                put(topic, context, purgeCount);
+            }
+        } catch (Exception e) {
+            // the cached context is served until it expires
+            LOGGER.warn("Error refreshing key of topic {}", topic, e);
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void put(String topic, TopicEncryptionContext context, long purgeCount) {
+        if (context == null) {
+            entries.remove(topic);
+            return;
+        }
+        entries.put(topic, new Entry(context, clock.getAsLong()));
+        if (purges.get() != purgeCount) {
+            // purged while loading; the context may hold a revoked key
+            entries.remove(topic);
+            return;
+        }
+        while (entries.size() > maxSize) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Evict the least recently used entry. The scan is only made when a new
+     * topic is loaded into a full cache.
+     */
+    private void evictLeastRecentlyUsed() {
+        Map.Entry<String, Entry> lru = null;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (lru == null || e.getValue().accessNanos - lru.getValue().accessNanos < 0) {
+                lru = e;
+            }
+        }
+        if (lru != null) {
+            entries.remove(lru.getKey(), lru.getValue());
+        }
+    }
+}
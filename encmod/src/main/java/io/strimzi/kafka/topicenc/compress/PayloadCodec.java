@@ -0,0 +1,289 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.ByteBufferOutputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdException;
+
+import io.strimzi.kafka.topicenc.ser.EncSerDerException;
+
+/**
+ * Compresses payloads before encryption and decompresses them after
+ * decryption. Ciphertext is incompressible, so compression must precede
+ * encryption to have any effect. Codecs are identified by their Kafka
+ * CompressionType id, which is stored in the serialized message.
+ *
+ * A zstd codec may use a dictionary, typically trained from the topic's own
+ * records with ZstdDictionaryTrainer, improving the ratio for small records.
+ * The dictionary id is stored in each zstd frame, so data compressed with a
+ * dictionary can only be read with that same dictionary.
+ *
+ * Payloads are compressed into, and decompressed into, buffers obtained from
+ * a BufferSupplier, such as a pool, so that large values do not each need
+ * fresh buffers. Stream codecs are decompressed in chunks of
+ * STREAM_CHUNK_SIZE bytes. Payloads are still compressed and decompressed
+ * whole, as the size of a value must be known before it is written in a
+ * record.
+ *
+ * Instances are thread safe.
+ */
+public class PayloadCodec {
+
+    /**
+     * A codec which leaves payloads uncompressed.
+     */
+    public static final PayloadCodec NONE = new PayloadCodec(CompressionType.NONE, null);
+
+    public static final int ZSTD_LEVEL = 3;
+
+    static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    // the maximum size of a zstd frame header, holding the dictionary id
+    private static final int ZSTD_FRAME_HEADER_MAX = 18;
+
+    private final CompressionType type;
+    private final long dictionaryId;
+    private final ZstdDictCompress dictCompress;
+    private final ZstdDictDecompress dictDecompress;
+
+    /**
+     * @param type       the codec with which to compress
+     * @param dictionary a zstd dictionary, or null. Only valid for ZSTD.
+     */
+    public PayloadCodec(CompressionType type, byte[] dictionary) {
+        this.type = type;
+        if (dictionary == null) {
+            dictionaryId = 0;
+            dictCompress = null;
+            dictDecompress = null;
+            return;
+        }
+        if (type != CompressionType.ZSTD) {
+            throw new IllegalArgumentException("Dictionaries are only supported by zstd.");
+        }
+        dictionaryId = Zstd.getDictIdFromDict(dictionary);
+        if (dictionaryId == 0) {
+            throw new IllegalArgumentException("Not a zstd dictionary.");
+        }
+        dictCompress = new ZstdDictCompress(dictionary, ZSTD_LEVEL);
+        dictDecompress = new ZstdDictDecompress(dictionary);
+    }
+
+    public CompressionType getType() {
+        return type;
+    }
+
+    /**
+     * Compress the remaining bytes of a payload, without consuming them.
+     *
+     * @param payload the plaintext
+     * @return the compressed payload, ready to be read, or null if the codec
+     *         is NONE or compression does not reduce the payload size. The
+     *         payload is then to be encrypted uncompressed.
+     * @throws EncSerDerException if the payload cannot be compressed
+     */
+    public ByteBuffer compress(ByteBuffer payload) throws EncSerDerException {
+        return compress(payload, BufferSupplier.NO_CACHING);
+    }
+
+    /**
+     * Compress the remaining bytes of a payload, without consuming them, into
+     * a buffer from the given supplier, to which the caller may release it
+     * once read.
+     *
+     * @param payload the plaintext
+     * @param buffers the supplier of the buffer of the compressed payload
+     * @return the compressed payload, ready to be read, or null if the codec
+     *         is NONE or compression does not reduce the payload size. The
+     *         payload is then to be encrypted uncompressed.
+     * @throws EncSerDerException if the payload cannot be compressed
+     */
+    public ByteBuffer compress(ByteBuffer payload, BufferSupplier buffers) throws EncSerDerException {
+        if (type == CompressionType.NONE || !payload.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer compressed;
+        try {
+            compressed = type == CompressionType.ZSTD
+                    ? compressZstd(payload, buffers)
+                    : compressStream(payload, buffers);
+        } catch (IOException | ZstdException e) {
+            throw new EncSerDerException("Error compressing payload with " + type.name, e);
+        }
+        if (compressed.remaining() >= payload.remaining()) {
+            buffers.release(compressed);
+            return null;
+        }
+        return compressed;
+    }
+
+    /**
+     * Decompress a payload compressed with the given codec. The codec may
+     * differ from this codec's type, as when the topic policy has changed;
+     * only the dictionary, if required, must be this codec's.
+     *
+     * @param codecId the CompressionType id read from the serialized message
+     * @param payload the decrypted, compressed payload
+     * @return the decompressed payload, ready to be read
+     * @throws EncSerDerException if the codec or dictionary are unknown or the
+     *                            payload cannot be decompressed
+     */
+    public ByteBuffer decompress(int codecId, ByteBuffer payload) throws EncSerDerException {
+        return decompress(codecId, payload, BufferSupplier.NO_CACHING);
+    }
+
+    /**
+     * Decompress a payload compressed with the given codec, into a buffer
+     * from the given supplier, to which the caller may release it once read.
+     *
+     * @param codecId the CompressionType id read from the serialized message
+     * @param payload the decrypted, compressed payload
+     * @param buffers the supplier of the buffer of the decompressed payload
+     * @return the decompressed payload, ready to be read, which is the given
+     *         payload itself if the codec is NONE
+     * @throws EncSerDerException if the codec or dictionary are unknown or the
+     *                            payload cannot be decompressed
+     */
+    public ByteBuffer decompress(int codecId, ByteBuffer payload, BufferSupplier buffers)
+            throws EncSerDerException {
+        CompressionType codec;
+        try {
+            codec = CompressionType.forId(codecId);
+        } catch (IllegalArgumentException e) {
+            throw new EncSerDerException("Unknown codec id: " + codecId, e);
+        }
+        if (codec == CompressionType.NONE) {
+            return payload;
+        }
+        try {
+            return codec == CompressionType.ZSTD
+                    ? decompressZstd(payload, buffers)
+                    : decompressStream(codec, payload, buffers);
+        } catch (IOException | ZstdException e) {
+            throw new EncSerDerException("Error decompressing payload with " + codec.name, e);
+        }
+    }
+
+    private ByteBuffer compressStream(ByteBuffer payload, BufferSupplier buffers) throws IOException {
+        // an output larger than the payload is discarded, so rarely grows
+        ByteBufferOutputStream out = new ByteBufferOutputStream(buffers.get(payload.remaining()));
+        try (OutputStream os = type.wrapForOutput(out, RecordBatch.CURRENT_MAGIC_VALUE)) {
+            if (payload.hasArray()) {
+                os.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            } else {
+                os.write(toArray(payload));
+            }
+        }
+        ByteBuffer compressed = out.buffer();
+        compressed.flip();
+        return compressed;
+    }
+
+    /**
+     * The decompressed size is unknown in advance, so the payload is read in
+     * chunks, then gathered into a buffer of its size.
+     */
+    private static ByteBuffer decompressStream(CompressionType codec, ByteBuffer payload,
+            BufferSupplier buffers) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        try {
+            long size = 0;
+            try (InputStream in = codec.wrapForInput(payload.duplicate(), RecordBatch.CURRENT_MAGIC_VALUE,
+                    buffers)) {
+                ByteBuffer chunk = null;
+                int read;
+                do {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = buffers.get(STREAM_CHUNK_SIZE);
+                        chunks.add(chunk);
+                    }
+                    read = in.read(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    if (read > 0) {
+                        chunk.position(chunk.position() + read);
+                        size += read;
+                    }
+                } while (read >= 0);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Decompressed payload too large: " + size + " bytes");
+            }
+            ByteBuffer decompressed = buffers.get((int) size);
+            for (ByteBuffer chunk : chunks) {
+                decompressed.put(chunk.flip());
+            }
+            return decompressed.flip();
+        } finally {
+            for (ByteBuffer chunk : chunks) {
+                buffers.release(chunk);
+            }
+        }
+    }
+
+    private ByteBuffer compressZstd(ByteBuffer payload, BufferSupplier buffers) {
+        byte[] src = payload.hasArray() ? payload.array() : toArray(payload);
+        int srcOffset = payload.hasArray() ? payload.arrayOffset() + payload.position() : 0;
+        int srcSize = payload.remaining();
+        ByteBuffer dst = buffers.get((int) Math.min(Integer.MAX_VALUE, Zstd.compressBound(srcSize)));
+        // the frame records the content size and dictionary id
+        long size = dictCompress != null
+                ? Zstd.compressFastDict(dst.array(), dst.arrayOffset(), src, srcOffset, srcSize, dictCompress)
+                : Zstd.compressByteArray(dst.array(), dst.arrayOffset(), dst.capacity(), src, srcOffset, srcSize,
+                        ZSTD_LEVEL);
+        if (Zstd.isError(size)) {
+            buffers.release(dst);
+            throw new ZstdException(size);
+        }
+        dst.clear().limit((int) size);
+        return dst;
+    }
+
+    private ByteBuffer decompressZstd(ByteBuffer payload, BufferSupplier buffers) throws EncSerDerException {
+        byte[] src = payload.hasArray() ? payload.array() : toArray(payload);
+        int srcOffset = payload.hasArray() ? payload.arrayOffset() + payload.position() : 0;
+        int srcSize = payload.remaining();
+        // the frame was authenticated with the ciphertext, so its content size can be trusted
+        long size = Zstd.decompressedSize(src, srcOffset, srcSize);
+        if (size <= 0 || size > Integer.MAX_VALUE) {
+            throw new EncSerDerException("Invalid zstd frame content size: " + size);
+        }
+        long frameDictId = Zstd.getDictIdFromFrame(
+                Arrays.copyOfRange(src, srcOffset, srcOffset + Math.min(srcSize, ZSTD_FRAME_HEADER_MAX)));
+        if (frameDictId != 0 && frameDictId != dictionaryId) {
+            throw new EncSerDerException("Unknown zstd dictionary: " + frameDictId);
+        }
+        ByteBuffer dst = buffers.get((int) size);
+        long decompressed = frameDictId == 0
+                ? Zstd.decompressByteArray(dst.array(), dst.arrayOffset(), (int) size, src, srcOffset, srcSize)
+                : Zstd.decompressFastDict(dst.array(), dst.arrayOffset(), src, srcOffset, srcSize,
+                        dictDecompress);
+        if (Zstd.isError(decompressed)) {
+            buffers.release(dst);
+            throw new ZstdException(decompressed);
+        }
+        dst.clear().limit((int) decompressed);
+        return dst;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.compress;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.Records;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+/**
+ * Trains a zstd dictionary for a topic from a sample of its record values.
+ * A dictionary captures the structure shared by the records of a topic, such
+ * as field names in JSON, which a small record alone is too short to exploit.
+ * The trained dictionary is written to a file referenced by the topic policy.
+ *
+ * Every sampleInterval-th value offered is retained, until the sample buffer,
+ * sized at SAMPLE_RATIO times the dictionary size as recommended by zstd, is
+ * full.
+ *
+ * The main method trains a dictionary from the command line, see USAGE. The
+ * values of an encrypted topic must be read through the proxy, so that they
+ * are sampled in plaintext.
+ */
+public class ZstdDictionaryTrainer {
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+    public static final int SAMPLE_RATIO = 100;
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: ZstdDictionaryTrainer <dictionary-file> [options] <source>",
+            "Sources, of the record values sampled:",
+            "  --file <samples-file>...       files of one value per line",
+            "  --topic <topic>                the values of a topic, from the beginning of its partitions",
+            "Options:",
+            "  --bootstrap-server <servers>   the servers from which to read the topic",
+            "  --consumer-config <file>       properties of the consumer reading the topic",
+            "  --size <bytes>                 the maximum size of the dictionary, default " + DEFAULT_DICTIONARY_SIZE,
+            "  --interval <n>                 sample every n-th value, default 1");
+
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private final ZstdDictTrainer trainer;
+    private final int sampleInterval;
+    private long numOffered;
+    private int numSamples;
+    private boolean full;
+
+    public ZstdDictionaryTrainer() {
+        this(DEFAULT_DICTIONARY_SIZE, 1);
+    }
+
+    /**
+     * @param dictionarySize the maximum size of the dictionary in bytes
+     * @param sampleInterval the interval at which offered values are sampled
+     */
+    public ZstdDictionaryTrainer(int dictionarySize, int sampleInterval) {
+        if (dictionarySize < 1 || sampleInterval < 1) {
+            throw new IllegalArgumentException("Dictionary size and sample interval must be positive.");
+        }
+        this.trainer = new ZstdDictTrainer(dictionarySize * SAMPLE_RATIO, dictionarySize);
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Offer a record value for sampling.
+     *
+     * @param value the record value
+     * @return false once enough samples have been collected
+     */
+    public boolean addSample(ByteBuffer value) {
+        if (full) {
+            return false;
+        }
+        if (numOffered++ % sampleInterval == 0) {
+            byte[] sample = new byte[value.remaining()];
+            value.duplicate().get(sample);
+            if (trainer.addSample(sample)) {
+                numSamples++;
+            } else {
+                full = true;
+            }
+        }
+        return !full;
+    }
+
+    /**
+     * Offer the values of all records, for example those of a fetch response,
+     * for sampling.
+     *
+     * @return false once enough samples have been collected
+     */
+    public boolean addSamples(Records records) {
+        for (RecordBatch batch : records.batches()) {
+            for (Record record : batch) {
+                if (record.hasValue() && !addSample(record.value())) {
+                    return false;
+                }
+            }
+        }
+        return !full;
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    /**
+     * Train the dictionary from the samples collected.
+     *
+     * @return the dictionary
+     * @throws IllegalStateException if the samples are insufficient for training
+     */
+    public byte[] train() {
+        if (numSamples == 0) {
+            throw new IllegalStateException("No samples from which to train a dictionary.");
+        }
+        try {
+            return trainer.trainSamples();
+        } catch (ZstdException e) {
+            throw new IllegalStateException("Error training dictionary from " + numSamples + " samples", e);
+        }
+    }
+
+    /**
+     * Trains a dictionary from the values of a topic, or of files, and writes
+     * it to a file, see USAGE.
+     */
+    public static void main(String[] args) throws IOException {
+        try {
+            run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void run(String... args) throws IOException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("No dictionary file.");
+        }
+        Path dictFile = Paths.get(args[0]);
+        List<Path> sampleFiles = new ArrayList<>();
+        String topic = null;
+        Properties consumerConfig = new Properties();
+        int dictionarySize = DEFAULT_DICTIONARY_SIZE;
+        int sampleInterval = 1;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if ("--file".equals(arg)) {
+                while (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                    sampleFiles.add(Paths.get(args[++i]));
+                }
+            } else if ("--topic".equals(arg)) {
+                topic = getValue(args, ++i, arg);
+            } else if ("--bootstrap-server".equals(arg)) {
+                consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, getValue(args, ++i, arg));
+            } else if ("--consumer-config".equals(arg)) {
+                try (InputStream in = Files.newInputStream(Paths.get(getValue(args, ++i, arg)))) {
+                    consumerConfig.load(in);
+                }
+            } else if ("--size".equals(arg)) {
+                dictionarySize = getIntValue(args, ++i, arg);
+            } else if ("--interval".equals(arg)) {
+                sampleInterval = getIntValue(args, ++i, arg);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (sampleFiles.isEmpty() == (topic == null)) {
+            throw new IllegalArgumentException("Either sample files or a topic must be given.");
+        }
+
+        ZstdDictionaryTrainer trainer = new ZstdDictionaryTrainer(dictionarySize, sampleInterval);
+        if (topic != null) {
+            trainer.addSamples(topic, consumerConfig);
+        } else {
+            for (Path sampleFile : sampleFiles) {
+                if (!trainer.addSamples(sampleFile)) {
+                    break;
+                }
+            }
+        }
+        byte[] dictionary = trainer.train();
+        Files.write(dictFile, dictionary);
+        System.out.println("Wrote a dictionary of " + dictionary.length + " bytes, trained from "
+                + trainer.getNumSamples() + " samples, to " + dictFile);
+    }
+
+    private static String getValue(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("No value for option " + option);
+        }
+        return args[i];
+    }
+
+    private static int getIntValue(String[] args, int i, String option) {
+        try {
+            return Integer.parseInt(getValue(args, i, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option " + option, e);
+        }
+    }
+
+    /**
+     * Offer the lines of a file, each a record value in UTF-8, for sampling.
+     *
+     * @return false once enough samples have been collected
+     */
+    public boolean addSamples(Path sampleFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(sampleFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!addSample(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)))) {
+                    return false;
+                }
+            }
+        }
+        return !full;
+    }
+
+    /**
+     * Offer the values of a topic for sampling, reading its partitions from
+     * their beginning up to their end when called, with a consumer of the
+     * given configuration, which needs no consumer group.
+     *
+     * @return false once enough samples have been collected
+     */
+    public boolean addSamples(String topic, Properties consumerConfig) {
+        Properties config = new Properties();
+        config.putAll(consumerConfig);
+        config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        config.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG,
+                "org.apache.kafka.common.serialization.ByteBufferDeserializer");
+        config.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+                "org.apache.kafka.common.serialization.ByteBufferDeserializer");
+        try (KafkaConsumer<ByteBuffer, ByteBuffer> consumer = new KafkaConsumer<>(config)) {
+            List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
+                    .map(p -> new TopicPartition(topic, p.partition()))
+                    .collect(Collectors.toList());
+            consumer.assign(partitions);
+            consumer.seekToBeginning(partitions);
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+            while (endOffsets.entrySet().stream().anyMatch(e -> consumer.position(e.getKey()) < e.getValue())) {
+                for (ConsumerRecord<ByteBuffer, ByteBuffer> record : consumer.poll(POLL_TIMEOUT)) {
+                    if (record.value() != null && !addSample(record.value())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return !full;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Base class of Encrypter/Decrypters for JCE AEAD ciphers which append an
+ * authentication tag to the ciphertext. Ciphers are obtained from a per-thread
+ * CipherCache and initialized with a new nonce for each encryption.
+ */
+public abstract class AeadEncrypter implements EncrypterDecrypter {
+
+    private final SecretKey key;
+    private final NonceGenerator nonces;
+    private final CipherCache ciphers;
+    private final int tagSize;
+    private volatile SegmentedAeadEncrypter segmented;
+
+    /**
+     * @param key     the key
+     * @param nonces  the nonce generator, used with this key only
+     * @param ciphers the cache of ciphers for the algorithm
+     * @param tagSize the authentication tag size in bytes
+     */
+    protected AeadEncrypter(SecretKey key, NonceGenerator nonces, CipherCache ciphers, int tagSize) {
+        this.key = key;
+        this.nonces = nonces;
+        this.ciphers = ciphers;
+        this.tagSize = tagSize;
+    }
+
+    /**
+     * Returns the algorithm parameters with which to initialize a cipher for
+     * the given IV.
+     */
+    protected abstract AlgorithmParameterSpec createParameterSpec(byte[] iv);
+
+    @Override
+    public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
+        byte[] iv = createIv();
+        return encrypt(plaintext, iv);
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[getCiphertextSize(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), iv, ByteBuffer.wrap(ciphertext));
+        return new EncData(iv, ciphertext);
+    }
+
+    @Override
+    public byte[] decrypt(EncData encData) throws GeneralSecurityException {
+        ByteBuffer ciphertext = encData.getCiphertextBuffer();
+        byte[] plaintext = new byte[getPlaintextSize(ciphertext.remaining())];
+        decrypt(ciphertext, encData.getIv(), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plaintext, byte[] iv, ByteBuffer ciphertext)
+            throws GeneralSecurityException {
+        Cipher encCipher = createCipher(Cipher.ENCRYPT_MODE, iv);
+        return encCipher.doFinal(plaintext, ciphertext);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer ciphertext, byte[] iv, ByteBuffer plaintext)
+            throws GeneralSecurityException {
+        // every encryption assumed to have its own IV
+        if (ciphertext.remaining() < tagSize) {
+            throw new GeneralSecurityException("Ciphertext shorter than authentication tag.");
+        }
+        Cipher decCipher = createCipher(Cipher.DECRYPT_MODE, iv);
+        return decCipher.doFinal(ciphertext, plaintext);
+    }
+
+    @Override
+    public int getCiphertextSize(int plaintextLen) {
+        return plaintextLen + tagSize;
+    }
+
+    @Override
+    public int getPlaintextSize(int ciphertextLen) {
+        return Math.max(0, ciphertextLen - tagSize);
+    }
+
+    @Override
+    public byte[] createIv() throws GeneralSecurityException {
+        return nonces.next();
+    }
+
+    @Override
+    public int getIvSize() {
+        return nonces.getNonceSize();
+    }
+
+    @Override
+    public EncrypterDecrypter getSegmented() {
+        if (segmented == null) {
+            segmented = new SegmentedAeadEncrypter(this, key, ciphers, tagSize);
+        }
+        return segmented;
+    }
+
+    /**
+     * Returns the calling thread's cached cipher for this key, initialized with
+     * the given IV. Re-initializing a cached cipher only sets up the algorithm
+     * parameters; the key schedule is retained from the previous init().
+     */
+    private Cipher createCipher(int mode, byte[] iv) throws GeneralSecurityException {
+        if (iv == null || iv.length == 0) {
+            throw new GeneralSecurityException("Initialization vector either null or empty.");
+        }
+        Cipher cipher = ciphers.get(key);
+        initCipher(cipher, mode, key, iv);
+        return cipher;
+    }
+
+    /**
+     * Initialize a cipher, which may have been initialized before, for the
+     * given mode, key and IV.
+     */
+    protected void initCipher(Cipher cipher, int mode, SecretKey key, byte[] iv)
+            throws GeneralSecurityException {
+        cipher.init(mode, key, createParameterSpec(iv));
+    }
+}
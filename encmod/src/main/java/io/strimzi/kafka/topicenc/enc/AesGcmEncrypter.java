@@ -4,9 +4,7 @@
  */
 package io.strimzi.kafka.topicenc.enc;
 
-import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import javax.crypto.Cipher;
+import java.security.spec.AlgorithmParameterSpec;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import io.strimzi.kafka.topicenc.common.EncUtils;
@@ -14,66 +12,45 @@ import io.strimzi.kafka.topicenc.common.EncUtils;
 /**
  * An Encrypter/Decrypter for AES GCM.
  */
-public class AesGcmEncrypter implements EncrypterDecrypter {
+public class AesGcmEncrypter extends AeadEncrypter {
 
-    public static final int IV_SIZE = 16; // bytes
+    // the standard GCM IV size. Data encrypted with other IV sizes remains
+    // decryptable, as the IV is stored with the ciphertext.
+    public static final int IV_SIZE = CounterNonceGenerator.NONCE_SIZE; // bytes
     public static final int KEY_SIZE = 128; // for now
-    private static final String JCE_PROVIDER = "SunJCE"; // for now
+    public static final int TAG_SIZE = KEY_SIZE / Byte.SIZE; // bytes
+    // the JCE provider of instances not created by an AesGcmProvider
+    public static final String DEFAULT_JCE_PROVIDER = "SunJCE";
 
-    private final String transformation;
-    private final SecretKey key;
-    private final SecureRandom random;
+    // shared by all instances so topics sharing a key also share ciphers.
+    private static final CipherCache CIPHER_CACHE = createCipherCache(DEFAULT_JCE_PROVIDER);
 
     public AesGcmEncrypter(SecretKey key) {
-        this.key = key;
-        this.transformation = EncUtils.AES256_GCM_NOPADDING;
-        this.random = new SecureRandom();
+        this(key, new CounterNonceGenerator());
     }
 
-    @Override
-    public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
-        byte[] iv = createIV();
-        return encrypt(plaintext, iv);
-    }
-
-    @Override
-    public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
-        Cipher encCipher = createEncryptionCipher(transformation, key, iv);
-        byte[] ciphertext = encCipher.doFinal(plaintext);
-        return new EncData(iv, ciphertext);
-    }
-
-    @Override
-    public byte[] decrypt(EncData encData) throws GeneralSecurityException {
-        // every encryption assumed to have its own IV
-        Cipher decCipher = createDecryptionCipher(transformation, key, encData.getIv());
-        return decCipher.doFinal(encData.getCiphertext());
+    public AesGcmEncrypter(SecretKey key, NonceGenerator nonces) {
+        this(key, nonces, CIPHER_CACHE);
     }
 
-    private byte[] createIV() {
-        byte[] buf = new byte[IV_SIZE];
-        random.nextBytes(buf);
-        return buf;
+    /**
+     * @param ciphers the cipher cache of the JCE provider to use, as
+     *                returned by createCipherCache()
+     */
+    AesGcmEncrypter(SecretKey key, NonceGenerator nonces, CipherCache ciphers) {
+        super(key, nonces, ciphers, TAG_SIZE);
     }
 
-    private static Cipher createEncryptionCipher(String transformation, SecretKey key, byte[] iv)
-            throws GeneralSecurityException {
-        return createCipher(Cipher.ENCRYPT_MODE, transformation, key, iv);
+    /**
+     * Create the cache of ciphers of the given JCE provider, to be shared by
+     * all instances using the provider.
+     */
+    static CipherCache createCipherCache(String jceProvider) {
+        return new CipherCache(EncUtils.AES256_GCM_NOPADDING, jceProvider);
     }
 
-    private static Cipher createDecryptionCipher(String transformation, SecretKey key, byte[] iv)
-            throws GeneralSecurityException {
-        return createCipher(Cipher.DECRYPT_MODE, transformation, key, iv);
-    }
-
-    private static Cipher createCipher(int mode, String transformation, SecretKey key, byte[] iv)
-            throws GeneralSecurityException {
-        if (iv == null || iv.length == 0) {
-            throw new GeneralSecurityException("Initialization vector either null or empty.");
-        }
-        Cipher cipher = Cipher.getInstance(transformation, JCE_PROVIDER);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(KEY_SIZE, iv);
-        cipher.init(mode, key, gcmSpec);
-        return cipher;
+    @Override
+    protected AlgorithmParameterSpec createParameterSpec(byte[] iv) {
+        return new GCMParameterSpec(KEY_SIZE, iv);
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * An implementation of AES GCM used by the AesGcmV1 cipher suite. Data
+ * encrypted by any provider is decryptable by any other, so providers differ
+ * only in performance. Implementations other than the JCE are discovered by
+ * the AesGcmProviderManager using the Java ServiceLoader mechanism.
+ */
+public interface AesGcmProvider {
+
+    /**
+     * Returns the unique name of the provider, for example "jce".
+     */
+    String getName();
+
+    /**
+     * Indicates whether the provider can be used in this JVM, for example
+     * whether a native library it depends on could be loaded.
+     */
+    boolean isAvailable();
+
+    /**
+     * Instantiate an Encrypter/Decrypter for the given key.
+     *
+     * @param key    the key
+     * @param nonces the nonce generator, used with this key only
+     * @return the Encrypter/Decrypter
+     * @throws java.security.InvalidKeyException if the provider cannot use the
+     *         key, as when the key material is not accessible
+     * @throws GeneralSecurityException on other errors
+     */
+    EncrypterDecrypter createEncrypterDecrypter(SecretKey key, NonceGenerator nonces)
+            throws GeneralSecurityException;
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+
+/**
+ * The AesGcmProviderManager is a singleton managing the providers of AES
+ * GCM: each installed JCE provider implementing the transformation of
+ * AesGcmEncrypter, and any declared using the Java service providers
+ * interface (SPI). Providers are only used if they pass a known-answer test.
+ *
+ * The provider used by the AesGcmV1 cipher suite is chosen when first
+ * needed: the provider named by the topicenc.aesgcm.provider system property,
+ * or set with setDefaultProvider(), otherwise the fastest, determined by a
+ * short calibration, so each JVM uses the fastest implementation it has.
+ * SPI providers which cannot be used, as when a native library is missing or
+ * the provider requires a later JDK, are skipped.
+ */
+public class AesGcmProviderManager {
+
+    /**
+     * System property naming the provider to use, overriding the calibration.
+     */
+    public static final String PROVIDER_PROPERTY = "topicenc.aesgcm.provider";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AesGcmProviderManager.class);
+
+    // the calibration encrypts and decrypts records of a typical size, first
+    // warming up, for a fixed time per provider
+    private static final int CALIBRATION_RECORD_SIZE = 1024;
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long CALIBRATION_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // known answer from the GCM specification, test case 15 (AES-256)
+    private static final HexFormat HEX = HexFormat.of();
+    private static final byte[] KAT_KEY = HEX.parseHex(
+            "feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308");
+    private static final byte[] KAT_IV = HEX.parseHex("cafebabefacedbaddecaf888");
+    private static final byte[] KAT_PLAINTEXT = HEX.parseHex(
+            "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+            + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255");
+    private static final byte[] KAT_CIPHERTEXT = HEX.parseHex(
+            "522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa"
+            + "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662898015ad"
+            + "b094dac5d93471bdec1a502270e3cc6c");
+
+    private static final AesGcmProviderManager INSTANCE = new AesGcmProviderManager();
+
+    private final Map<String, AesGcmProvider> providers = new LinkedHashMap<>();
+    private Map<String, Long> calibration = Collections.emptyMap();
+    private volatile AesGcmProvider defaultProvider;
+
+    private AesGcmProviderManager() {
+        List<AesGcmProvider> candidates = new ArrayList<>();
+        for (Provider jceProvider : Security.getProviders()) {
+            if (JceAesGcmProvider.supports(jceProvider)) {
+                candidates.add(new JceAesGcmProvider(jceProvider.getName()));
+            }
+        }
+        candidates.addAll(loadSpiProviders());
+        for (AesGcmProvider provider : candidates) {
+            if (!isKnownAnswerCorrect(provider)) {
+                LOGGER.warn("AES GCM provider {} failed the known-answer test and is not used",
+                        provider.getName());
+            } else {
+                providers.putIfAbsent(provider.getName(), provider);
+            }
+        }
+        if (providers.isEmpty()) {
+            // not expected of a JDK; encryption fails should the JCE fail too
+            LOGGER.error("No AES GCM provider passed the known-answer test");
+            JceAesGcmProvider jce = new JceAesGcmProvider(AesGcmEncrypter.DEFAULT_JCE_PROVIDER);
+            providers.put(jce.getName(), jce);
+        }
+    }
+
+    private static List<AesGcmProvider> loadSpiProviders() {
+        List<AesGcmProvider> loaded = new ArrayList<>();
+        Iterator<AesGcmProvider> it = ServiceLoader.load(AesGcmProvider.class).iterator();
+        while (hasNext(it)) {
+            try {
+                AesGcmProvider provider = it.next();
+                if (provider.isAvailable()) {
+                    loaded.add(provider);
+                } else {
+                    LOGGER.info("AES GCM provider {} is not available", provider.getName());
+                }
+            } catch (ServiceConfigurationError | LinkageError e) {
+                LOGGER.warn("AES GCM provider could not be loaded", e);
+            }
+        }
+        return loaded;
+    }
+
+    private static boolean hasNext(Iterator<AesGcmProvider> it) {
+        // a provider which fails to load, as one compiled for a later JDK,
+        // is skipped rather than preventing the loading of the others
+        while (true) {
+            try {
+                return it.hasNext();
+            } catch (ServiceConfigurationError | LinkageError e) {
+                LOGGER.warn("AES GCM provider could not be loaded", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the singleton AesGcmProviderManager instance.
+     */
+    public static AesGcmProviderManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the provider used by the AesGcmV1 cipher suite, choosing it if
+     * not yet chosen.
+     */
+    public AesGcmProvider getDefaultProvider() {
+        AesGcmProvider provider = defaultProvider;
+        return provider != null ? provider : chooseDefaultProvider();
+    }
+
+    /**
+     * Set the provider used by the AesGcmV1 cipher suite from then on,
+     * overriding the calibration.
+     *
+     * @param name the provider name
+     * @throws NoSuchAlgorithmException if no usable provider has the name
+     */
+    public synchronized void setDefaultProvider(String name) throws NoSuchAlgorithmException {
+        defaultProvider = getProvider(name);
+        LOGGER.info("AES GCM provider: {} (configured)", name);
+    }
+
+    /**
+     * Look up a usable provider by name.
+     *
+     * @param name the provider name
+     * @return the provider
+     * @throws NoSuchAlgorithmException if no usable provider has the name
+     */
+    public AesGcmProvider getProvider(String name) throws NoSuchAlgorithmException {
+        AesGcmProvider provider = providers.get(name);
+        if (provider == null) {
+            throw new NoSuchAlgorithmException("Unknown or unusable AES GCM provider: " + name
+                    + ". Usable providers: " + providers.keySet());
+        }
+        return provider;
+    }
+
+    /**
+     * Returns the names of the providers which passed the known-answer test.
+     */
+    public Set<String> getProviderNames() {
+        return Collections.unmodifiableSet(providers.keySet());
+    }
+
+    /**
+     * Returns the throughput of each provider measured by the calibration,
+     * in records per second, or an empty map if no calibration was made.
+     */
+    public synchronized Map<String, Long> getCalibration() {
+        return calibration;
+    }
+
+    private synchronized AesGcmProvider chooseDefaultProvider() {
+        if (defaultProvider != null) {
+            return defaultProvider;
+        }
+        String name = System.getProperty(PROVIDER_PROPERTY);
+        if (name != null && providers.containsKey(name)) {
+            defaultProvider = providers.get(name);
+            LOGGER.info("AES GCM provider: {} (configured)", name);
+            return defaultProvider;
+        }
+        if (name != null) {
+            LOGGER.warn("AES GCM provider {} configured by {} is unknown or unusable; usable providers: {}",
+                    name, PROVIDER_PROPERTY, providers.keySet());
+        }
+        AesGcmProvider fastest = providers.values().iterator().next();
+        if (providers.size() > 1) {
+            calibration = Collections.unmodifiableMap(calibrate(providers.values()));
+            fastest = providers.values().stream()
+                    .max((a, b) -> Long.compare(calibration.getOrDefault(a.getName(), -1L),
+                            calibration.getOrDefault(b.getName(), -1L)))
+                    .orElse(fastest);
+            LOGGER.info("AES GCM provider calibration, records/s: {}", calibration);
+        }
+        defaultProvider = fastest;
+        LOGGER.info("AES GCM provider: {}", fastest.getName());
+        return fastest;
+    }
+
+    /**
+     * Checks that a provider encrypts the known plaintext to the known
+     * ciphertext in heap buffers, decrypts it in direct buffers, and rejects
+     * a tampered ciphertext.
+     */
+    static boolean isKnownAnswerCorrect(AesGcmProvider provider) {
+        try {
+            SecretKey key = EncUtils.createAesSecretKey(KAT_KEY);
+            EncrypterDecrypter enc = provider.createEncrypterDecrypter(key, new CounterNonceGenerator());
+            if (!Arrays.equals(KAT_CIPHERTEXT, enc.encrypt(KAT_PLAINTEXT, KAT_IV).getCiphertext())) {
+                return false;
+            }
+            ByteBuffer ciphertext = ByteBuffer.allocateDirect(KAT_CIPHERTEXT.length).put(KAT_CIPHERTEXT).flip();
+            ByteBuffer plaintext = ByteBuffer.allocateDirect(KAT_PLAINTEXT.length);
+            enc.decrypt(ciphertext, KAT_IV, plaintext);
+            if (!plaintext.flip().equals(ByteBuffer.wrap(KAT_PLAINTEXT))) {
+                return false;
+            }
+            byte[] tampered = KAT_CIPHERTEXT.clone();
+            tampered[tampered.length - 1] ^= 1;
+            try {
+                enc.decrypt(new EncData(KAT_IV, tampered));
+                return false;
+            } catch (GeneralSecurityException e) {
+                return true;
+            }
+        } catch (Exception | LinkageError e) {
+            LOGGER.warn("AES GCM provider {} failed the known-answer test", provider.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Measure the throughput of each provider encrypting and decrypting
+     * records, in records per second. Providers failing are omitted.
+     */
+    static Map<String, Long> calibrate(Collection<AesGcmProvider> providers) {
+        Map<String, Long> results = new LinkedHashMap<>();
+        byte[] record = EncUtils.createRandom(CALIBRATION_RECORD_SIZE);
+        for (AesGcmProvider provider : providers) {
+            try {
+                SecretKey key = EncUtils.generateAesKey(256);
+                EncrypterDecrypter enc = provider.createEncrypterDecrypter(key, new CounterNonceGenerator());
+                ByteBuffer ciphertext = ByteBuffer.allocate(enc.getCiphertextSize(record.length));
+                ByteBuffer plaintext = ByteBuffer.allocate(record.length);
+                run(enc, record, ciphertext, plaintext, WARMUP_NANOS);
+                results.put(provider.getName(), run(enc, record, ciphertext, plaintext, CALIBRATION_NANOS));
+            } catch (Exception e) {
+                LOGGER.warn("AES GCM provider {} failed calibration", provider.getName(), e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Encrypt and decrypt the record repeatedly for the given time.
+     *
+     * @return the number of records encrypted and decrypted per second
+     */
+    private static long run(EncrypterDecrypter enc, byte[] record, ByteBuffer ciphertext,
+            ByteBuffer plaintext, long nanos) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        long elapsed;
+        long count = 0;
+        do {
+            byte[] iv = enc.createIv();
+            ciphertext.clear();
+            enc.encrypt(ByteBuffer.wrap(record), iv, ciphertext);
+            plaintext.clear();
+            enc.decrypt(ciphertext.flip(), iv, plaintext);
+            count++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return count * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.ser.AeadV2SerDer;
+import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
+
+/**
+ * AES GCM with serialization version 1. Data is written in the compact
+ * version 2 layout; data in the version 1 layout remains readable. This is
+ * the default suite. Encryption is performed by the AES GCM provider chosen
+ * by the AesGcmProviderManager, or by the JCE for keys the provider cannot
+ * use.
+ */
+public class AesGcmV1CipherSuite implements CipherSuite {
+
+    public static final String NAME = "AesGcmV1";
+
+    private final EncSerDer serDer = new AeadV2SerDer(AesGcmV1SerDer.VERSION, AesGcmEncrypter.IV_SIZE);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public EncSerDer getSerDer() {
+        return serDer;
+    }
+
+    @Override
+    public EncrypterDecrypter createEncrypterDecrypter(SecretKey key) throws GeneralSecurityException {
+        NonceGenerator nonces = new CounterNonceGenerator();
+        try {
+            return AesGcmProviderManager.getInstance().getDefaultProvider()
+                    .createEncrypterDecrypter(key, nonces);
+        } catch (InvalidKeyException e) {
+            return new AesGcmEncrypter(key, nonces);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * An Encrypter/Decrypter for ChaCha20-Poly1305 (RFC 8439). Unlike AES, its
+ * performance does not depend on hardware support, making it the faster
+ * choice on CPUs without AES instructions. Requires a 256-bit key and a
+ * 96-bit nonce.
+ */
+public class ChaCha20Poly1305Encrypter extends AeadEncrypter {
+
+    public static final String TRANSFORMATION = "ChaCha20-Poly1305";
+    public static final int NONCE_SIZE = 12; // bytes
+    public static final int TAG_SIZE = 16; // bytes
+    private static final String JCE_PROVIDER = "SunJCE";
+
+    private static final CipherCache CIPHER_CACHE = new CipherCache(TRANSFORMATION, JCE_PROVIDER);
+
+    public ChaCha20Poly1305Encrypter(SecretKey key) {
+        this(key, new CounterNonceGenerator());
+    }
+
+    public ChaCha20Poly1305Encrypter(SecretKey key, NonceGenerator nonces) {
+        super(key, nonces, CIPHER_CACHE, TAG_SIZE);
+        if (nonces.getNonceSize() != NONCE_SIZE) {
+            throw new IllegalArgumentException("ChaCha20-Poly1305 requires a 96-bit nonce.");
+        }
+    }
+
+    @Override
+    protected AlgorithmParameterSpec createParameterSpec(byte[] iv) {
+        return new IvParameterSpec(iv);
+    }
+
+    /**
+     * The JCE cipher rejects re-initialization with the key and nonce of its
+     * previous initialization, even for decryption. Decrypting the same record
+     * twice in succession is legitimate, so in that case the cipher is first
+     * initialized with a different nonce. Encryption is never retried.
+     */
+    @Override
+    protected void initCipher(Cipher cipher, int mode, SecretKey key, byte[] iv)
+            throws GeneralSecurityException {
+        try {
+            super.initCipher(cipher, mode, key, iv);
+        } catch (InvalidKeyException e) {
+            if (mode != Cipher.DECRYPT_MODE) {
+                throw e;
+            }
+            byte[] otherIv = iv.clone();
+            otherIv[0] ^= 1;
+            super.initCipher(cipher, mode, key, otherIv);
+            super.initCipher(cipher, mode, key, iv);
+        }
+    }
+}
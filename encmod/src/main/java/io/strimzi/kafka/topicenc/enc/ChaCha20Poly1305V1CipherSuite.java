@@ -0,0 +1,45 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.InvalidKeyException;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.ser.AeadV2SerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
+
+/**
+ * ChaCha20-Poly1305 with serialization version 2, written in the compact
+ * version 2 layout. Requires 256-bit keys.
+ */
+public class ChaCha20Poly1305V1CipherSuite implements CipherSuite {
+
+    public static final String NAME = "ChaCha20Poly1305V1";
+    public static final short SERIALIZATION_VERSION = 2;
+    private static final int KEY_SIZE = 32; // bytes
+
+    private final EncSerDer serDer = new AeadV2SerDer(SERIALIZATION_VERSION,
+            ChaCha20Poly1305Encrypter.NONCE_SIZE);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public EncSerDer getSerDer() {
+        return serDer;
+    }
+
+    @Override
+    public EncrypterDecrypter createEncrypterDecrypter(SecretKey key) throws InvalidKeyException {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null || encoded.length != KEY_SIZE) {
+            throw new InvalidKeyException("ChaCha20-Poly1305 requires a 256-bit key.");
+        }
+        return new ChaCha20Poly1305Encrypter(key);
+    }
+}
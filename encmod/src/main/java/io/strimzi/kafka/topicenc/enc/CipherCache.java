@@ -0,0 +1,97 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * A per-thread cache of Cipher instances, indexed by SecretKey. Obtaining a
+ * Cipher from the JCE involves a provider lookup and object allocation and the
+ * first init() with a key computes the key schedule. Re-using a Cipher that was
+ * last initialized with the same key avoids this work, leaving only the
+ * per-record IV to be set on init().
+ *
+ * Cipher instances are not thread-safe, so each thread holds its own cache.
+ * The number of ciphers per thread is bounded; the least recently used is
+ * evicted when the bound is reached.
+ */
+public class CipherCache {
+
+    public static final int DEFAULT_MAX_CIPHERS_PER_THREAD = 64;
+
+    private final String transformation;
+    private final String provider;
+    private final int maxCiphersPerThread;
+    private final ThreadLocal<Map<SecretKey, Cipher>> ciphers;
+    private final ThreadLocal<Cipher> transientCiphers = new ThreadLocal<>();
+
+    public CipherCache(String transformation, String provider) {
+        this(transformation, provider, DEFAULT_MAX_CIPHERS_PER_THREAD);
+    }
+
+    public CipherCache(String transformation, String provider, int maxCiphersPerThread) {
+        if (maxCiphersPerThread < 1) {
+            throw new IllegalArgumentException("Cipher cache size must be positive.");
+        }
+        this.transformation = transformation;
+        this.provider = provider;
+        this.maxCiphersPerThread = maxCiphersPerThread;
+        this.ciphers = ThreadLocal.withInitial(this::createThreadCache);
+    }
+
+    /**
+     * Return the calling thread's Cipher for the given key, creating one if
+     * needed. The caller is responsible for calling init() on the returned
+     * instance before use.
+     *
+     * @param key the key the cipher will be initialized with
+     * @return a Cipher instance owned by the calling thread
+     * @throws GeneralSecurityException if the cipher cannot be instantiated
+     */
+    public Cipher get(SecretKey key) throws GeneralSecurityException {
+        Map<SecretKey, Cipher> threadCache = ciphers.get();
+        Cipher cipher = threadCache.get(key);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            threadCache.put(key, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Return the calling thread's Cipher for keys used only briefly, such as
+     * keys derived per message, which would otherwise evict the ciphers of
+     * long-lived keys from the cache. The caller is responsible for calling
+     * init() on the returned instance before use.
+     *
+     * @return a Cipher instance owned by the calling thread
+     * @throws GeneralSecurityException if the cipher cannot be instantiated
+     */
+    public Cipher getTransient() throws GeneralSecurityException {
+        Cipher cipher = transientCiphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            transientCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private Map<SecretKey, Cipher> createThreadCache() {
+        // access-ordered map, giving LRU eviction
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SecretKey, Cipher> eldest) {
+                return size() > maxCiphersPerThread;
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
+
+/**
+ * A cipher suite pairs an encryption algorithm with the serialization of the
+ * data it encrypts. Implementations are discovered by the CipherSuiteManager
+ * using the Java ServiceLoader mechanism. A topic policy selects a suite by
+ * name with its encMethod property.
+ */
+public interface CipherSuite {
+
+    /**
+     * Every suite names itself. This name must be unique and is the value of
+     * the encMethod property of topic policies using this suite, for example
+     * "AesGcmV1".
+     *
+     * @return the suite name
+     */
+    String getName();
+
+    /**
+     * Returns the serializer of data encrypted by this suite. The serializer's
+     * version must be unique, as it identifies the suite with which stored data
+     * was encrypted.
+     *
+     * @return the serializer
+     */
+    EncSerDer getSerDer();
+
+    /**
+     * Instantiate the Encrypter/Decrypter of this suite for the given key.
+     *
+     * @param key the key
+     * @return the Encrypter/Decrypter
+     * @throws GeneralSecurityException if the key is unsuitable for the suite
+     */
+    EncrypterDecrypter createEncrypterDecrypter(SecretKey key) throws GeneralSecurityException;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import io.strimzi.kafka.topicenc.ser.EncSerDerException;
+
+/**
+ * The CipherSuiteManager is a singleton managing cipher suites declared using
+ * the Java service providers interface (SPI). Suites are looked up by name,
+ * when encrypting according to a topic policy, and by serialization version,
+ * when decrypting stored data.
+ */
+public class CipherSuiteManager {
+
+    /**
+     * The suite used by policies which do not specify an encryption method.
+     */
+    public static final String DEFAULT_CIPHER_SUITE = AesGcmV1CipherSuite.NAME;
+
+    private static final CipherSuiteManager INSTANCE = new CipherSuiteManager();
+    private static final String DUP_SUITE_MSG = """
+            Cipher suite error: Cipher suite names and serialization versions must be unique.
+            The following names or versions appear more than once: %s.
+            Possible actions:
+            - Remove one or more jar files from the classpath.
+            - Rebuild the cipher suite with a new, unique name and version.
+            """;
+
+    private final Map<String, CipherSuite> suitesByName = new HashMap<>();
+    private final Map<Short, CipherSuite> suitesByVersion = new HashMap<>();
+    private final Set<String> dups = new HashSet<>();
+
+    private CipherSuiteManager() {
+        // load all cipher suite service providers, indexing them by name and version.
+        // Unlike KMS factories, suites are looked up for every record, hence the maps.
+        for (CipherSuite suite : ServiceLoader.load(CipherSuite.class)) {
+            if (suitesByName.putIfAbsent(suite.getName(), suite) != null) {
+                dups.add(suite.getName());
+            }
+            short version = suite.getSerDer().getVersion();
+            if (suitesByVersion.putIfAbsent(version, suite) != null) {
+                dups.add("version " + version);
+            }
+        }
+    }
+
+    /**
+     * Returns the singleton CipherSuiteManager instance.
+     *
+     * @return the instance
+     * @throws IllegalStateException if suite names or versions are not unique
+     */
+    public static CipherSuiteManager getInstance() {
+        if (!INSTANCE.dups.isEmpty()) {
+            throw new IllegalStateException(String.format(DUP_SUITE_MSG, INSTANCE.dups));
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Look up a cipher suite by name. A null name denotes the default suite.
+     *
+     * @param name the suite name, as in a topic policy's encMethod
+     * @return the suite
+     * @throws NoSuchAlgorithmException if no suite has the name
+     */
+    public CipherSuite getCipherSuite(String name) throws NoSuchAlgorithmException {
+        CipherSuite suite = suitesByName.get(name != null ? name : DEFAULT_CIPHER_SUITE);
+        if (suite == null) {
+            throw new NoSuchAlgorithmException("Unknown cipher suite: " + name);
+        }
+        return suite;
+    }
+
+    /**
+     * Look up the cipher suite with which data of the given serialization
+     * version was encrypted.
+     *
+     * @param version the serialization version
+     * @return the suite
+     * @throws EncSerDerException if no suite has the version
+     */
+    public CipherSuite getCipherSuite(short version) throws EncSerDerException {
+        CipherSuite suite = suitesByVersion.get(version);
+        if (suite == null) {
+            throw new EncSerDerException("Unsupported serialization version: " + version);
+        }
+        return suite;
+    }
+
+    /**
+     * Indicates whether a suite with the given name is available. A null name
+     * denotes the default suite.
+     */
+    public boolean hasCipherSuite(String name) {
+        return suitesByName.containsKey(name != null ? name : DEFAULT_CIPHER_SUITE);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates 96-bit GCM nonces following the deterministic construction of
+ * NIST SP 800-38D: a 32-bit fixed field, chosen at random per instance,
+ * followed by a 64-bit invocation counter. Random bits are only drawn at
+ * construction; each nonce costs a single atomic increment.
+ *
+ * The counter starts at a random value, so the nonces of instances sharing a
+ * key (other proxies, or this proxy after a restart) collide only if both the
+ * random prefixes and the counter ranges overlap. The counter wraps within its
+ * 64 bits and never carries into the prefix. The number of nonces an instance
+ * issues is limited; once the limit is reached, the key must be replaced.
+ */
+public class CounterNonceGenerator implements NonceGenerator {
+
+    public static final int NONCE_SIZE = 12; // bytes
+    public static final int PREFIX_SIZE = 4; // bytes
+
+    /**
+     * The default number of nonces issued per instance, following the
+     * 2^32 invocation limit of SP 800-38D.
+     */
+    public static final long DEFAULT_MAX_INVOCATIONS = 1L << 32;
+
+    private static final SecureRandom SEED_RANDOM = new SecureRandom();
+
+    private final int prefix;
+    private final long counterStart;
+    private final long maxInvocations;
+    private final AtomicLong invocations = new AtomicLong();
+
+    public CounterNonceGenerator() {
+        this(DEFAULT_MAX_INVOCATIONS);
+    }
+
+    /**
+     * @param maxInvocations the number of nonces that may be generated
+     */
+    public CounterNonceGenerator(long maxInvocations) {
+        if (maxInvocations < 1) {
+            throw new IllegalArgumentException("Nonce invocation limit must be positive.");
+        }
+        this.prefix = SEED_RANDOM.nextInt();
+        this.counterStart = SEED_RANDOM.nextLong();
+        this.maxInvocations = maxInvocations;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return NONCE_SIZE;
+    }
+
+    @Override
+    public byte[] next() throws GeneralSecurityException {
+        long n = invocations.getAndIncrement();
+        if (n >= maxInvocations) {
+            // keep the count from wrapping under continued use
+            invocations.set(maxInvocations);
+            throw new GeneralSecurityException(
+                    "Nonce limit reached: " + maxInvocations + " encryptions, the key must be rotated.");
+        }
+        long counter = counterStart + n;
+        byte[] nonce = new byte[NONCE_SIZE];
+        putInt(nonce, 0, prefix);
+        putInt(nonce, PREFIX_SIZE, (int) (counter >>> 32));
+        putInt(nonce, PREFIX_SIZE + 4, (int) counter);
+        return nonce;
+    }
+
+    /**
+     * Returns the number of nonces generated so far.
+     */
+    public long getInvocations() {
+        return Math.min(invocations.get(), maxInvocations);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+/**
+ * A data encryption key (DEK), generated locally, together with its wrapped
+ * form. The wrapped key is the DEK encrypted by a master key and is stored
+ * with the data the DEK encrypts.
+ */
+public class DataKey {
+
+    private final byte[] wrappedKey;
+    private final byte[] id;
+    private final EncrypterDecrypter encrypter;
+    private final long createdMs;
+    private long numRecords;
+
+    DataKey(byte[] wrappedKey, byte[] id, EncrypterDecrypter encrypter, long createdMs) {
+        this.wrappedKey = wrappedKey;
+        this.id = id;
+        this.encrypter = encrypter;
+        this.createdMs = createdMs;
+    }
+
+    /**
+     * Returns the DEK wrapped by the master key.
+     */
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    /**
+     * Returns the short ID of this DEK. See DataKeyManager.dataKeyId().
+     */
+    public byte[] getId() {
+        return id;
+    }
+
+    /**
+     * Returns the encrypter/decrypter initialized with this DEK.
+     */
+    public EncrypterDecrypter getEncrypter() {
+        return encrypter;
+    }
+
+    long getCreatedMs() {
+        return createdMs;
+    }
+
+    long getNumRecords() {
+        return numRecords;
+    }
+
+    void addRecords(long n) {
+        numRecords += n;
+    }
+}
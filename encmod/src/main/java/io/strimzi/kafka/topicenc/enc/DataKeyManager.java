@@ -0,0 +1,155 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+
+/**
+ * Manages data encryption keys (DEKs) for envelope encryption. DEKs are
+ * generated locally and wrapped by a master key (the key encryption key, KEK)
+ * obtained once from the KMS. The current DEK is rotated when it has encrypted
+ * a maximum number of records or reached a maximum age. Rotation is local and
+ * requires no KMS call.
+ *
+ * For decryption, unwrapped DEKs are cached, indexed by their wrapped form and
+ * cipher suite, so each DEK is unwrapped once while it is in use.
+ */
+public class DataKeyManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataKeyManager.class);
+
+    public static final String KEY_WRAP_ALGORITHM = "AESWrap";
+    public static final int DEK_SIZE = 256; // bits
+    public static final int WRAPPED_KEY_SIZE = DEK_SIZE / 8 + 8; // AESWrap adds an 8-byte check value
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEK_ID_SIZE = 4; // bytes
+
+    private final SecretKey kek;
+    private final CipherSuite suite;
+    private final long maxRecords;
+    private final long maxAgeMs;
+    private final Map<CacheKey, EncrypterDecrypter> unwrappedKeys;
+    private DataKey currentKey;
+
+    /**
+     * @param kek        the master key used to wrap DEKs
+     * @param suite      the cipher suite with which DEKs encrypt
+     * @param maxRecords the number of records a DEK may encrypt before rotation
+     * @param maxAgeMs   the age in milliseconds at which a DEK is rotated
+     */
+    public DataKeyManager(SecretKey kek, CipherSuite suite, long maxRecords, long maxAgeMs) {
+        if (maxRecords < 1 || maxAgeMs < 1) {
+            throw new IllegalArgumentException("DEK rotation limits must be positive.");
+        }
+        this.kek = kek;
+        this.suite = suite;
+        this.maxRecords = maxRecords;
+        this.maxAgeMs = maxAgeMs;
+        this.unwrappedKeys = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, EncrypterDecrypter> eldest) {
+                return size() > DEFAULT_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Returns the DEK with which to encrypt the next numRecords records,
+     * rotating the current DEK if its budget would otherwise be exceeded.
+     * The records are counted against the returned DEK.
+     *
+     * @param numRecords the number of records to be encrypted
+     * @return the DEK to use
+     * @throws GeneralSecurityException if a new DEK cannot be generated or wrapped
+     */
+    public synchronized DataKey getDataKey(int numRecords) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        if (currentKey == null
+                || currentKey.getNumRecords() + numRecords > maxRecords
+                || now - currentKey.getCreatedMs() >= maxAgeMs) {
+            currentKey = createDataKey(now);
+        }
+        currentKey.addRecords(numRecords);
+        return currentKey;
+    }
+
+    /**
+     * Returns the encrypter/decrypter of a cipher suite for a wrapped DEK,
+     * unwrapping the DEK with the master key if not already cached.
+     *
+     * @param wrappedKey the wrapped DEK
+     * @param dataSuite  the cipher suite with which the data was encrypted
+     * @return the encrypter/decrypter initialized with the unwrapped DEK
+     * @throws GeneralSecurityException if the DEK cannot be unwrapped with the master key
+     */
+    public synchronized EncrypterDecrypter getDecrypter(byte[] wrappedKey, CipherSuite dataSuite)
+            throws GeneralSecurityException {
+        CacheKey cacheKey = new CacheKey(dataSuite.getName(), ByteBuffer.wrap(wrappedKey));
+        EncrypterDecrypter dec = unwrappedKeys.get(cacheKey);
+        if (dec == null) {
+            dec = dataSuite.createEncrypterDecrypter(unwrap(wrappedKey));
+            unwrappedKeys.put(cacheKey, dec);
+        }
+        return dec;
+    }
+
+    private DataKey createDataKey(long now) throws GeneralSecurityException {
+        KeyGenerator kgen = KeyGenerator.getInstance(EncUtils.AES);
+        kgen.init(DEK_SIZE);
+        SecretKey dek = kgen.generateKey();
+        byte[] wrapped = wrap(dek);
+
+        EncrypterDecrypter enc = suite.createEncrypterDecrypter(dek);
+        // the new DEK will likely be needed for decryption soon
+        unwrappedKeys.put(new CacheKey(suite.getName(), ByteBuffer.wrap(wrapped)), enc);
+        LOGGER.debug("Rotated data encryption key");
+        return new DataKey(wrapped, dataKeyId(wrapped), enc, now);
+    }
+
+    private byte[] wrap(SecretKey dek) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+        cipher.init(Cipher.WRAP_MODE, kek);
+        return cipher.wrap(dek);
+    }
+
+    /**
+     * Returns the short ID of a wrapped DEK, by which records reference the
+     * DEK carried by an earlier record of their batch: the first DEK_ID_SIZE
+     * bytes of the SHA-256 hash of the wrapped DEK.
+     *
+     * @param wrappedKey the wrapped DEK
+     * @return the ID of the DEK
+     */
+    public static byte[] dataKeyId(byte[] wrappedKey) throws GeneralSecurityException {
+        return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(wrappedKey), DEK_ID_SIZE);
+    }
+
+    private SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+        cipher.init(Cipher.UNWRAP_MODE, kek);
+        Key key = cipher.unwrap(wrappedKey, EncUtils.AES, Cipher.SECRET_KEY);
+        return (SecretKey) key;
+    }
+
+    private record CacheKey(String suiteName, ByteBuffer wrappedKey) {
+    }
+}
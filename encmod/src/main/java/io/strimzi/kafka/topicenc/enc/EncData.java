@@ -4,25 +4,56 @@
  */
 package io.strimzi.kafka.topicenc.enc;
 
+import java.nio.ByteBuffer;
+
 /**
  * Encrypted data. Contains the ciphertext and IV.
  * This class covers symmetric block ciphers such as AES.
  * Other types of encrypted data classes are possible in the future.
+ * The ciphertext is either held in an array or, when deserialized
+ * from a record, as a view on the record's buffer.
  */
 public class EncData {
-	private final byte[] iv;         
-	private final byte[] ciphertext;
-	
+	private final byte[] iv;
+	private byte[] ciphertext;
+	private final ByteBuffer ciphertextBuf;
+
 	public EncData(byte[] iv, byte[] ciphertext) {
 		this.iv = iv;
-		this.ciphertext = ciphertext; 
+		this.ciphertext = ciphertext;
+		this.ciphertextBuf = null;
+	}
+
+	public EncData(byte[] iv, ByteBuffer ciphertext) {
+		this.iv = iv;
+		this.ciphertextBuf = ciphertext;
 	}
 
 	public byte[] getIv() {
 		return iv;
 	}
 
+	/**
+	 * Returns the ciphertext as an array. If this instance was created
+	 * with a buffer, the buffer's remaining bytes are copied on first access.
+	 */
 	public byte[] getCiphertext() {
+		if (ciphertext == null) {
+			ciphertext = new byte[ciphertextBuf.remaining()];
+			ciphertextBuf.duplicate().get(ciphertext);
+		}
 		return ciphertext;
 	}
+
+	/**
+	 * Returns a buffer positioned at the start of the ciphertext,
+	 * with the ciphertext length remaining. The returned buffer
+	 * can be consumed without affecting this instance.
+	 */
+	public ByteBuffer getCiphertextBuffer() {
+		if (ciphertextBuf == null) {
+			return ByteBuffer.wrap(ciphertext);
+		}
+		return ciphertextBuf.duplicate();
+	}
 }
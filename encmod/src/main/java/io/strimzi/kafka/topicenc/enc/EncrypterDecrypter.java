@@ -4,6 +4,7 @@
  */
 package io.strimzi.kafka.topicenc.enc;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
 /**
@@ -23,4 +24,72 @@ public interface EncrypterDecrypter {
 	EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException; 
 	
 	byte[] decrypt(EncData encMetadata) throws GeneralSecurityException; 
+
+	/**
+	 * Generate a new nonce/IV for use with encrypt(ByteBuffer, byte[], ByteBuffer).
+	 * @return a new IV
+	 * @throws GeneralSecurityException if the key may not be used for further encryptions
+	 */
+	byte[] createIv() throws GeneralSecurityException;
+
+	/**
+	 * Returns the length in bytes of the IVs returned by createIv().
+	 */
+	int getIvSize();
+
+	/**
+	 * Returns the length of the ciphertext (including any authentication tag)
+	 * resulting from the encryption of a plaintext of the given length.
+	 * @param plaintextLen
+	 * @return the ciphertext length in bytes
+	 */
+	int getCiphertextSize(int plaintextLen);
+
+	/**
+	 * Returns the length of the plaintext resulting from the decryption
+	 * of a ciphertext of the given length.
+	 * @param ciphertextLen
+	 * @return the plaintext length in bytes
+	 */
+	int getPlaintextSize(int ciphertextLen);
+
+	/**
+	 * Encrypt the remaining bytes of the plaintext buffer, writing the ciphertext
+	 * into the destination buffer at its current position. Both buffers may be
+	 * heap or direct buffers. On return, the position of the plaintext buffer
+	 * equals its limit and the position of the ciphertext buffer is advanced by
+	 * the number of bytes written.
+	 * @param plaintext the source buffer
+	 * @param iv the IV to use
+	 * @param ciphertext the destination buffer
+	 * @return the number of bytes written to the destination buffer
+	 * @throws GeneralSecurityException
+	 */
+	int encrypt(ByteBuffer plaintext, byte[] iv, ByteBuffer ciphertext) throws GeneralSecurityException;
+
+	/**
+	 * Decrypt the remaining bytes of the ciphertext buffer, writing the plaintext
+	 * into the destination buffer at its current position. Buffer positions
+	 * are updated as with encrypt(ByteBuffer, byte[], ByteBuffer). The buffers
+	 * may share memory, with the plaintext written at or before the position of
+	 * the ciphertext, so records can be decrypted in place; implementations
+	 * must not overwrite ciphertext not yet processed.
+	 * @param ciphertext the source buffer
+	 * @param iv the IV with which the ciphertext was encrypted
+	 * @param plaintext the destination buffer
+	 * @return the number of bytes written to the destination buffer
+	 * @throws GeneralSecurityException
+	 */
+	int decrypt(ByteBuffer ciphertext, byte[] iv, ByteBuffer plaintext) throws GeneralSecurityException;
+
+	/**
+	 * Returns an Encrypter/Decrypter for the same key which encrypts large
+	 * plaintexts in fixed-size segments, each authenticated on its own, so
+	 * that they are processed incrementally in bounded memory. Returns this
+	 * if already segmented, or null if segmented encryption is not supported.
+	 * @return the segmented Encrypter/Decrypter, or null
+	 */
+	default EncrypterDecrypter getSegmented() {
+		return null;
+	}
 }
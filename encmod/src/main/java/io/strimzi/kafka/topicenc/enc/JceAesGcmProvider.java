@@ -0,0 +1,61 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+
+/**
+ * AES GCM as implemented by an installed JCE provider. Its name is that of
+ * the JCE provider prefixed with "jce:", for example "jce:SunJCE".
+ */
+class JceAesGcmProvider implements AesGcmProvider {
+
+    static final String NAME_PREFIX = "jce:";
+
+    private final String name;
+    private final CipherCache ciphers;
+
+    /**
+     * @param jceProvider the name of the JCE provider
+     */
+    JceAesGcmProvider(String jceProvider) {
+        this.name = NAME_PREFIX + jceProvider;
+        this.ciphers = AesGcmEncrypter.createCipherCache(jceProvider);
+    }
+
+    /**
+     * Indicates whether a JCE provider implements the transformation of
+     * AesGcmEncrypter.
+     */
+    static boolean supports(Provider jceProvider) {
+        try {
+            Cipher.getInstance(EncUtils.AES256_GCM_NOPADDING, jceProvider);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public EncrypterDecrypter createEncrypterDecrypter(SecretKey key, NonceGenerator nonces) {
+        return new AesGcmEncrypter(key, nonces, ciphers);
+    }
+}
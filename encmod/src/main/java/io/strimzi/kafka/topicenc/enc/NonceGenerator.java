@@ -0,0 +1,28 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Generates the nonces (IVs) used by an encrypter. A nonce generator belongs
+ * to a single key; no nonce it returns may be returned again for that key.
+ * Implementations must be thread-safe.
+ */
+public interface NonceGenerator {
+
+    /**
+     * Returns the size in bytes of the nonces generated.
+     */
+    int getNonceSize();
+
+    /**
+     * Returns a new nonce.
+     *
+     * @return the nonce
+     * @throws GeneralSecurityException if no further nonces may be generated for the key
+     */
+    byte[] next() throws GeneralSecurityException;
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates nonces consisting entirely of random bits. Every nonce draws from
+ * a SecureRandom, which is comparatively costly and, under concurrent use,
+ * contended. Prefer CounterNonceGenerator.
+ */
+public class RandomNonceGenerator implements NonceGenerator {
+
+    private final int nonceSize;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param nonceSize the nonce size in bytes
+     */
+    public RandomNonceGenerator(int nonceSize) {
+        if (nonceSize < 1) {
+            throw new IllegalArgumentException("Nonce size must be positive.");
+        }
+        this.nonceSize = nonceSize;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return nonceSize;
+    }
+
+    @Override
+    public byte[] next() {
+        byte[] buf = new byte[nonceSize];
+        random.nextBytes(buf);
+        return buf;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a plaintext in segments of SEGMENT_SIZE bytes, each with its own
+ * authentication tag, following the STREAM construction of Hoang et al. Each
+ * segment is processed by its own cipher operation, so the working memory of
+ * the cipher is bounded by the segment size however large the plaintext.
+ *
+ * The IV of a message is not used as a nonce. Instead, a key for the message
+ * is derived from the key and the IV with HMAC-SHA256, and the nonce of each
+ * segment is its index followed by a flag marking the last segment. Segments
+ * can therefore be neither reordered nor dropped, and a message may have up
+ * to 2^32 segments without exhausting the nonces of the key.
+ *
+ * Instances are created by AeadEncrypter.getSegmented() and are thread safe.
+ */
+public class SegmentedAeadEncrypter implements EncrypterDecrypter {
+
+    public static final int SEGMENT_SIZE = 64 * 1024; // bytes
+    public static final int NONCE_SIZE = 12; // bytes
+
+    private static final byte[] KEY_LABEL = "topicenc segment key".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final AeadEncrypter base;
+    private final SecretKey key;
+    private final CipherCache ciphers;
+    private final int tagSize;
+
+    SegmentedAeadEncrypter(AeadEncrypter base, SecretKey key, CipherCache ciphers, int tagSize) {
+        this.base = base;
+        this.key = key;
+        this.ciphers = ciphers;
+        this.tagSize = tagSize;
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return encrypt(plaintext, createIv());
+    }
+
+    @Override
+    public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
+        byte[] ciphertext = new byte[getCiphertextSize(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), iv, ByteBuffer.wrap(ciphertext));
+        return new EncData(iv, ciphertext);
+    }
+
+    @Override
+    public byte[] decrypt(EncData encData) throws GeneralSecurityException {
+        ByteBuffer ciphertext = encData.getCiphertextBuffer();
+        byte[] plaintext = new byte[getPlaintextSize(ciphertext.remaining())];
+        decrypt(ciphertext, encData.getIv(), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    /**
+     * The IV is drawn from the nonces of the underlying encrypter, so is
+     * unique per message under the key.
+     */
+    @Override
+    public byte[] createIv() throws GeneralSecurityException {
+        return base.createIv();
+    }
+
+    @Override
+    public int getIvSize() {
+        return base.getIvSize();
+    }
+
+    @Override
+    public int getCiphertextSize(int plaintextLen) {
+        return plaintextLen + numSegments(plaintextLen, SEGMENT_SIZE) * tagSize;
+    }
+
+    @Override
+    public int getPlaintextSize(int ciphertextLen) {
+        return Math.max(0, ciphertextLen - numSegments(ciphertextLen, SEGMENT_SIZE + tagSize) * tagSize);
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plaintext, byte[] iv, ByteBuffer ciphertext)
+            throws GeneralSecurityException {
+        return process(Cipher.ENCRYPT_MODE, plaintext, SEGMENT_SIZE, iv, ciphertext);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer ciphertext, byte[] iv, ByteBuffer plaintext)
+            throws GeneralSecurityException {
+        if (ciphertext.remaining() < tagSize) {
+            throw new GeneralSecurityException("Ciphertext shorter than authentication tag.");
+        }
+        return process(Cipher.DECRYPT_MODE, ciphertext, SEGMENT_SIZE + tagSize, iv, plaintext);
+    }
+
+    @Override
+    public EncrypterDecrypter getSegmented() {
+        return this;
+    }
+
+    /**
+     * Process the input segment by segment, each segment with its own nonce.
+     * The output of a segment is never longer than its input, so a segment
+     * written at or before the position of its input does not overwrite input
+     * not yet processed.
+     */
+    private int process(int mode, ByteBuffer in, int segmentSize, byte[] iv, ByteBuffer out)
+            throws GeneralSecurityException {
+        SecretKey messageKey = deriveKey(iv);
+        Cipher cipher = ciphers.getTransient();
+        byte[] nonce = new byte[NONCE_SIZE];
+        int numSegments = numSegments(in.remaining(), segmentSize);
+        int end = in.limit();
+        ByteBuffer segment = in.duplicate();
+        int written = 0;
+        for (int i = 0; i < numSegments; i++) {
+            boolean last = i == numSegments - 1;
+            segment.limit(last ? end : segment.position() + segmentSize);
+            setNonce(nonce, i, last);
+            base.initCipher(cipher, mode, messageKey, nonce);
+            written += cipher.doFinal(segment, out);
+        }
+        in.position(end);
+        return written;
+    }
+
+    /**
+     * Derive the key of the message with the given IV. The derived key has the
+     * length and algorithm of the key.
+     */
+    private SecretKey deriveKey(byte[] iv) throws GeneralSecurityException {
+        if (iv == null || iv.length == 0) {
+            throw new GeneralSecurityException("Initialization vector either null or empty.");
+        }
+        byte[] keyBytes = key.getEncoded();
+        if (keyBytes == null) {
+            throw new InvalidKeyException("Segmented encryption requires a key with accessible material.");
+        }
+        Mac mac = MACS.get();
+        mac.init(key);
+        mac.update(KEY_LABEL);
+        byte[] derived = Arrays.copyOf(mac.doFinal(iv), keyBytes.length);
+        Arrays.fill(keyBytes, (byte) 0);
+        return new SecretKeySpec(derived, key.getAlgorithm());
+    }
+
+    private static void setNonce(byte[] nonce, int index, boolean last) {
+        int pos = NONCE_SIZE - Integer.BYTES - 1;
+        nonce[pos++] = (byte) (index >>> 24);
+        nonce[pos++] = (byte) (index >>> 16);
+        nonce[pos++] = (byte) (index >>> 8);
+        nonce[pos++] = (byte) index;
+        nonce[pos] = (byte) (last ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of segments of the given size, the last of which may
+     * be shorter, needed for len bytes. An empty input has one empty segment.
+     */
+    private static int numSegments(int len, int segmentSize) {
+        return Math.max(1, (int) ((len + (long) segmentSize - 1) / segmentSize));
+    }
+}
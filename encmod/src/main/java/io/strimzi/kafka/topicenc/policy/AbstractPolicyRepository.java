@@ -10,6 +10,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.strimzi.kafka.topicenc.common.Strings;
 
@@ -18,8 +19,9 @@ import io.strimzi.kafka.topicenc.common.Strings;
  */
 public abstract class AbstractPolicyRepository implements PolicyRepository {
 
-    protected Map<String, TopicPolicy> policyMap = new HashMap<>();
-    protected boolean isEncryptAllTopics;
+    protected volatile Map<String, TopicPolicy> policyMap = new HashMap<>();
+    protected volatile boolean isEncryptAllTopics;
+    private final AtomicLong generation = new AtomicLong();
 
     /**
      * Retrieve a topic policy by topic name.
@@ -35,6 +37,19 @@ public abstract class AbstractPolicyRepository implements PolicyRepository {
         return policyMap.get(key);
     }
 
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * To be called by subclasses after changing the policies, invalidating
+     * decisions cached on the earlier policies.
+     */
+    protected void policiesChanged() {
+        generation.incrementAndGet();
+    }
+
     protected static String key(TopicPolicy policy) {
         return createKey(policy.getTopic(), Locale.getDefault());
     }
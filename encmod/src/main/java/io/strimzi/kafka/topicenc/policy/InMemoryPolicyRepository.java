@@ -22,9 +22,21 @@ public class InMemoryPolicyRepository extends AbstractPolicyRepository {
      * @param policies A list of topic policies
      */
     public InMemoryPolicyRepository(List<TopicPolicy> policies) {
+        setPolicies(policies);
+    }
+
+    /**
+     * Replace the policies of the repository, as when the policies have been
+     * reloaded.
+     * 
+     * @param policies A list of topic policies
+     */
+    public void setPolicies(List<TopicPolicy> policies) {
         Objects.requireNonNull(policies, "Topic policy list must be non-null.");
-        isEncryptAllTopics = isWildcardPolicy(policies);
+        boolean encryptAll = isWildcardPolicy(policies);
         policyMap = policies.stream()
                 .collect(Collectors.toMap(InMemoryPolicyRepository::key, Function.identity()));
+        isEncryptAllTopics = encryptAll;
+        policiesChanged();
     }
 }
@@ -15,4 +15,15 @@ package io.strimzi.kafka.topicenc.policy;
 public interface PolicyRepository {
 
     TopicPolicy getTopicPolicy(String topicName);
+
+    /**
+     * Returns the generation of the repository's policies, which changes
+     * whenever the policies change. Decisions taken on the policies, such as
+     * whether a topic is encrypted, may be cached for as long as the
+     * generation is unchanged. The default suits repositories whose policies
+     * never change.
+     */
+    default long getGeneration() {
+        return 0;
+    }
 }
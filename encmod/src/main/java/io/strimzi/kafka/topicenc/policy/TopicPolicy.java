@@ -4,7 +4,13 @@
  */
 package io.strimzi.kafka.topicenc.policy;
 
+import java.util.Locale;
+
+import org.apache.kafka.common.record.CompressionType;
+
 import io.strimzi.kafka.topicenc.common.Strings;
+import io.strimzi.kafka.topicenc.enc.CipherSuiteManager;
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
 import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
 
 /**
@@ -21,17 +27,162 @@ public class TopicPolicy {
      */
     public static final String ALL_TOPICS = "*";
 
+    /**
+     * Encryption granularity in which each record value is encrypted
+     * individually. This is the default.
+     */
+    public static final String GRANULARITY_RECORD = "record";
+
+    /**
+     * Encryption granularity in which each record batch is encrypted as a single
+     * unit. Not suitable for compacted topics, as the stored records carry no
+     * keys, so rejected for a policy whose cleanup policy is compact.
+     */
+    public static final String GRANULARITY_BATCH = "batch";
+
+    /**
+     * Cleanup policy of a topic whose old log segments are deleted. This is
+     * the default.
+     */
+    public static final String CLEANUP_POLICY_DELETE = "delete";
+
+    /**
+     * Cleanup policy of a compacted topic, retaining the last record of each
+     * key.
+     */
+    public static final String CLEANUP_POLICY_COMPACT = "compact";
+
+    /**
+     * Key mode in which data is encrypted directly with the key obtained from
+     * the key management system. This is the default.
+     */
+    public static final String KEY_MODE_DIRECT = "direct";
+
+    /**
+     * Key mode in which data is encrypted with locally generated data keys,
+     * each wrapped by the key obtained from the key management system.
+     */
+    public static final String KEY_MODE_ENVELOPE = "envelope";
+
+    /**
+     * Key derivation in which the key obtained from the key management system
+     * is used as the topic key. This is the default.
+     */
+    public static final String KEY_DERIVATION_NONE = "none";
+
+    /**
+     * Key derivation in which the topic key is derived from the key obtained
+     * from the key management system, with the topic name as context, so
+     * topics share one key in the key management system.
+     */
+    public static final String KEY_DERIVATION_TOPIC = "topic";
+
+    /**
+     * Key derivation in which each partition's key is derived from the key
+     * obtained from the key management system, with the topic name and
+     * partition as context.
+     */
+    public static final String KEY_DERIVATION_PARTITION = "partition";
+
+    /**
+     * Metadata placement in which the version, IV and codec precede the
+     * ciphertext in the record value. This is the default.
+     */
+    public static final String METADATA_VALUE = "value";
+
+    /**
+     * Metadata placement in which the version, IV, codec and key ID are carried
+     * in a record header, leaving only the ciphertext in the record value.
+     */
+    public static final String METADATA_HEADER = "header";
+
+    public static final long DEFAULT_KEY_MAX_RECORDS = 1L << 31;
+    public static final long DEFAULT_DEK_MAX_RECORDS = 1_000_000L;
+    public static final long DEFAULT_DEK_MAX_AGE_MS = 60 * 60 * 1000L;
+    public static final int DEFAULT_SEGMENT_THRESHOLD = 1024 * 1024;
+
     /**
      * The name of the topic to encrypt. Required.
      */
     private String topic;
 
     /**
-     * A string indicating the encryption method. Optional. Currently only one
-     * method is supported: AES-GCM.
+     * The name of the cipher suite with which to encrypt. Optional, the default
+     * is AesGcmV1.
      */
     private String encMethod;
 
+    /**
+     * The unit of encryption, either a record or a record batch. Optional, the
+     * default is GRANULARITY_RECORD.
+     */
+    private String granularity;
+
+    /**
+     * The cleanup policy of the topic, as its cleanup.policy config in Kafka:
+     * delete, compact, or both separated by a comma. Required with batch
+     * granularity, which compacted topics do not support; otherwise optional,
+     * the default being CLEANUP_POLICY_DELETE.
+     */
+    private String cleanupPolicy;
+
+    /**
+     * How the data keys wrapped by the key obtained from the key management
+     * system are rotated: in direct key mode, on the key's budget of records,
+     * in envelope key mode, on the data key limits. Optional, the default is
+     * KEY_MODE_DIRECT.
+     */
+    private String keyMode;
+
+    /**
+     * How the keys of the topic are derived from the key obtained from the key
+     * management system: not at all, per topic or per partition. Optional, the
+     * default is KEY_DERIVATION_NONE.
+     */
+    private String keyDerivation;
+
+    /**
+     * Where the encryption metadata is stored, either in the record value or
+     * in a record header. Optional, the default is METADATA_VALUE.
+     */
+    private String metadata;
+
+    /**
+     * In direct key mode, the number of records each data key wrapped by the
+     * topic key encrypts before it is replaced.
+     */
+    private long keyMaxRecords = DEFAULT_KEY_MAX_RECORDS;
+
+    /**
+     * In envelope key mode, the number of records a data key encrypts before
+     * it is replaced.
+     */
+    private long dekMaxRecords = DEFAULT_DEK_MAX_RECORDS;
+
+    /**
+     * In envelope key mode, the age in milliseconds at which a data key is
+     * replaced.
+     */
+    private long dekMaxAgeMs = DEFAULT_DEK_MAX_AGE_MS;
+
+    /**
+     * The codec with which data is compressed before encryption: none, gzip,
+     * snappy, lz4 or zstd. Optional, the default is none.
+     */
+    private String compression;
+
+    /**
+     * The path of a zstd dictionary file with which data is compressed. Only
+     * valid with zstd compression. Optional.
+     */
+    private String compressionDictionary;
+
+    /**
+     * The size in bytes above which a value, or batch, is encrypted in
+     * segments, where the cipher suite supports it.
+     */
+    private int segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+
     /**
      * The name or ID of the key to use when encrypting this topic. Typically this
      * is a key identifier in a key management system.
@@ -96,6 +247,342 @@ public class TopicPolicy {
         return this;
     }
 
+    /**
+     * Returns the encryption granularity: record or batch. Can be null if not
+     * specified, in which case records are encrypted individually.
+     * 
+     * @return the encryption granularity
+     */
+    public String getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Set the encryption granularity, either GRANULARITY_RECORD or
+     * GRANULARITY_BATCH.
+     * 
+     * @param granularity the encryption granularity
+     * @return this instance
+     */
+    public TopicPolicy setGranularity(String granularity) {
+        this.granularity = granularity;
+        return this;
+    }
+
+    /**
+     * Indicates whether record batches, rather than individual records, are
+     * encrypted for this topic.
+     * 
+     * @return true if the granularity is GRANULARITY_BATCH
+     */
+    public boolean isBatchGranularity() {
+        return GRANULARITY_BATCH.equalsIgnoreCase(granularity);
+    }
+
+    /**
+     * Returns the cleanup policy of the topic. Can be null if not specified,
+     * with record granularity, in which case the topic is taken not to be
+     * compacted.
+     * 
+     * @return the cleanup policy
+     */
+    public String getCleanupPolicy() {
+        return cleanupPolicy;
+    }
+
+    /**
+     * Set the cleanup policy of the topic, as its cleanup.policy config in
+     * Kafka: CLEANUP_POLICY_DELETE, CLEANUP_POLICY_COMPACT, or both separated
+     * by a comma.
+     * 
+     * @param cleanupPolicy the cleanup policy
+     * @return this instance
+     */
+    public TopicPolicy setCleanupPolicy(String cleanupPolicy) {
+        this.cleanupPolicy = cleanupPolicy;
+        return this;
+    }
+
+    /**
+     * Indicates whether the topic is declared not to be compacted, so records
+     * are never removed from its batches individually.
+     * 
+     * @return true if the cleanup policy is declared and excludes CLEANUP_POLICY_COMPACT
+     */
+    public boolean isDeclaredUncompacted() {
+        return cleanupPolicy != null && !isCompacted();
+    }
+
+    /**
+     * Indicates whether the topic is compacted.
+     * 
+     * @return true if the cleanup policy includes CLEANUP_POLICY_COMPACT
+     */
+    public boolean isCompacted() {
+        if (cleanupPolicy == null) {
+            return false;
+        }
+        for (String p : cleanupPolicy.split(",")) {
+            if (CLEANUP_POLICY_COMPACT.equalsIgnoreCase(p.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key mode: direct or envelope. Can be null if not specified, in
+     * which case the key mode is direct.
+     * 
+     * @return the key mode
+     */
+    public String getKeyMode() {
+        return keyMode;
+    }
+
+    /**
+     * Set the key mode, either KEY_MODE_DIRECT or KEY_MODE_ENVELOPE.
+     * 
+     * @param keyMode the key mode
+     * @return this instance
+     */
+    public TopicPolicy setKeyMode(String keyMode) {
+        this.keyMode = keyMode;
+        return this;
+    }
+
+    /**
+     * Indicates whether data is encrypted with locally generated data keys
+     * wrapped by the topic key.
+     * 
+     * @return true if the key mode is KEY_MODE_ENVELOPE
+     */
+    public boolean isEnvelopeKeyMode() {
+        return KEY_MODE_ENVELOPE.equalsIgnoreCase(keyMode);
+    }
+
+    /**
+     * Returns the key derivation: none, topic or partition. Can be null if not
+     * specified, in which case the key obtained from the key management
+     * system is the topic key.
+     * 
+     * @return the key derivation
+     */
+    public String getKeyDerivation() {
+        return keyDerivation;
+    }
+
+    /**
+     * Set the key derivation, KEY_DERIVATION_NONE, KEY_DERIVATION_TOPIC or
+     * KEY_DERIVATION_PARTITION.
+     * 
+     * @param keyDerivation the key derivation
+     * @return this instance
+     */
+    public TopicPolicy setKeyDerivation(String keyDerivation) {
+        this.keyDerivation = keyDerivation;
+        return this;
+    }
+
+    /**
+     * Indicates whether the keys of the topic are derived from the key
+     * obtained from the key management system, per topic or per partition.
+     * 
+     * @return true if the key derivation is KEY_DERIVATION_TOPIC or
+     *         KEY_DERIVATION_PARTITION
+     */
+    public boolean isDerivedKey() {
+        return KEY_DERIVATION_TOPIC.equalsIgnoreCase(keyDerivation) || isPartitionKeyDerivation();
+    }
+
+    /**
+     * Indicates whether each partition of the topic is encrypted with its own
+     * derived key.
+     * 
+     * @return true if the key derivation is KEY_DERIVATION_PARTITION
+     */
+    public boolean isPartitionKeyDerivation() {
+        return KEY_DERIVATION_PARTITION.equalsIgnoreCase(keyDerivation);
+    }
+
+    /**
+     * Returns where the encryption metadata is stored: value or header. Can be
+     * null if not specified, in which case it precedes the ciphertext in the
+     * record value.
+     * 
+     * @return the metadata placement
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Set where the encryption metadata is stored, either METADATA_VALUE or
+     * METADATA_HEADER.
+     * 
+     * @param metadata the metadata placement
+     * @return this instance
+     */
+    public TopicPolicy setMetadata(String metadata) {
+        this.metadata = metadata;
+        return this;
+    }
+
+    /**
+     * Indicates whether the encryption metadata is carried in a record header,
+     * leaving only the ciphertext in the record value.
+     * 
+     * @return true if the metadata placement is METADATA_HEADER
+     */
+    public boolean isHeaderMetadata() {
+        return METADATA_HEADER.equalsIgnoreCase(metadata);
+    }
+
+    /**
+     * Returns the number of records each data key wrapped by the topic key
+     * encrypts in direct key mode before it is replaced.
+     * 
+     * @return the maximum number of records per topic key
+     */
+    public long getKeyMaxRecords() {
+        return keyMaxRecords;
+    }
+
+    /**
+     * Set the number of records each data key wrapped by the topic key
+     * encrypts in direct key mode before it is replaced, so no key is used
+     * beyond the safe number of encryptions. Each process, from its first
+     * encryption, uses data keys of its own, so the budget holds however many
+     * processes share the topic key and across restarts.
+     * 
+     * @param keyMaxRecords the maximum number of records per topic key
+     * @return this instance
+     */
+    public TopicPolicy setKeyMaxRecords(long keyMaxRecords) {
+        this.keyMaxRecords = keyMaxRecords;
+        return this;
+    }
+
+    /**
+     * Returns the number of records a data key encrypts before it is replaced.
+     * 
+     * @return the maximum number of records per data key
+     */
+    public long getDekMaxRecords() {
+        return dekMaxRecords;
+    }
+
+    /**
+     * Set the number of records a data key encrypts before it is replaced.
+     * 
+     * @param dekMaxRecords the maximum number of records per data key
+     * @return this instance
+     */
+    public TopicPolicy setDekMaxRecords(long dekMaxRecords) {
+        this.dekMaxRecords = dekMaxRecords;
+        return this;
+    }
+
+    /**
+     * Returns the age in milliseconds at which a data key is replaced.
+     * 
+     * @return the maximum data key age
+     */
+    public long getDekMaxAgeMs() {
+        return dekMaxAgeMs;
+    }
+
+    /**
+     * Set the age in milliseconds at which a data key is replaced.
+     * 
+     * @param dekMaxAgeMs the maximum data key age
+     * @return this instance
+     */
+    public TopicPolicy setDekMaxAgeMs(long dekMaxAgeMs) {
+        this.dekMaxAgeMs = dekMaxAgeMs;
+        return this;
+    }
+
+    /**
+     * Returns the codec with which data is compressed before encryption. Can be
+     * null if not specified, in which case data is not compressed.
+     * 
+     * @return the compression codec name
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set the codec with which data is compressed before encryption, a Kafka
+     * compression type name.
+     * 
+     * @param compression the compression codec name
+     * @return this instance
+     */
+    public TopicPolicy setCompression(String compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Returns the compression codec as a Kafka compression type.
+     * 
+     * @return the compression type, NONE if not specified
+     */
+    public CompressionType getCompressionType() {
+        return compression == null
+                ? CompressionType.NONE
+                : CompressionType.forName(compression.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the path of the zstd dictionary file with which data is
+     * compressed. Can be null.
+     * 
+     * @return the dictionary file path
+     */
+    public String getCompressionDictionary() {
+        return compressionDictionary;
+    }
+
+    /**
+     * Set the path of the zstd dictionary file with which data is compressed.
+     * 
+     * @param compressionDictionary the dictionary file path
+     * @return this instance
+     */
+    public TopicPolicy setCompressionDictionary(String compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
+        return this;
+    }
+
+    /**
+     * Returns the size in bytes above which a value, or batch, is encrypted in
+     * segments.
+     * 
+     * @return the segment threshold
+     */
+    public int getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Set the size in bytes above which a value, or batch, is encrypted in
+     * segments, each authenticated on its own, bounding the working memory
+     * of the cipher. The value itself is still held whole: encrypted directly
+     * into, or decrypted over, the records of an uncompressed batch, but in a
+     * pooled buffer of its size if compressed by the policy's codec or in a
+     * batch compressed by the producer.
+     * 
+     * @param segmentThreshold the segment threshold
+     * @return this instance
+     */
+    public TopicPolicy setSegmentThreshold(int segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+        return this;
+    }
+
     /**
      * Return the key reference used to identify the key within the key management
      * system to be used for this topic.
@@ -202,6 +689,108 @@ public class TopicPolicy {
                     getTopic());
             throw new IllegalArgumentException(msg);
         }
+        if (!CipherSuiteManager.getInstance().hasCipherSuite(encMethod)) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown encryption method: %s.",
+                    getTopic(), encMethod);
+            throw new IllegalArgumentException(msg);
+        }
+        if (granularity != null
+                && !GRANULARITY_RECORD.equalsIgnoreCase(granularity)
+                && !GRANULARITY_BATCH.equalsIgnoreCase(granularity)) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown granularity: %s.",
+                    getTopic(), granularity);
+            throw new IllegalArgumentException(msg);
+        }
+        if (cleanupPolicy != null) {
+            for (String p : cleanupPolicy.split(",")) {
+                if (!CLEANUP_POLICY_DELETE.equalsIgnoreCase(p.trim())
+                        && !CLEANUP_POLICY_COMPACT.equalsIgnoreCase(p.trim())) {
+                    String msg = String.format(
+                            "Policy for topic %s has unknown cleanup policy: %s.",
+                            getTopic(), cleanupPolicy);
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+        }
+        if (isBatchGranularity() && cleanupPolicy == null) {
+            String msg = String.format(
+                    "Policy for topic %s has batch granularity but no cleanup policy, "
+                            + "which must be declared as compacted topics do not support batch granularity.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
+        if (isBatchGranularity() && isCompacted()) {
+            String msg = String.format(
+                    "Policy for topic %s has batch granularity, which compacted topics do not support.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
+        if (keyMode != null
+                && !KEY_MODE_DIRECT.equalsIgnoreCase(keyMode)
+                && !KEY_MODE_ENVELOPE.equalsIgnoreCase(keyMode)) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown key mode: %s.",
+                    getTopic(), keyMode);
+            throw new IllegalArgumentException(msg);
+        }
+        if (keyDerivation != null
+                && !KEY_DERIVATION_NONE.equalsIgnoreCase(keyDerivation)
+                && !KEY_DERIVATION_TOPIC.equalsIgnoreCase(keyDerivation)
+                && !KEY_DERIVATION_PARTITION.equalsIgnoreCase(keyDerivation)) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown key derivation: %s.",
+                    getTopic(), keyDerivation);
+            throw new IllegalArgumentException(msg);
+        }
+        if (metadata != null
+                && !METADATA_VALUE.equalsIgnoreCase(metadata)
+                && !METADATA_HEADER.equalsIgnoreCase(metadata)) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown metadata placement: %s.",
+                    getTopic(), metadata);
+            throw new IllegalArgumentException(msg);
+        }
+        if (keyMaxRecords < 1 || keyMaxRecords > CounterNonceGenerator.DEFAULT_MAX_INVOCATIONS) {
+            String msg = String.format(
+                    "Policy for topic %s has a key record limit outside 1 to %d.",
+                    getTopic(), CounterNonceGenerator.DEFAULT_MAX_INVOCATIONS);
+            throw new IllegalArgumentException(msg);
+        }
+        if (dekMaxRecords < 1 || dekMaxAgeMs < 1) {
+            String msg = String.format(
+                    "Policy for topic %s has non-positive data key limits.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
+        if (dekMaxRecords > CounterNonceGenerator.DEFAULT_MAX_INVOCATIONS) {
+            String msg = String.format(
+                    "Policy for topic %s allows more records per data key than nonces per key: %d.",
+                    getTopic(), CounterNonceGenerator.DEFAULT_MAX_INVOCATIONS);
+            throw new IllegalArgumentException(msg);
+        }
+        if (segmentThreshold < 1) {
+            String msg = String.format(
+                    "Policy for topic %s has a non-positive segment threshold.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
+        CompressionType compressionType;
+        try {
+            compressionType = getCompressionType();
+        } catch (IllegalArgumentException e) {
+            String msg = String.format(
+                    "Policy for topic %s has unknown compression: %s.",
+                    getTopic(), compression);
+            throw new IllegalArgumentException(msg);
+        }
+        if (compressionDictionary != null && compressionType != CompressionType.ZSTD) {
+            String msg = String.format(
+                    "Policy for topic %s has a compression dictionary, which requires zstd compression.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
         return this;
     }
 
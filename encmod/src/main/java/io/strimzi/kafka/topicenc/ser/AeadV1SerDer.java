@@ -0,0 +1,144 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.ser;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.EncData;
+
+/**
+ * Serializes and deserializes messages encrypted with an AEAD cipher in the
+ * version 1 layout: version, key ID if flagged by the version field, IV
+ * length, IV, ciphertext length, ciphertext.
+ * The version identifies the cipher suite, so suites share the layout but
+ * each has its own version. The version field also carries the codec with
+ * which the plaintext was compressed, if any, and whether the ciphertext is
+ * segmented.
+ */
+public class AeadV1SerDer implements EncSerDer {
+
+	private static final String VERSION_ERRMSG = "Unsupported serialization version: %d, expected %d";
+
+	private final short version;
+
+	public AeadV1SerDer(short version) {
+		if (version < 1 || version > MAX_VERSION) {
+			throw new IllegalArgumentException("Serialization version out of range: " + version);
+		}
+		this.version = version;
+	}
+
+	@Override
+	public short getVersion() {
+		return version;
+	}
+	
+	@Override
+	public byte[] serialize(EncData md) throws EncSerDerException {
+		int ciphertextLen = md.getCiphertext().length;
+		ByteBuffer buf = ByteBuffer.allocate(serializedSize(md.getIv().length, ciphertextLen));
+		serializeHeader(buf, md.getIv(), ciphertextLen);
+		buf.put(md.getCiphertext());
+		return buf.array();
+	}
+
+	@Override
+	public int serializedSize(int keyIdLen, int ivLen, int ciphertextLen) {
+		return Short.BYTES +       // version 
+			   keyIdLen +          // key id
+			   Short.BYTES +       // iv length
+			   ivLen +             // iv
+			   Integer.BYTES +     // data len
+			   ciphertextLen;      // data
+	}
+
+	@Override
+	public void serializeHeader(ByteBuffer buf, int codecId, boolean segmented, byte[] keyId, byte[] iv,
+			int ciphertextLen) throws EncSerDerException {
+		if (buf.remaining() < serializedSize(keyId.length, iv.length, ciphertextLen)) {
+			throw new EncSerDerException("Buffer too small for serialized message.");
+		}
+		buf.putShort((short) EncSerDer.toVersionField(version, codecId, segmented, keyId.length));
+		buf.put(keyId);
+		buf.putShort((short) iv.length);
+		buf.put(iv);
+		buf.putInt(ciphertextLen);
+	}
+
+    @Override
+    public void serialize(MemoryRecordsBuilder builder, Record r, EncData encResult) throws EncSerDerException {
+        byte[] serializedBuf = serialize(encResult);
+        builder.append(r.timestamp(), 
+                r.key(),
+                ByteBuffer.wrap(serializedBuf), 
+                r.headers());
+    }
+
+	@Override
+	public EncData deserialize(byte[] msg) throws EncSerDerException {
+		return deserialize(ByteBuffer.wrap(msg));
+	}
+
+	@Override
+	public EncData deserialize(ByteBuffer msg) throws EncSerDerException {
+		ByteBuffer buf = msg.slice();
+		int bufLen = buf.remaining();
+		
+		if (bufLen < 2*Short.BYTES) {
+			throw new EncSerDerException("Message too small, cannot deserialize.");
+		}
+		short field = buf.getShort();
+		short msgVersion = (short) (field & MAX_VERSION);
+		if (msgVersion != version) {
+			String errMsg = createVersionErrMsg(msgVersion, version);
+			throw new EncSerDerException(errMsg);
+		}
+		if ((field & KEY_ID_FLAG) != 0) {
+			skip(buf, EncUtils.KEY_ID_SIZE);
+		}
+		
+		short ivLen = buf.getShort();
+		if (ivLen <= 0) {
+			throw new EncSerDerException("Invalid message: IV length is 0.");
+		}
+		if (ivLen > buf.remaining()) {
+			throw new EncSerDerException("Invalid message: IV length exceeds message length.");
+		}
+		
+		byte[] iv = new byte[ivLen];
+		buf.get(iv);
+	
+		if ((buf.position() + Integer.BYTES) > bufLen) {
+			throw new EncSerDerException("Invalid message: message too short.");
+		}
+		int ciphertextLen = buf.getInt();
+		if (ciphertextLen < 0) {
+			throw new EncSerDerException("Invalid message: negative ciphertext length.");
+		} else if ((buf.position() + ciphertextLen) > bufLen) {
+			throw new EncSerDerException("Invalid message: ciphertext length exceeds message length");			
+		}
+		
+		buf.limit(buf.position() + ciphertextLen);
+		return new EncData(iv, buf.slice());
+	}
+	
+	/**
+	 * Skip n bytes of a message, such as a key ID read by EncSerDer.readKeyId().
+	 */
+	static void skip(ByteBuffer buf, int n) throws EncSerDerException {
+		if (buf.remaining() < n) {
+			throw new EncSerDerException("Invalid message: message too short.");
+		}
+		buf.position(buf.position() + n);
+	}
+
+	private static String createVersionErrMsg(short rcvd, short expected) {
+		return String.format(VERSION_ERRMSG, rcvd, expected);		
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.ser;
+
+import java.nio.ByteBuffer;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.enc.EncData;
+
+/**
+ * Serializes messages encrypted with an AEAD cipher in the compact version 2
+ * layout: a 1-byte version, optionally the ID of the key with which the
+ * message was encrypted, the IV, of the fixed length of the cipher suite, and
+ * the ciphertext, which extends to the end of the message. The version byte
+ * carries the codec and flags as in version 1.
+ *
+ * The first byte of a version 1 message, the high byte of its 2-byte version
+ * field, is always 0, whereas the version byte of version 2 is never 0, as
+ * versions start at 1. Version 1 messages therefore remain readable.
+ */
+public class AeadV2SerDer extends AeadV1SerDer {
+
+	private final short version;
+	private final int ivSize;
+
+	/**
+	 * @param version the cipher suite's serialization version
+	 * @param ivSize  the length of the suite's IVs in bytes
+	 */
+	public AeadV2SerDer(short version, int ivSize) {
+		super(version);
+		this.version = version;
+		this.ivSize = ivSize;
+	}
+
+	/**
+	 * Indicates whether a serialized message is in the version 1 layout.
+	 */
+	static boolean isV1(ByteBuffer msg) throws EncSerDerException {
+		if (!msg.hasRemaining()) {
+			throw new EncSerDerException("Message too small, cannot deserialize.");
+		}
+		return msg.get(msg.position()) == 0;
+	}
+
+	@Override
+	public int serializedSize(int keyIdLen, int ivLen, int ciphertextLen) {
+		return Byte.BYTES +        // version
+			   keyIdLen +          // key id
+			   ivLen +             // iv
+			   ciphertextLen;      // data
+	}
+
+	@Override
+	public void serializeHeader(ByteBuffer buf, int codecId, boolean segmented, byte[] keyId, byte[] iv,
+			int ciphertextLen) throws EncSerDerException {
+		if (buf.remaining() < serializedSize(keyId.length, iv.length, ciphertextLen)) {
+			throw new EncSerDerException("Buffer too small for serialized message.");
+		}
+		if (iv.length != ivSize) {
+			throw new EncSerDerException("Invalid IV length: " + iv.length + ", expected " + ivSize);
+		}
+		buf.put((byte) EncSerDer.toVersionField(version, codecId, segmented, keyId.length));
+		buf.put(keyId);
+		buf.put(iv);
+	}
+
+	@Override
+	public EncData deserialize(ByteBuffer msg) throws EncSerDerException {
+		if (isV1(msg)) {
+			return super.deserialize(msg);
+		}
+		ByteBuffer buf = msg.slice();
+		byte field = buf.get();
+		short msgVersion = (short) (field & MAX_VERSION);
+		if (msgVersion != version) {
+			throw new EncSerDerException(String.format(
+					"Unsupported serialization version: %d, expected %d", msgVersion, version));
+		}
+		if ((field & KEY_ID_FLAG) != 0) {
+			skip(buf, EncUtils.KEY_ID_SIZE);
+		}
+		if (buf.remaining() < ivSize) {
+			throw new EncSerDerException("Invalid message: message too short.");
+		}
+		byte[] iv = new byte[ivSize];
+		buf.get(iv);
+		return new EncData(iv, buf.slice());
+	}
+}
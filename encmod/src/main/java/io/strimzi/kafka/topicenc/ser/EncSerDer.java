@@ -4,16 +4,182 @@
  */
 package io.strimzi.kafka.topicenc.ser;
 
+import java.nio.ByteBuffer;
+
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.Record;
 
+import io.strimzi.kafka.topicenc.common.EncUtils;
 import io.strimzi.kafka.topicenc.enc.EncData;
 
 public interface EncSerDer {
 
+	/**
+	 * Bits of the version field identifying the codec with which the plaintext
+	 * was compressed before encryption, as a Kafka CompressionType id. 0, no
+	 * compression, leaves the field equal to the version.
+	 */
+	int CODEC_SHIFT = 5;
+	int CODEC_MASK = 0x7 << CODEC_SHIFT;
+
+	/**
+	 * Bit of the version field set when the ciphertext is segmented, see
+	 * EncrypterDecrypter.getSegmented().
+	 */
+	int SEGMENTED_FLAG = 1 << 4;
+
+	/**
+	 * Bit of the version field set when the ID of the key with which the
+	 * message was encrypted, of EncUtils.KEY_ID_SIZE bytes, immediately
+	 * follows the version field.
+	 */
+	int KEY_ID_FLAG = 1 << 3;
+
+	/**
+	 * The largest version a serializer may have, leaving room for the codec
+	 * and the flags.
+	 */
+	short MAX_VERSION = KEY_ID_FLAG - 1;
+
+	/**
+	 * Returns the version written at the start of every serialized message.
+	 */
+	short getVersion();
+
+	/**
+	 * Reads the version of a serialized message without consuming it.
+	 */
+	static short readVersion(ByteBuffer msg) throws EncSerDerException {
+		return (short) (readVersionField(msg) & MAX_VERSION);
+	}
+
+	/**
+	 * Indicates whether the ciphertext of a serialized message is segmented,
+	 * without consuming the message.
+	 */
+	static boolean readSegmented(ByteBuffer msg) throws EncSerDerException {
+		return (readVersionField(msg) & SEGMENTED_FLAG) != 0;
+	}
+
+	/**
+	 * Reads the ID of the key with which a serialized message was encrypted,
+	 * without consuming the message. Returns an empty array if the message
+	 * does not record the key.
+	 */
+	static byte[] readKeyId(ByteBuffer msg) throws EncSerDerException {
+		if ((readVersionField(msg) & KEY_ID_FLAG) == 0) {
+			return new byte[0];
+		}
+		int pos = msg.position() + (AeadV2SerDer.isV1(msg) ? Short.BYTES : Byte.BYTES);
+		if (msg.limit() - pos < EncUtils.KEY_ID_SIZE) {
+			throw new EncSerDerException("Invalid message: message too short.");
+		}
+		byte[] keyId = new byte[EncUtils.KEY_ID_SIZE];
+		msg.get(pos, keyId);
+		return keyId;
+	}
+
+	/**
+	 * Compose the version field of a serialized message.
+	 */
+	static int toVersionField(short version, int codecId, boolean segmented) throws EncSerDerException {
+		return toVersionField(version, codecId, segmented, 0);
+	}
+
+	/**
+	 * Compose the version field of a serialized message recording a key ID of
+	 * the given length, which must be either 0 or EncUtils.KEY_ID_SIZE.
+	 */
+	static int toVersionField(short version, int codecId, boolean segmented, int keyIdLen)
+			throws EncSerDerException {
+		if (codecId < 0 || codecId > (CODEC_MASK >>> CODEC_SHIFT)) {
+			throw new EncSerDerException("Invalid codec id: " + codecId);
+		}
+		if (keyIdLen != 0 && keyIdLen != EncUtils.KEY_ID_SIZE) {
+			throw new EncSerDerException("Invalid key ID length: " + keyIdLen);
+		}
+		return codecId << CODEC_SHIFT | (segmented ? SEGMENTED_FLAG : 0)
+				| (keyIdLen > 0 ? KEY_ID_FLAG : 0) | version;
+	}
+
+	/**
+	 * Reads the id of the codec with which the plaintext of a serialized
+	 * message was compressed, without consuming it.
+	 */
+	static int readCodec(ByteBuffer msg) throws EncSerDerException {
+		return (readVersionField(msg) & CODEC_MASK) >>> CODEC_SHIFT;
+	}
+
+	/**
+	 * Reads the version field, whether the message is in the 2-byte version 1
+	 * layout or the 1-byte version 2 layout.
+	 */
+	private static int readVersionField(ByteBuffer msg) throws EncSerDerException {
+		if (!AeadV2SerDer.isV1(msg)) {
+			return msg.get(msg.position()) & 0xFF;
+		}
+		if (msg.remaining() < Short.BYTES) {
+			throw new EncSerDerException("Message too small, cannot deserialize.");
+		}
+		return msg.getShort(msg.position()) & 0xFFFF;
+	}
+
 	byte[] serialize(EncData md) throws EncSerDerException;
 	
 	void serialize(MemoryRecordsBuilder builder, Record r, EncData md) throws EncSerDerException;
 	
 	EncData deserialize(byte[] msg) throws EncSerDerException;
+
+	/**
+	 * Returns the size of a serialized message for the given IV and ciphertext lengths.
+	 */
+	default int serializedSize(int ivLen, int ciphertextLen) {
+		return serializedSize(0, ivLen, ciphertextLen);
+	}
+
+	/**
+	 * Returns the size of a serialized message recording a key ID of the given
+	 * length, for the given IV and ciphertext lengths.
+	 */
+	int serializedSize(int keyIdLen, int ivLen, int ciphertextLen);
+
+	/**
+	 * Write the metadata preceding the ciphertext into a buffer of serializedSize() 
+	 * bytes, leaving the buffer positioned where the ciphertext is to be written.
+	 * This allows ciphertext to be produced directly into the serialized message.
+	 */
+	default void serializeHeader(ByteBuffer buf, byte[] iv, int ciphertextLen) throws EncSerDerException {
+		serializeHeader(buf, 0, iv, ciphertextLen);
+	}
+
+	/**
+	 * As serializeHeader(buf, iv, ciphertextLen), marking the message with the
+	 * id of the codec with which the plaintext was compressed.
+	 */
+	default void serializeHeader(ByteBuffer buf, int codecId, byte[] iv, int ciphertextLen) throws EncSerDerException {
+		serializeHeader(buf, codecId, false, iv, ciphertextLen);
+	}
+
+	/**
+	 * As serializeHeader(buf, codecId, iv, ciphertextLen), also marking whether
+	 * the ciphertext is segmented.
+	 */
+	default void serializeHeader(ByteBuffer buf, int codecId, boolean segmented, byte[] iv, int ciphertextLen)
+			throws EncSerDerException {
+		serializeHeader(buf, codecId, segmented, new byte[0], iv, ciphertextLen);
+	}
+
+	/**
+	 * As serializeHeader(buf, codecId, segmented, iv, ciphertextLen), also
+	 * recording the ID of the key with which the message is encrypted. An
+	 * empty key ID is not recorded.
+	 */
+	void serializeHeader(ByteBuffer buf, int codecId, boolean segmented, byte[] keyId, byte[] iv,
+			int ciphertextLen) throws EncSerDerException;
+
+	/**
+	 * Deserialize the remaining bytes of a buffer without copying the ciphertext.
+	 * The returned EncData's ciphertext is a view on the input buffer.
+	 */
+	EncData deserialize(ByteBuffer msg) throws EncSerDerException;
 }
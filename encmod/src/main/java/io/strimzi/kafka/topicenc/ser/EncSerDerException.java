@@ -11,4 +11,8 @@ public class EncSerDerException extends Exception {
 	public EncSerDerException(String msg) {
 		super(msg);
 	}
+
+	public EncSerDerException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.ser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encryption metadata of a record carried in a record header rather than
+ * in the record value, which then holds only the ciphertext. The layout is: a
+ * 1-byte version field, carrying the codec and segmented flag as in the value
+ * layouts, a 1-byte IV length, the IV and the ID of the key, which extends to
+ * the end.
+ *
+ * Keeping the metadata out of the value lets the ciphertext be produced and
+ * consumed in place, and lets tools inspect the metadata without parsing the
+ * value.
+ */
+public class HeaderMetadata {
+
+	private final short version;
+	private final int codecId;
+	private final boolean segmented;
+	private final byte[] iv;
+	private final byte[] keyId;
+
+	public HeaderMetadata(short version, int codecId, boolean segmented, byte[] iv, byte[] keyId) {
+		this.version = version;
+		this.codecId = codecId;
+		this.segmented = segmented;
+		this.iv = iv;
+		this.keyId = keyId;
+	}
+
+	public short getVersion() {
+		return version;
+	}
+
+	public int getCodec() {
+		return codecId;
+	}
+
+	public boolean isSegmented() {
+		return segmented;
+	}
+
+	public byte[] getIv() {
+		return iv;
+	}
+
+	/**
+	 * Returns the ID of the key with which the record was encrypted. May be
+	 * empty if the key's ID could not be determined.
+	 */
+	public byte[] getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * Returns the size of the serialized metadata for the given IV and key ID lengths.
+	 */
+	public static int serializedSize(int ivLen, int keyIdLen) {
+		return Byte.BYTES +        // version
+			   Byte.BYTES +        // iv length
+			   ivLen +             // iv
+			   keyIdLen;           // key id
+	}
+
+	public byte[] serialize() throws EncSerDerException {
+		if (version < 1 || version > EncSerDer.MAX_VERSION) {
+			throw new EncSerDerException("Invalid version: " + version);
+		}
+		if (iv.length > 0xFF) {
+			throw new EncSerDerException("Invalid IV length: " + iv.length);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(serializedSize(iv.length, keyId.length));
+		buf.put((byte) EncSerDer.toVersionField(version, codecId, segmented));
+		buf.put((byte) iv.length);
+		buf.put(iv);
+		buf.put(keyId);
+		return buf.array();
+	}
+
+	public static HeaderMetadata deserialize(byte[] msg) throws EncSerDerException {
+		if (msg == null || msg.length < serializedSize(0, 0)) {
+			throw new EncSerDerException("Metadata too small, cannot deserialize.");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(msg);
+		int field = buf.get() & 0xFF;
+		short version = (short) (field & EncSerDer.MAX_VERSION);
+		if (version < 1) {
+			throw new EncSerDerException("Invalid version: " + version);
+		}
+		int ivLen = buf.get() & 0xFF;
+		if (buf.remaining() < ivLen) {
+			throw new EncSerDerException("Invalid metadata: metadata too short.");
+		}
+		byte[] iv = new byte[ivLen];
+		buf.get(iv);
+		byte[] keyId = new byte[buf.remaining()];
+		buf.get(keyId);
+		return new HeaderMetadata(version, (field & EncSerDer.CODEC_MASK) >>> EncSerDer.CODEC_SHIFT,
+				(field & EncSerDer.SEGMENTED_FLAG) != 0, iv, keyId);
+	}
+}
@@ -0,0 +1,1352 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.compress.ZstdDictionaryTrainer;
+import io.strimzi.kafka.topicenc.enc.ChaCha20Poly1305V1CipherSuite;
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsFactoryManager;
+import io.strimzi.kafka.topicenc.policy.InMemoryPolicyRepository;
+import io.strimzi.kafka.topicenc.policy.PolicyRepository;
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
+import io.strimzi.kafka.topicenc.ser.HeaderMetadata;
+
+/**
+ * Round-trip tests of the EncryptionModule: records are encrypted as in a
+ * produce request and the result decrypted as in a fetch response.
+ */
+public class EncryptionModuleTest {
+
+    private static final String TOPIC = "enctest";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    EncryptionModule encMod;
+
+    @Before
+    public void testsInit() throws Exception {
+        encMod = new EncryptionModule(new TestPolicyRepository());
+    }
+
+    @After
+    public void testsCleanup() {
+        encMod.close();
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        List<SimpleRecord> records = createRecords(50);
+        MemoryRecords plaintext = MemoryRecords.withRecords(CompressionType.NONE,
+                records.toArray(new SimpleRecord[0]));
+
+        MemoryRecords encrypted = encrypt(plaintext);
+        assertNotEquals("Records were not encrypted", plaintext.buffer(), encrypted.buffer());
+
+        MemoryRecords decrypted = decrypt(encrypted);
+        assertRecordsEqual(records, decrypted);
+    }
+
+    /**
+     * Batch granularity: multiple batches, one compressed, are encrypted as
+     * units and restored with their original offsets and compression.
+     */
+    @Test
+    public void batchRoundTripTest() throws Exception {
+        encMod.close();
+        encMod = new EncryptionModule(createPolicyRepository(TopicPolicy.GRANULARITY_BATCH));
+
+        List<SimpleRecord> records = createRecords(30);
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 10));
+        writeBatch(buf, CompressionType.GZIP, 10, records.subList(10, 30));
+        buf.flip();
+        MemoryRecords plaintext = MemoryRecords.readableRecords(buf);
+
+        MemoryRecords encrypted = encrypt(plaintext);
+        List<MutableRecordBatch> encBatches = new ArrayList<>();
+        encrypted.batches().forEach(encBatches::add);
+        assertEquals("Unexpected number of batches", 2, encBatches.size());
+        assertEquals("Unexpected number of records", 10, encBatches.get(0).countOrNull().intValue());
+        assertEquals("Unexpected number of records", 20, encBatches.get(1).countOrNull().intValue());
+
+        // the broker assigns offsets; emulate this with a base offset of 100
+        ByteBuffer stored = encrypted.buffer();
+        MemoryRecords storedRecs = MemoryRecords.readableRecords(stored);
+        long offset = 100;
+        for (MutableRecordBatch batch : storedRecs.batches()) {
+            offset += batch.countOrNull();
+            batch.setLastOffset(offset - 1);
+        }
+
+        MemoryRecords decrypted = decrypt(storedRecs);
+        assertRecordsEqual(records, decrypted);
+
+        List<MutableRecordBatch> decBatches = new ArrayList<>();
+        decrypted.batches().forEach(decBatches::add);
+        assertEquals(CompressionType.NONE, decBatches.get(0).compressionType());
+        assertEquals(CompressionType.GZIP, decBatches.get(1).compressionType());
+        assertEquals(100, decBatches.get(0).baseOffset());
+        assertEquals(110, decBatches.get(1).baseOffset());
+        assertEquals(129, decBatches.get(1).lastOffset());
+    }
+
+    /**
+     * The producer id, epoch, sequence and transactional flag of a batch are
+     * kept through encryption and decryption, as are tombstones.
+     */
+    @Test
+    public void batchMetadataRoundTripTest() throws Exception {
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            encMod.close();
+            encMod = new EncryptionModule(createPolicyRepository(granularity));
+
+            List<SimpleRecord> records = createRecords(10);
+            records.set(5, new SimpleRecord(1005L, "key-5".getBytes(StandardCharsets.UTF_8), null));
+            MemoryRecords plaintext = MemoryRecords.withTransactionalRecords(CompressionType.NONE,
+                    42L, (short) 3, 7, records.toArray(new SimpleRecord[0]));
+
+            MemoryRecords stored = encrypt(plaintext);
+            for (MutableRecordBatch batch : stored.batches()) {
+                assertProducerState(batch);
+                // emulate the broker assigning offsets
+                batch.setLastOffset(109);
+                batch.setPartitionLeaderEpoch(5);
+            }
+
+            MemoryRecords decrypted = decrypt(stored);
+            assertRecordsEqual(records, decrypted);
+            for (MutableRecordBatch batch : decrypted.batches()) {
+                assertProducerState(batch);
+                assertEquals(100, batch.baseOffset());
+                assertEquals(109, batch.lastOffset());
+                assertEquals(5, batch.partitionLeaderEpoch());
+            }
+        }
+    }
+
+    private static void assertProducerState(RecordBatch batch) {
+        assertEquals("Unexpected producer id", 42L, batch.producerId());
+        assertEquals("Unexpected producer epoch", 3, batch.producerEpoch());
+        assertEquals("Unexpected base sequence", 7, batch.baseSequence());
+        assertTrue("Batch is not transactional", batch.isTransactional());
+    }
+
+    /**
+     * Record granularity on a compacted topic: the offsets of the remaining
+     * records, and the last offset of the batch, are kept. Batch granularity
+     * is rejected for compacted topics.
+     */
+    @Test
+    public void compactedRoundTripTest() throws Exception {
+        List<SimpleRecord> records = createRecords(3);
+        long[] offsets = {100, 102, 105};
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(1024),
+                CompressionType.NONE, TimestampType.CREATE_TIME, 100);
+        for (int i = 0; i < offsets.length; i++) {
+            builder.appendWithOffset(offsets[i], records.get(i));
+        }
+        // the records at offsets 106 and 107 were removed
+        builder.overrideLastOffset(107);
+
+        MemoryRecords decrypted = decrypt(encrypt(builder.build()));
+        assertRecordsEqual(records, decrypted);
+        int i = 0;
+        for (Record record : decrypted.records()) {
+            assertEquals("Unexpected offset", offsets[i++], record.offset());
+        }
+        for (MutableRecordBatch batch : decrypted.batches()) {
+            assertEquals("Unexpected last offset", 107, batch.lastOffset());
+        }
+
+        createPolicy(TopicPolicy.GRANULARITY_RECORD).setCleanupPolicy("compact,delete").validate();
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_BATCH).setCleanupPolicy("delete,compact").validate();
+            fail("Batch granularity policy for a compacted topic was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_BATCH).setCleanupPolicy(null).validate();
+            fail("Batch granularity policy without a cleanup policy was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Record granularity: each batch keeps the producer's compression type
+     * when encrypted and again when decrypted.
+     */
+    @Test
+    public void compressionRoundTripTest() throws Exception {
+        CompressionType[] compressionTypes = {
+            CompressionType.NONE, CompressionType.GZIP, CompressionType.LZ4, CompressionType.ZSTD
+        };
+        List<SimpleRecord> records = createRecords(40);
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < compressionTypes.length; i++) {
+            writeBatch(buf, compressionTypes[i], i * 10, records.subList(i * 10, (i + 1) * 10));
+        }
+        buf.flip();
+
+        MemoryRecords encrypted = encrypt(MemoryRecords.readableRecords(buf));
+        assertCompressionTypes(compressionTypes, encrypted);
+
+        MemoryRecords decrypted = decrypt(encrypted);
+        assertCompressionTypes(compressionTypes, decrypted);
+        assertRecordsEqual(records, decrypted);
+    }
+
+    private static void assertCompressionTypes(CompressionType[] expected, MemoryRecords recs) {
+        List<MutableRecordBatch> batches = new ArrayList<>();
+        recs.batches().forEach(batches::add);
+        assertEquals("Unexpected number of batches", expected.length, batches.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Unexpected compression type", expected[i], batches.get(i).compressionType());
+        }
+    }
+
+    /**
+     * Envelope key mode, with a data key budget small enough to force
+     * rotation within a request. The data key header must not be visible
+     * to consumers.
+     */
+    @Test
+    public void envelopeRoundTripTest() throws Exception {
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            TopicPolicy policy = createPolicy(granularity)
+                    .setKeyMode(TopicPolicy.KEY_MODE_ENVELOPE)
+                    .setDekMaxRecords(2);
+            encMod.close();
+            encMod = new EncryptionModule(
+                    new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+            List<SimpleRecord> records = createRecords(30);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 10));
+            writeBatch(buf, CompressionType.NONE, 10, records.subList(10, 20));
+            writeBatch(buf, CompressionType.NONE, 20, records.subList(20, 30));
+            buf.flip();
+
+            MemoryRecords encrypted = encrypt(MemoryRecords.readableRecords(buf));
+            Set<ByteBuffer> dataKeys = new HashSet<>();
+            for (Record record : encrypted.records()) {
+                for (Header header : record.headers()) {
+                    if (EncryptionModule.DEK_HEADER.equals(header.key())) {
+                        dataKeys.add(ByteBuffer.wrap(header.value()));
+                    }
+                }
+            }
+            assertTrue("Data keys were not rotated", dataKeys.size() > 1);
+
+            MemoryRecords decrypted = decrypt(encrypted);
+            assertRecordsEqual(records, decrypted);
+            assertNoInternalHeaders(decrypted);
+        }
+    }
+
+    /**
+     * Envelope key mode on a topic declared not to be compacted: the first
+     * encrypted record of each batch carries the wrapped data key and the
+     * others reference it by ID, so the data key costs less per record. A
+     * record whose batch no longer carries the data key fails to decrypt.
+     */
+    @Test
+    public void dataKeyReferenceTest() throws Exception {
+        List<SimpleRecord> records = createRecords(20);
+        // a tombstone first, which carries no data key
+        records.set(0, new SimpleRecord(1000L, "key-0".getBytes(StandardCharsets.UTF_8), null));
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 10));
+        writeBatch(buf, CompressionType.GZIP, 10, records.subList(10, 20));
+        buf.flip();
+        MemoryRecords plaintext = MemoryRecords.readableRecords(buf);
+
+        int[] sizes = new int[2];
+        for (String cleanupPolicy : new String[] {null, TopicPolicy.CLEANUP_POLICY_DELETE}) {
+            TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                    .setKeyMode(TopicPolicy.KEY_MODE_ENVELOPE)
+                    .setCleanupPolicy(cleanupPolicy);
+            encMod.close();
+            encMod = new EncryptionModule(
+                    new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+            MemoryRecords encrypted = encrypt(copyOf(plaintext));
+            for (MutableRecordBatch batch : encrypted.batches()) {
+                boolean first = true;
+                for (Record record : batch) {
+                    if (!record.hasValue()) {
+                        continue;
+                    }
+                    Set<String> keys = new HashSet<>();
+                    Arrays.stream(record.headers()).forEach(h -> keys.add(h.key()));
+                    boolean carriesKey = first || cleanupPolicy == null;
+                    assertEquals(carriesKey, keys.contains(EncryptionModule.DEK_HEADER));
+                    assertEquals(!carriesKey, keys.contains(EncryptionModule.DEK_REF_HEADER));
+                    first = false;
+                }
+            }
+            sizes[cleanupPolicy == null ? 0 : 1] = encrypted.sizeInBytes();
+            MemoryRecords decrypted = decrypt(copyOf(encrypted));
+            assertRecordsEqual(records, decrypted);
+            assertNoInternalHeaders(decrypted);
+
+            if (cleanupPolicy != null) {
+                // as if the records carrying the data key were removed from their batches
+                MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(64 * 1024),
+                        CompressionType.NONE, TimestampType.CREATE_TIME, 0);
+                for (Record record : encrypted.records()) {
+                    if (record.offset() > 1 && record.offset() < 10) {
+                        builder.appendWithOffset(record.offset(), record.timestamp(), record.key(),
+                                record.value(), record.headers());
+                    }
+                }
+                try {
+                    decrypt(builder.build());
+                    fail("Record was decrypted without the data key of its batch.");
+                } catch (GeneralSecurityException e) {
+                    // expected
+                }
+            }
+        }
+        assertTrue("Data key references did not reduce the size: " + sizes[0] + " <= " + sizes[1],
+                sizes[1] < sizes[0]);
+    }
+
+    /**
+     * In direct key mode, data is encrypted with data keys wrapped by the
+     * topic key, readable without the state of the module that encrypted
+     * it. No data key encrypts more than the topic key's budget of records,
+     * and the purge of the key from the module's caches starts a new one.
+     */
+    @Test
+    public void keyUsageBudgetTest() throws Exception {
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            TopicPolicy policy = createPolicy(granularity)
+                    .setKeyMaxRecords(25)
+                    .setDekMaxRecords(10);
+            PolicyRepository policies = new InMemoryPolicyRepository(Collections.singletonList(policy.validate()));
+            encMod.close();
+            encMod = new EncryptionModule(policies);
+
+            List<SimpleRecord> records = createRecords(10);
+            List<MemoryRecords> encrypted = new ArrayList<>();
+            Map<ByteBuffer, Integer> dataKeyUses = new HashMap<>();
+            for (int i = 0; i < 40; i++) {
+                if (i == 20) {
+                    encMod.purgeKey(policy.getKeyReference());
+                }
+                MemoryRecords data = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                        records.toArray(new SimpleRecord[0])));
+                countDataKeyUses(data, dataKeyUses);
+                encrypted.add(data);
+            }
+            // batches are encrypted as one unit, so count once
+            int numEncryptions = policy.isBatchGranularity() ? 40 : 400;
+            assertEquals("Data encrypted without a data key", numEncryptions,
+                    dataKeyUses.values().stream().mapToInt(Integer::intValue).sum());
+            for (int uses : dataKeyUses.values()) {
+                assertTrue("Data key used beyond the budget: " + uses, uses <= 25);
+            }
+
+            encMod.close();
+            encMod = new EncryptionModule(policies);
+            for (MemoryRecords data : encrypted) {
+                assertRecordsEqual(records, decrypt(data));
+            }
+        }
+    }
+
+    /**
+     * Modules sharing a topic key, as proxies sharing a KMS do, or a module
+     * restarted, never encrypt with the same data key, so the budget of each
+     * key holds however many processes use the topic key.
+     */
+    @Test
+    public void sharedKeyBudgetTest() throws Exception {
+        for (String keyMode : new String[] {TopicPolicy.KEY_MODE_DIRECT, TopicPolicy.KEY_MODE_ENVELOPE}) {
+            TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                    .setKeyMode(keyMode);
+            PolicyRepository policies = new InMemoryPolicyRepository(Collections.singletonList(policy.validate()));
+            List<SimpleRecord> records = createRecords(10);
+            List<Set<ByteBuffer>> dataKeys = new ArrayList<>();
+            List<MemoryRecords> encrypted = new ArrayList<>();
+            EncryptionModule other = new EncryptionModule(policies);
+            Set<ByteBuffer> otherDataKeys = new HashSet<>();
+            try {
+                for (int i = 0; i < 3; i++) {
+                    // two processes sharing the key, the first restarted each time
+                    encMod.close();
+                    encMod = new EncryptionModule(policies);
+                    dataKeys.add(encryptWith(encMod, records, 5, encrypted));
+                    otherDataKeys.addAll(encryptWith(other, records, 5, encrypted));
+                }
+            } finally {
+                other.close();
+            }
+            dataKeys.add(otherDataKeys);
+
+            for (int i = 0; i < dataKeys.size(); i++) {
+                for (int j = i + 1; j < dataKeys.size(); j++) {
+                    Set<ByteBuffer> shared = new HashSet<>(dataKeys.get(i));
+                    shared.retainAll(dataKeys.get(j));
+                    assertTrue("Data key used by two modules in " + keyMode + " mode", shared.isEmpty());
+                }
+            }
+            for (MemoryRecords data : encrypted) {
+                assertRecordsEqual(records, decrypt(data));
+            }
+        }
+    }
+
+    /**
+     * Data records the ID of the key version that encrypted it, so data
+     * written before a key rotation remains readable with a single retrieval
+     * of the key's versions, and data encrypted with a key the KMS no longer
+     * has fails without further KMS calls.
+     */
+    @Test
+    public void keyRotationTest() throws Exception {
+        SecretKey oldKey = EncUtils.generateAesKey(256);
+        SecretKey newKey = EncUtils.generateAesKey(256);
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            for (String keyMode : new String[] {TopicPolicy.KEY_MODE_DIRECT, TopicPolicy.KEY_MODE_ENVELOPE}) {
+                for (String metadata : new String[] {TopicPolicy.METADATA_VALUE, TopicPolicy.METADATA_HEADER}) {
+                    VersionedKms kms = new VersionedKms(oldKey);
+                    TopicPolicy policy = createPolicy(granularity)
+                            .setKeyMode(keyMode)
+                            .setMetadata(metadata)
+                            .setKms(kms);
+                    PolicyRepository policies = new InMemoryPolicyRepository(
+                            Collections.singletonList(policy.validate()));
+
+                    encMod.close();
+                    encMod = new EncryptionModule(policies);
+                    List<SimpleRecord> records = createRecords(10);
+                    MemoryRecords oldData = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                            records.toArray(new SimpleRecord[0])));
+                    if (!policy.isHeaderMetadata()) {
+                        Record first = oldData.records().iterator().next();
+                        assertArrayEquals(EncUtils.keyId(oldKey), EncSerDer.readKeyId(first.value()));
+                    }
+
+                    // rotate the key and start afresh
+                    kms.versions.add(0, newKey);
+                    encMod.close();
+                    encMod = new EncryptionModule(policies);
+                    MemoryRecords newData = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                            records.toArray(new SimpleRecord[0])));
+                    for (int i = 0; i < 3; i++) {
+                        assertRecordsEqual(records, decrypt(copyOf(oldData)));
+                        assertRecordsEqual(records, decrypt(copyOf(newData)));
+                    }
+                    assertEquals("Key versions retrieved more than once", 1, kms.numVersionLookups);
+
+                    // the old key is lost
+                    kms.versions.remove(oldKey);
+                    encMod.close();
+                    encMod = new EncryptionModule(policies);
+                    for (int i = 0; i < 3; i++) {
+                        try {
+                            decrypt(copyOf(oldData));
+                            fail("Data was decrypted without its key.");
+                        } catch (GeneralSecurityException e) {
+                            // expected
+                        }
+                    }
+                    assertEquals("Unknown key looked up more than once", 2, kms.numVersionLookups);
+                    assertRecordsEqual(records, decrypt(copyOf(newData)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a topic is encrypted is decided once, for unencrypted topics as
+     * for encrypted ones, until the policies change.
+     */
+    @Test
+    public void policyDecisionTest() throws Exception {
+        AtomicInteger numLookups = new AtomicInteger();
+        InMemoryPolicyRepository policies = new InMemoryPolicyRepository(Collections.emptyList()) {
+            @Override
+            public TopicPolicy getTopicPolicy(String topicName) {
+                numLookups.incrementAndGet();
+                return super.getTopicPolicy(topicName);
+            }
+        };
+        encMod.close();
+        encMod = new EncryptionModule(policies);
+        List<SimpleRecord> records = createRecords(5);
+        for (int i = 0; i < 3; i++) {
+            TopicProduceData topicData = new TopicProduceData()
+                    .setName("Plain")
+                    .setPartitionData(Collections.singletonList(new PartitionProduceData()
+                            .setRecords(MemoryRecords.withRecords(CompressionType.NONE,
+                                    records.toArray(new SimpleRecord[0])))));
+            assertFalse("Unencrypted topic was encrypted", encMod.encrypt(topicData));
+        }
+        assertEquals("Unencrypted topic was looked up more than once", 1, numLookups.get());
+
+        // the topic becomes encrypted
+        policies.setPolicies(Collections.singletonList(createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                .setTopic("plain").validate()));
+        numLookups.set(0);
+        for (int i = 0; i < 3; i++) {
+            TopicProduceData topicData = new TopicProduceData()
+                    .setName("Plain")
+                    .setPartitionData(Collections.singletonList(new PartitionProduceData()
+                            .setRecords(MemoryRecords.withRecords(CompressionType.NONE,
+                                    records.toArray(new SimpleRecord[0])))));
+            assertTrue("Topic was not encrypted after policy change", encMod.encrypt(topicData));
+        }
+        // one lookup for the decision, one to load the topic's key
+        assertEquals("Encrypted topic was looked up too often", 2, numLookups.get());
+    }
+
+    /**
+     * A KMS retaining the earlier versions of its one key.
+     */
+    private static class VersionedKms implements KeyMgtSystem {
+        final List<SecretKey> versions = new ArrayList<>();
+        int numVersionLookups;
+        int numKeyLookups;
+
+        VersionedKms(SecretKey key) {
+            versions.add(key);
+        }
+
+        @Override
+        public SecretKey getKey(String keyReference) {
+            numKeyLookups++;
+            return versions.get(0);
+        }
+
+        @Override
+        public List<SecretKey> getKeyVersions(String keyReference) {
+            numVersionLookups++;
+            return new ArrayList<>(versions);
+        }
+    }
+
+    /**
+     * With key derivation, the KMS key is retrieved once for all topics, each
+     * topic, or partition, being encrypted with its own derived key. Data
+     * encrypted before the KMS key was rotated remains readable.
+     */
+    @Test
+    public void derivedKeyTest() throws Exception {
+        SecretKey oldKey = EncUtils.generateAesKey(256);
+        SecretKey newKey = EncUtils.generateAesKey(256);
+        for (String derivation : new String[] {TopicPolicy.KEY_DERIVATION_TOPIC,
+            TopicPolicy.KEY_DERIVATION_PARTITION}) {
+            VersionedKms kms = new VersionedKms(oldKey);
+            TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                    .setTopic(TopicPolicy.ALL_TOPICS)
+                    .setKeyDerivation(derivation)
+                    .setKms(kms);
+            PolicyRepository policies = new InMemoryPolicyRepository(
+                    Collections.singletonList(policy.validate()));
+            encMod.close();
+            encMod = new EncryptionModule(policies);
+
+            List<SimpleRecord> records = createRecords(5);
+            List<MemoryRecords> encrypted = new ArrayList<>();
+            for (String topic : new String[] {"a", "b"}) {
+                for (int partition = 0; partition < 2; partition++) {
+                    MemoryRecords data = encrypt(topic, partition, MemoryRecords.withRecords(
+                            CompressionType.NONE, records.toArray(new SimpleRecord[0])));
+                    String context = policy.isPartitionKeyDerivation() ? topic + "/" + partition : topic;
+                    assertArrayEquals(EncUtils.keyId(EncUtils.deriveAesKey(oldKey, context)),
+                            EncSerDer.readKeyId(data.records().iterator().next().value()));
+                    encrypted.add(data);
+                }
+            }
+            assertEquals("KMS key retrieved more than once", 1, kms.numKeyLookups);
+            try {
+                decrypt("a", 0, copyOf(encrypted.get(2)));
+                fail("Data was decrypted with another topic's key.");
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+
+            // rotate the KMS key and start afresh
+            kms.versions.add(0, newKey);
+            encMod.close();
+            encMod = new EncryptionModule(policies);
+            int i = 0;
+            for (String topic : new String[] {"a", "b"}) {
+                for (int partition = 0; partition < 2; partition++) {
+                    assertRecordsEqual(records, decrypt(topic, partition, copyOf(encrypted.get(i++))));
+                    assertRecordsEqual(records, decrypt(topic, partition, encrypt(topic, partition,
+                            MemoryRecords.withRecords(CompressionType.NONE, records.toArray(new SimpleRecord[0])))));
+                }
+            }
+            assertEquals("KMS key retrieved more than once after rotation", 2, kms.numKeyLookups);
+        }
+    }
+
+    /**
+     * The cipher suite is selected by the policy's encMethod. Stored data
+     * identifies its suite, so remains readable after the policy changes.
+     */
+    @Test
+    public void cipherSuiteRoundTripTest() throws Exception {
+        TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                .setEncMethod(ChaCha20Poly1305V1CipherSuite.NAME);
+        encMod.close();
+        encMod = new EncryptionModule(
+                new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+        List<SimpleRecord> records = createRecords(20);
+        MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                records.toArray(new SimpleRecord[0])));
+        for (Record record : encrypted.records()) {
+            assertEquals(ChaCha20Poly1305V1CipherSuite.SERIALIZATION_VERSION,
+                    EncSerDer.readVersion(record.value()));
+        }
+
+        // a record may be fetched, and decrypted, repeatedly. Each fetch has its own buffer.
+        MemoryRecords single = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                records.get(0)));
+        assertRecordsEqual(records.subList(0, 1), decrypt(copyOf(single)));
+        assertRecordsEqual(records.subList(0, 1), decrypt(copyOf(single)));
+
+        encMod.close();
+        encMod = new EncryptionModule(createPolicyRepository(TopicPolicy.GRANULARITY_RECORD));
+        assertRecordsEqual(records, decrypt(encrypted));
+
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_RECORD).setEncMethod("Rot13").validate();
+            fail("Policy with unknown encryption method was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The encrypted output of an uncompressed partition is written to a buffer
+     * sized up front, taken from the buffer pool, so is never reallocated. The
+     * decrypted output is written over the fetched records.
+     */
+    @Test
+    public void presizedOutputTest() throws Exception {
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            for (String keyMode : new String[] {TopicPolicy.KEY_MODE_DIRECT, TopicPolicy.KEY_MODE_ENVELOPE}) {
+                TopicPolicy policy = createPolicy(granularity).setKeyMode(keyMode);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                List<SimpleRecord> records = createRecords(200);
+                ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+                for (int i = 0; i < 4; i++) {
+                    writeBatch(buf, CompressionType.NONE, i * 50, records.subList(i * 50, (i + 1) * 50));
+                }
+                buf.flip();
+
+                MemoryRecords encrypted = encrypt(MemoryRecords.readableRecords(buf));
+                assertPooled(encrypted);
+                ByteBuffer fetched = encrypted.buffer();
+                MemoryRecords decrypted = decrypt(encrypted);
+                assertSame("Records were not decrypted in place", fetched.array(),
+                        decrypted.buffer().array());
+                assertRecordsEqual(records, decrypted);
+            }
+        }
+    }
+
+    /**
+     * Batches decrypted in place have valid lengths and CRCs. Where a batch
+     * grows, as when its values were compressed before encryption, or the
+     * fetched buffer is read-only, the output moves to a pooled buffer.
+     */
+    @Test
+    public void inPlaceDecryptionTest() throws Exception {
+        for (String compression : new String[] {null, CompressionType.ZSTD.name}) {
+            TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                    .setCompression(compression);
+            encMod.close();
+            encMod = new EncryptionModule(
+                    new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+            List<SimpleRecord> records = createRecords(60);
+            ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+            writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 20));
+            writeBatch(buf, CompressionType.GZIP, 20, records.subList(20, 40));
+            writeBatch(buf, CompressionType.NONE, 40, records.subList(40, 60));
+            buf.flip();
+            MemoryRecords encrypted = encrypt(MemoryRecords.readableRecords(buf));
+
+            for (boolean readOnly : new boolean[] {false, true}) {
+                MemoryRecords fetched = copyOf(encrypted);
+                if (readOnly) {
+                    fetched = MemoryRecords.readableRecords(fetched.buffer().asReadOnlyBuffer());
+                }
+                ByteBuffer fetchedBuf = fetched.buffer();
+                MemoryRecords decrypted = decrypt(fetched);
+                assertRecordsEqual(records, decrypted);
+                for (MutableRecordBatch batch : decrypted.batches()) {
+                    batch.ensureValid();
+                }
+                boolean inPlace = fetchedBuf.hasArray() && decrypted.buffer().hasArray()
+                        && fetchedBuf.array() == decrypted.buffer().array();
+                assertEquals("Unexpected in-place decryption, compression: " + compression
+                        + ", read-only: " + readOnly, compression == null && !readOnly, inPlace);
+            }
+        }
+    }
+
+    private static void assertPooled(MemoryRecords recs) {
+        int capacity = recs.buffer().capacity();
+        assertTrue("Output buffer was reallocated: " + capacity,
+                capacity >= BufferPool.MIN_CLASS_SIZE && Integer.bitCount(capacity) == 1);
+    }
+
+    /**
+     * With a compression codec in the policy, values (or uncompressed
+     * batches) are compressed before encryption and the codec is recorded in
+     * the serialized value. Values which do not shrink are stored uncompressed.
+     */
+    @Test
+    public void compressThenEncryptRoundTripTest() throws Exception {
+        CompressionType[] codecs = {
+            CompressionType.GZIP, CompressionType.SNAPPY, CompressionType.LZ4, CompressionType.ZSTD
+        };
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            for (CompressionType codec : codecs) {
+                TopicPolicy policy = createPolicy(granularity).setCompression(codec.name);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                List<SimpleRecord> records = createRecords(30);
+                MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                        records.toArray(new SimpleRecord[0])));
+                Set<Integer> codecIds = new HashSet<>();
+                for (Record record : encrypted.records()) {
+                    if (record.hasValue()) {
+                        codecIds.add(EncSerDer.readCodec(record.value()));
+                    }
+                }
+                assertTrue("Values were not compressed with " + codec, codecIds.contains(codec.id));
+                if (!policy.isBatchGranularity()) {
+                    // the first values are too short to compress
+                    assertTrue("Short values were compressed", codecIds.contains(CompressionType.NONE.id));
+                }
+                assertRecordsEqual(records, decrypt(encrypted));
+            }
+        }
+
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_RECORD).setCompression("rar").validate();
+            fail("Policy with unknown compression was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Small records compressed with a zstd dictionary trained, from the
+     * command line, from a file of sample records of the topic.
+     */
+    @Test
+    public void dictionaryRoundTripTest() throws Exception {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            samples.add(new String(createJsonValue(i), StandardCharsets.UTF_8));
+        }
+        File sampleFile = tmpFolder.newFile("enctest.samples");
+        Files.write(sampleFile.toPath(), samples);
+        File dictFile = tmpFolder.newFile("enctest.dict");
+        ZstdDictionaryTrainer.main(new String[] {dictFile.getPath(), "--size", "1024", "--file", sampleFile.getPath()});
+        assertTrue("No dictionary written", dictFile.length() > 0);
+
+        TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                .setCompression(CompressionType.ZSTD.name)
+                .setCompressionDictionary(dictFile.getPath());
+        encMod.close();
+        encMod = new EncryptionModule(
+                new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+        List<SimpleRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            records.add(new SimpleRecord(1000L + i, null, createJsonValue(100_000 + i)));
+        }
+        MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                records.toArray(new SimpleRecord[0])));
+        for (Record record : encrypted.records()) {
+            assertEquals("Value was not compressed", CompressionType.ZSTD.id,
+                    EncSerDer.readCodec(record.value()));
+        }
+        assertRecordsEqual(records, decrypt(encrypted));
+
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                    .setCompression(CompressionType.GZIP.name)
+                    .setCompressionDictionary(dictFile.getPath())
+                    .validate();
+            fail("Policy with a dictionary for gzip was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] createJsonValue(int i) {
+        String json = String.format(
+                "{\"deviceId\":\"sensor-%d\",\"temperature\":%d.%d,\"status\":\"%s\"}",
+                i, 15 + i % 10, i % 7, i % 3 == 0 ? "ok" : "degraded");
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * With the metadata in a record header, encrypted record values hold only
+     * the ciphertext and tag, and the header is removed on decryption.
+     */
+    @Test
+    public void headerMetadataRoundTripTest() throws Exception {
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            for (String keyMode : new String[] {TopicPolicy.KEY_MODE_DIRECT, TopicPolicy.KEY_MODE_ENVELOPE}) {
+                TopicPolicy policy = createPolicy(granularity)
+                        .setKeyMode(keyMode)
+                        .setMetadata(TopicPolicy.METADATA_HEADER);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                List<SimpleRecord> records = createRecords(30);
+                MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                        records.toArray(new SimpleRecord[0])));
+                int i = 0;
+                for (Record record : encrypted.records()) {
+                    if (!record.hasValue()) {
+                        continue; // batch placeholder
+                    }
+                    Header metaHeader = Arrays.stream(record.headers())
+                            .filter(h -> EncryptionModule.META_HEADER.equals(h.key()))
+                            .findFirst()
+                            .orElse(null);
+                    assertNotNull("Metadata header missing", metaHeader);
+                    HeaderMetadata md = HeaderMetadata.deserialize(metaHeader.value());
+                    assertEquals(12, md.getIv().length);
+                    assertEquals(EncUtils.KEY_ID_SIZE, md.getKeyId().length);
+                    if (!policy.isBatchGranularity()) {
+                        assertEquals("Value is not ciphertext and tag",
+                                records.get(i++).value().remaining() + 16, record.valueSize());
+                    }
+                }
+
+                MemoryRecords decrypted = decrypt(encrypted);
+                assertNoInternalHeaders(decrypted);
+                assertRecordsEqual(records, decrypted);
+            }
+        }
+
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_RECORD).setMetadata("footer").validate();
+            fail("Policy with unknown metadata placement was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * User headers are stored in the clear, in their original order, ahead of
+     * the data key and metadata headers, and are restored exactly, with their
+     * names, values and order, whether the metadata is in the value or in a
+     * header, in uncompressed and compressed batches.
+     */
+    @Test
+    public void userHeadersRoundTripTest() throws Exception {
+        Header[] userHeaders = {
+            new RecordHeader("z-last", "first".getBytes(StandardCharsets.UTF_8)),
+            new RecordHeader("dup", "1".getBytes(StandardCharsets.UTF_8)),
+            new RecordHeader("empty", new byte[0]),
+            new RecordHeader("null", null),
+            new RecordHeader("dup", "2".getBytes(StandardCharsets.UTF_8))
+        };
+        List<SimpleRecord> records = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            records.add(new SimpleRecord(1000L + i, ("key-" + i).getBytes(StandardCharsets.UTF_8),
+                    ("value-" + i).getBytes(StandardCharsets.UTF_8), userHeaders));
+        }
+        for (String metadata : new String[] {TopicPolicy.METADATA_VALUE, TopicPolicy.METADATA_HEADER}) {
+            for (String keyMode : new String[] {TopicPolicy.KEY_MODE_DIRECT, TopicPolicy.KEY_MODE_ENVELOPE}) {
+                TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                        .setKeyMode(keyMode)
+                        .setMetadata(metadata);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 3));
+                writeBatch(buf, CompressionType.GZIP, 3, records.subList(3, 6));
+                buf.flip();
+                MemoryRecords encrypted = encrypt(MemoryRecords.readableRecords(buf));
+
+                List<String> expectedKeys = new ArrayList<>();
+                Arrays.stream(userHeaders).forEach(h -> expectedKeys.add(h.key()));
+                expectedKeys.add(EncryptionModule.DEK_HEADER);
+                if (policy.isHeaderMetadata()) {
+                    expectedKeys.add(EncryptionModule.META_HEADER);
+                }
+                for (Record record : encrypted.records()) {
+                    Header[] headers = record.headers();
+                    assertEquals(expectedKeys, Arrays.stream(headers).map(Header::key).toList());
+                    assertArrayEquals("User headers changed by encryption", userHeaders,
+                            Arrays.copyOf(headers, userHeaders.length));
+                }
+
+                for (Record record : decrypt(encrypted).records()) {
+                    Header[] headers = record.headers();
+                    assertEquals("Unexpected number of headers, metadata: " + metadata + ", key mode: " + keyMode,
+                            5, headers.length);
+                    assertEquals("z-last", headers[0].key());
+                    assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), headers[0].value());
+                    assertEquals("dup", headers[1].key());
+                    assertArrayEquals("1".getBytes(StandardCharsets.UTF_8), headers[1].value());
+                    assertEquals("empty", headers[2].key());
+                    assertArrayEquals(new byte[0], headers[2].value());
+                    assertEquals("null", headers[3].key());
+                    assertNull(headers[3].value());
+                    assertEquals("dup", headers[4].key());
+                    assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), headers[4].value());
+                }
+            }
+        }
+    }
+
+    /**
+     * Values larger than the segment threshold are encrypted in segments,
+     * smaller ones in a single operation, and both round-trip.
+     */
+    @Test
+    public void segmentedRoundTripTest() throws Exception {
+        List<SimpleRecord> records = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            byte[] value = new byte[i % 2 == 0 ? 300_000 + i : 1000 + i];
+            Arrays.fill(value, (byte) i);
+            records.add(new SimpleRecord(1000L + i, ("key-" + i).getBytes(StandardCharsets.UTF_8), value));
+        }
+        for (String granularity : new String[] {TopicPolicy.GRANULARITY_RECORD, TopicPolicy.GRANULARITY_BATCH}) {
+            for (String metadata : new String[] {TopicPolicy.METADATA_VALUE, TopicPolicy.METADATA_HEADER}) {
+                TopicPolicy policy = createPolicy(granularity)
+                        .setMetadata(metadata)
+                        .setSegmentThreshold(100_000);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                        records.toArray(new SimpleRecord[0])));
+                int i = 0;
+                for (Record record : encrypted.records()) {
+                    if (!record.hasValue()) {
+                        continue; // batch placeholder
+                    }
+                    boolean segmented;
+                    if (policy.isHeaderMetadata()) {
+                        Header metaHeader = Arrays.stream(record.headers())
+                                .filter(h -> EncryptionModule.META_HEADER.equals(h.key()))
+                                .findFirst()
+                                .get();
+                        segmented = HeaderMetadata.deserialize(metaHeader.value()).isSegmented();
+                    } else {
+                        segmented = (record.value().get(0) & EncSerDer.SEGMENTED_FLAG) != 0;
+                    }
+                    boolean large = policy.isBatchGranularity() || records.get(i++).value().remaining() > 100_000;
+                    assertEquals("Unexpected segmentation", large, segmented);
+                }
+                assertRecordsEqual(records, decrypt(encrypted));
+            }
+        }
+
+        try {
+            createPolicy(TopicPolicy.GRANULARITY_RECORD).setSegmentThreshold(0).validate();
+            fail("Policy with a non-positive segment threshold was valid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Large values compressed by the policy's codec, in batches either
+     * uncompressed or compressed by the producer, are compressed and
+     * decompressed, in chunks for stream codecs, into pooled buffers, and
+     * round-trip.
+     */
+    @Test
+    public void compressedSegmentedRoundTripTest() throws Exception {
+        CompressionType[] codecs = {
+            CompressionType.GZIP, CompressionType.SNAPPY, CompressionType.LZ4, CompressionType.ZSTD
+        };
+        List<SimpleRecord> records = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; value.length() < (i % 2 == 0 ? 1_000_000 : 1000); j++) {
+                value.append(new String(createJsonValue(i * 100_000 + j), StandardCharsets.UTF_8));
+            }
+            records.add(new SimpleRecord(1000L + i, ("key-" + i).getBytes(StandardCharsets.UTF_8),
+                    value.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        for (CompressionType codec : codecs) {
+            for (CompressionType batchCompression : new CompressionType[] {CompressionType.NONE, CompressionType.GZIP}) {
+                TopicPolicy policy = createPolicy(TopicPolicy.GRANULARITY_RECORD)
+                        .setCompression(codec.name)
+                        .setSegmentThreshold(100_000);
+                encMod.close();
+                encMod = new EncryptionModule(
+                        new InMemoryPolicyRepository(Collections.singletonList(policy.validate())));
+
+                for (int i = 0; i < 2; i++) {
+                    // the second request re-uses the pooled buffers of the first
+                    MemoryRecords encrypted = encrypt(MemoryRecords.withRecords(batchCompression,
+                            records.toArray(new SimpleRecord[0])));
+                    for (Record record : encrypted.records()) {
+                        assertEquals("Value was not compressed with " + codec, codec.id,
+                                EncSerDer.readCodec(record.value()));
+                    }
+                    assertRecordsEqual(records, decrypt(encrypted));
+                }
+            }
+        }
+    }
+
+    /**
+     * With a parallelism greater than one, the partitions of several topics
+     * are processed concurrently and each partition keeps its own data.
+     */
+    @Test
+    public void parallelRoundTripTest() throws Exception {
+        encMod.close();
+        encMod = new EncryptionModule(new TestPolicyRepository(), 4);
+
+        int numTopics = 3;
+        int numPartitions = 8;
+        List<TopicProduceData> topics = new ArrayList<>();
+        List<List<SimpleRecord>> expected = new ArrayList<>();
+        for (int t = 0; t < numTopics; t++) {
+            List<PartitionProduceData> partitions = new ArrayList<>();
+            for (int p = 0; p < numPartitions; p++) {
+                // distinct record counts identify the partitions
+                List<SimpleRecord> records = createRecords(20 + t * numPartitions + p);
+                expected.add(records);
+                partitions.add(new PartitionProduceData()
+                        .setIndex(p)
+                        .setRecords(MemoryRecords.withRecords(CompressionType.NONE,
+                                records.toArray(new SimpleRecord[0]))));
+            }
+            topics.add(new TopicProduceData()
+                    .setName(TOPIC + t)
+                    .setPartitionData(partitions));
+        }
+        assertEquals(numTopics, encMod.encrypt(topics));
+
+        List<FetchableTopicResponse> responses = new ArrayList<>();
+        for (TopicProduceData topicData : topics) {
+            List<FetchResponseData.PartitionData> partitions = new ArrayList<>();
+            for (PartitionProduceData partitionData : topicData.partitionData()) {
+                partitions.add(new FetchResponseData.PartitionData()
+                        .setPartitionIndex(partitionData.index())
+                        .setRecords(partitionData.records()));
+            }
+            responses.add(new FetchableTopicResponse()
+                    .setTopic(topicData.name())
+                    .setPartitions(partitions));
+        }
+        assertEquals(numTopics, encMod.decrypt(responses));
+
+        int i = 0;
+        for (FetchableTopicResponse topicRsp : responses) {
+            for (FetchResponseData.PartitionData partitionData : topicRsp.partitions()) {
+                assertRecordsEqual(expected.get(i++), (MemoryRecords) partitionData.records());
+            }
+        }
+    }
+
+    /**
+     * Batches fetched again, as by another consumer, are served from the
+     * cache of decrypted batches. Batches rewritten at the same offsets are
+     * not mistaken for those cached, and purging a key empties the cache.
+     */
+    @Test
+    public void decryptedBatchCacheTest() throws Exception {
+        encMod.close();
+        encMod = new EncryptionModule(createPolicyRepository(TopicPolicy.GRANULARITY_RECORD), 1,
+                new KeyCacheConfig(), 1024 * 1024);
+
+        List<SimpleRecord> records = createRecords(60);
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        writeBatch(buf, CompressionType.NONE, 0, records.subList(0, 20));
+        writeBatch(buf, CompressionType.GZIP, 20, records.subList(20, 40));
+        writeBatch(buf, CompressionType.NONE, 40, records.subList(40, 60));
+        buf.flip();
+        MemoryRecords plaintext = MemoryRecords.readableRecords(buf);
+        MemoryRecords encrypted = encrypt(copyOf(plaintext));
+
+        MemoryRecords first = decrypt(copyOf(encrypted));
+        assertRecordsEqual(records, first);
+        BatchCacheStats stats = encMod.getBatchCacheStats();
+        assertEquals(0, stats.hits());
+        assertEquals(3, stats.misses());
+        assertEquals(3, stats.entries());
+        assertTrue(stats.bytes() <= stats.maxBytes());
+
+        MemoryRecords second = decrypt(copyOf(encrypted));
+        assertEquals("Cached batches differ", first.buffer(), second.buffer());
+        for (MutableRecordBatch batch : second.batches()) {
+            batch.ensureValid();
+        }
+        stats = encMod.getBatchCacheStats();
+        assertEquals(3, stats.hits());
+        assertEquals(0.5, stats.hitRate(), 0);
+
+        // encrypted again, the batches have the same offsets but different CRCs
+        assertRecordsEqual(records, decrypt(encrypt(copyOf(plaintext))));
+        assertEquals(6, encMod.getBatchCacheStats().misses());
+
+        encMod.purgeKey("test");
+        assertEquals(0, encMod.getBatchCacheStats().entries());
+
+        // the least recently used batches are evicted
+        DecryptedBatchCache cache = new DecryptedBatchCache(8 * (100 + DecryptedBatchCache.ENTRY_OVERHEAD));
+        ByteBuffer batch = ByteBuffer.allocate(100);
+        for (int i = 0; i < 9; i++) {
+            cache.put(new DecryptedBatchCache.Key(TOPIC, 0, i, 0), batch, 0, 100);
+            cache.get(new DecryptedBatchCache.Key(TOPIC, 0, 0, 0));
+        }
+        stats = cache.getStats();
+        assertEquals(1, stats.evictions());
+        assertEquals(8, stats.entries());
+        assertNotNull(cache.get(new DecryptedBatchCache.Key(TOPIC, 0, 0, 0)));
+        assertNull(cache.get(new DecryptedBatchCache.Key(TOPIC, 0, 1, 0)));
+    }
+
+    private static MemoryRecords copyOf(MemoryRecords recs) {
+        ByteBuffer copy = ByteBuffer.allocate(recs.sizeInBytes());
+        copy.put(recs.buffer()).flip();
+        return MemoryRecords.readableRecords(copy);
+    }
+
+    private static void writeBatch(ByteBuffer buf, CompressionType compression, long baseOffset,
+            List<SimpleRecord> records) {
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buf, compression,
+                TimestampType.CREATE_TIME, baseOffset);
+        records.forEach(builder::append);
+        builder.close();
+    }
+
+    private static PolicyRepository createPolicyRepository(String granularity) throws Exception {
+        TopicPolicy policy = createPolicy(granularity);
+        return new InMemoryPolicyRepository(Collections.singletonList(policy.validate()));
+    }
+
+    private static TopicPolicy createPolicy(String granularity) throws Exception {
+        KmsDefinition kmsDef = new KmsDefinition()
+                .setName("test")
+                .setType("test");
+        KeyMgtSystem kms = KmsFactoryManager.getInstance().createKms(kmsDef);
+        return new TopicPolicy()
+                .setTopic(TOPIC)
+                .setKmsName("test")
+                .setKeyReference("test")
+                .setGranularity(granularity)
+                .setCleanupPolicy(TopicPolicy.GRANULARITY_BATCH.equals(granularity)
+                        ? TopicPolicy.CLEANUP_POLICY_DELETE
+                        : null)
+                .setKms(kms);
+    }
+
+    private MemoryRecords encrypt(MemoryRecords recs) throws Exception {
+        return encrypt(TOPIC, 0, recs);
+    }
+
+    private MemoryRecords encrypt(String topic, int partition, MemoryRecords recs) throws Exception {
+        PartitionProduceData partitionData = new PartitionProduceData()
+                .setIndex(partition)
+                .setRecords(recs);
+        TopicProduceData topicData = new TopicProduceData()
+                .setName(topic)
+                .setPartitionData(Collections.singletonList(partitionData));
+
+        assertTrue("Topic was not encrypted", encMod.encrypt(topicData));
+        MemoryRecords encrypted = (MemoryRecords) partitionData.records();
+        // the broker rejects batches whose CRC does not match
+        for (MutableRecordBatch batch : encrypted.batches()) {
+            batch.ensureValid();
+        }
+        return encrypted;
+    }
+
+    private MemoryRecords decrypt(MemoryRecords recs) throws Exception {
+        return decrypt(TOPIC, 0, recs);
+    }
+
+    private MemoryRecords decrypt(String topic, int partition, MemoryRecords recs) throws Exception {
+        FetchResponseData.PartitionData partitionData = new FetchResponseData.PartitionData()
+                .setPartitionIndex(partition)
+                .setRecords(recs);
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse()
+                .setTopic(topic)
+                .setPartitions(Collections.singletonList(partitionData));
+
+        assertTrue("Topic was not decrypted", encMod.decrypt(topicRsp));
+        return (MemoryRecords) partitionData.records();
+    }
+
+    private static List<SimpleRecord> createRecords(int numRecords) {
+        List<SimpleRecord> records = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            byte[] key = ("key-" + i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = ("value-" + i + "-" + "x".repeat(i * 10)).getBytes(StandardCharsets.UTF_8);
+            records.add(new SimpleRecord(1000L + i, key, value, createHeaders(i)));
+        }
+        return records;
+    }
+
+    /**
+     * Returns the user headers of the i-th test record: none, one, or several
+     * including a repeated key and a null value.
+     */
+    private static Header[] createHeaders(int i) {
+        switch (i % 3) {
+            case 0:
+                return Record.EMPTY_HEADERS;
+            case 1:
+                return new Header[] {new RecordHeader("trace-id", ("trace-" + i).getBytes(StandardCharsets.UTF_8))};
+            default:
+                return new Header[] {
+                    new RecordHeader("b", "1".getBytes(StandardCharsets.UTF_8)),
+                    new RecordHeader("a", null),
+                    new RecordHeader("b", ("2-" + i).getBytes(StandardCharsets.UTF_8))
+                };
+        }
+    }
+
+    /**
+     * Encrypts the records the given number of times with the given module,
+     * returning the wrapped data keys used.
+     */
+    private Set<ByteBuffer> encryptWith(EncryptionModule module, List<SimpleRecord> records, int times,
+            List<MemoryRecords> encrypted) throws Exception {
+        EncryptionModule saved = encMod;
+        encMod = module;
+        Map<ByteBuffer, Integer> dataKeyUses = new HashMap<>();
+        try {
+            for (int i = 0; i < times; i++) {
+                MemoryRecords data = encrypt(MemoryRecords.withRecords(CompressionType.NONE,
+                        records.toArray(new SimpleRecord[0])));
+                countDataKeyUses(data, dataKeyUses);
+                encrypted.add(data);
+            }
+        } finally {
+            encMod = saved;
+        }
+        assertEquals("Data encrypted without a data key", times * records.size(),
+                dataKeyUses.values().stream().mapToInt(Integer::intValue).sum());
+        return dataKeyUses.keySet();
+    }
+
+    /**
+     * Counts the values encrypted with each wrapped data key, whether their
+     * records carry the key or refer to the key carried by their batch.
+     */
+    private static void countDataKeyUses(MemoryRecords recs, Map<ByteBuffer, Integer> uses) {
+        for (MutableRecordBatch batch : recs.batches()) {
+            ByteBuffer batchKey = null;
+            for (Record record : batch) {
+                if (!record.hasValue()) {
+                    // placeholder of a record encrypted with its batch
+                    continue;
+                }
+                ByteBuffer key = null;
+                for (Header header : record.headers()) {
+                    if (EncryptionModule.DEK_HEADER.equals(header.key())) {
+                        key = batchKey = ByteBuffer.wrap(header.value());
+                    } else if (EncryptionModule.DEK_REF_HEADER.equals(header.key())) {
+                        key = batchKey;
+                    }
+                }
+                assertNotNull("Record encrypted without a data key", key);
+                uses.merge(key, 1, Integer::sum);
+            }
+        }
+    }
+
+    private static void assertNoInternalHeaders(MemoryRecords recs) {
+        for (Record record : recs.records()) {
+            for (Header header : record.headers()) {
+                assertFalse("Encryption header was not removed: " + header.key(),
+                        header.key().startsWith("__topicenc."));
+            }
+        }
+    }
+
+    private static void assertRecordsEqual(List<SimpleRecord> expected, MemoryRecords actual) {
+        int i = 0;
+        for (Record record : actual.records()) {
+            SimpleRecord exp = expected.get(i++);
+            assertEquals("Unexpected timestamp", exp.timestamp(), record.timestamp());
+            assertEquals("Unexpected key", exp.key(), record.key());
+            assertEquals("Unexpected value", exp.value(), record.value());
+            // user headers are kept in order, internal headers removed
+            assertArrayEquals("Unexpected headers", exp.headers(), record.headers());
+        }
+        assertEquals("Unexpected number of records", expected.size(), i);
+    }
+}
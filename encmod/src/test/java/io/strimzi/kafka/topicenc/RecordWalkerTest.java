@@ -0,0 +1,128 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.apache.kafka.common.InvalidRecordException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.DefaultRecordBatch;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Test;
+
+/**
+ * Tests that walking the records of a batch yields what the batch's own
+ * iterator does.
+ */
+public class RecordWalkerTest {
+
+    /**
+     * Keys, values and headers, present or null, of records in several
+     * batches, with offset gaps.
+     */
+    @Test
+    public void walkTest() {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (int b = 0; b < 3; b++) {
+            MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(1024),
+                    CompressionType.NONE, TimestampType.CREATE_TIME, b * 100L);
+            for (int i = 0; i < 5; i++) {
+                builder.appendWithOffset(b * 100L + i * 2, createRecord(i));
+            }
+            buf.put(builder.build().buffer());
+        }
+        buf.flip();
+        assertWalksAsIterated(MemoryRecords.readableRecords(buf));
+    }
+
+    /**
+     * A log append time batch: the records take the timestamp of the batch,
+     * while their stored timestamp delta remains available.
+     */
+    @Test
+    public void logAppendTimeTest() {
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(1024),
+                CompressionType.NONE, TimestampType.LOG_APPEND_TIME, 0);
+        for (int i = 0; i < 3; i++) {
+            builder.append(createRecord(i));
+        }
+        MemoryRecords recs = builder.build();
+        MutableRecordBatch batch = recs.batches().iterator().next();
+        batch.setMaxTimestamp(TimestampType.LOG_APPEND_TIME, 5000L);
+        assertWalksAsIterated(recs);
+
+        RecordWalker walker = new RecordWalker(recs.buffer());
+        walker.reset(batch, 0);
+        assertTrue(walker.next());
+        assertTrue(walker.next());
+        assertEquals(5000L, walker.timestamp());
+        assertEquals(10L, walker.timestampDelta());
+    }
+
+    @Test
+    public void malformedRecordTest() {
+        MemoryRecords recs = MemoryRecords.withRecords(CompressionType.NONE, createRecord(0), createRecord(1));
+        RecordBatch batch = recs.batches().iterator().next();
+        // a record size exceeding the batch
+        recs.buffer().put(DefaultRecordBatch.RECORD_BATCH_OVERHEAD, (byte) 0x7e);
+        RecordWalker walker = new RecordWalker(recs.buffer());
+        walker.reset(batch, 0);
+        try {
+            walker.next();
+            fail("Malformed record walked");
+        } catch (InvalidRecordException e) {
+            // expected
+        }
+    }
+
+    private static SimpleRecord createRecord(int i) {
+        byte[] key = i % 2 == 0 ? ("key-" + i).getBytes(StandardCharsets.UTF_8) : null;
+        byte[] value = i % 3 == 2 ? null : ("value-" + i).getBytes(StandardCharsets.UTF_8);
+        Header[] headers = i % 2 == 1
+                ? new Header[] {new RecordHeader("h" + i, "v".getBytes(StandardCharsets.UTF_8)),
+                    new RecordHeader("n", null)}
+                : Record.EMPTY_HEADERS;
+        return new SimpleRecord(1000L + i * 10, key, value, headers);
+    }
+
+    private static void assertWalksAsIterated(MemoryRecords recs) {
+        RecordWalker walker = new RecordWalker(recs.buffer());
+        int batchPos = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            assertTrue(RecordWalker.canWalk(batch));
+            walker.reset(batch, batchPos);
+            Iterator<Record> records = batch.iterator();
+            while (records.hasNext()) {
+                Record record = records.next();
+                assertTrue("Too few records walked", walker.next());
+                assertEquals(record.offset(), walker.offset());
+                assertEquals(record.timestamp(), walker.timestamp());
+                assertEquals(record.sizeInBytes(), walker.sizeInBytes());
+                assertEquals(record.key(), walker.key());
+                assertEquals(record.value(), walker.value());
+                assertEquals(record.hasValue(), walker.hasValue());
+                assertArrayEquals(record.headers(), walker.headers());
+            }
+            assertFalse("Too many records walked", walker.next());
+            batchPos += batch.sizeInBytes();
+        }
+    }
+}
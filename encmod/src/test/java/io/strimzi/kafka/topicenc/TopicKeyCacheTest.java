@@ -0,0 +1,180 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.compress.PayloadCodec;
+import io.strimzi.kafka.topicenc.enc.CipherSuite;
+import io.strimzi.kafka.topicenc.enc.CipherSuiteManager;
+import io.strimzi.kafka.topicenc.enc.DataKeyManager;
+import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsFactoryManager;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+
+/**
+ * Tests of the expiry, refresh-ahead, eviction and purging of topic keys.
+ */
+public class TopicKeyCacheTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<Runnable> refreshes = new ArrayList<>();
+    private final AtomicInteger numLoads = new AtomicInteger();
+    private TopicEncryptionContext lastPrevious;
+    private TopicKeyCache cache;
+
+    @Before
+    public void testsInit() {
+        cache = createCache(new KeyCacheConfig().setTtlMs(1000).setRefreshAheadMs(200));
+    }
+
+    @Test
+    public void refreshAheadTest() throws Exception {
+        TopicEncryptionContext ctx = cache.get("a");
+        assertEquals(1, numLoads.get());
+
+        // used before the refresh-ahead window: served from the cache
+        now.set(700 * MS);
+        assertSame(ctx, cache.get("a"));
+        assertTrue(refreshes.isEmpty());
+
+        // used within the window: served from the cache and refreshed in the background, once
+        now.set(900 * MS);
+        assertSame(ctx, cache.get("a"));
+        assertSame(ctx, cache.get("a"));
+        assertEquals(1, refreshes.size());
+        assertEquals(1, numLoads.get());
+        runRefreshes();
+        assertEquals(2, numLoads.get());
+        assertSame(ctx, lastPrevious);
+        TopicEncryptionContext refreshed = cache.get("a");
+        assertNotSame(ctx, refreshed);
+
+        // not used until after expiry: loaded on demand
+        now.set(3000 * MS);
+        assertNotSame(refreshed, cache.get("a"));
+        assertEquals(3, numLoads.get());
+        assertSame(refreshed, lastPrevious);
+        assertTrue(refreshes.isEmpty());
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        cache = createCache(new KeyCacheConfig().setTtlMs(1000).setRefreshAheadMs(200).setMaxSize(2));
+        cache.get("a");
+        now.addAndGet(MS);
+        cache.get("b");
+        now.addAndGet(MS);
+        cache.get("a");
+        now.addAndGet(MS);
+        cache.get("c");
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("a"));
+        assertFalse("Least recently used topic was not evicted", cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void purgeTest() throws Exception {
+        TopicEncryptionContext ctx = cache.get("a");
+        cache.get("unencrypted");
+        assertFalse("Unencrypted topic was cached", cache.contains("unencrypted"));
+
+        cache.purge("other");
+        assertTrue(cache.contains("a"));
+        cache.purge("test");
+        assertFalse(cache.contains("a"));
+        assertNotSame(ctx, cache.get("a"));
+        assertNull("Purged context was passed on", lastPrevious);
+    }
+
+    /**
+     * Concurrent requests for a topic not cached wait for a single load.
+     */
+    @Test
+    public void concurrentLoadTest() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TopicKeyCache slowCache = new TopicKeyCache(new KeyCacheConfig(), (topic, previous) -> {
+            numLoads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            return createContext();
+        }, Runnable::run, now::get);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<TopicEncryptionContext>> results = new ArrayList<>();
+            results.add(executor.submit(() -> slowCache.get("a")));
+            loading.await();
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> slowCache.get("a")));
+            }
+            release.countDown();
+            TopicEncryptionContext ctx = results.get(0).get();
+            for (Future<TopicEncryptionContext> result : results) {
+                assertSame(ctx, result.get());
+            }
+            assertEquals(1, numLoads.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidConfigTest() {
+        new KeyCacheConfig().setTtlMs(1000).setRefreshAheadMs(1000).validate();
+    }
+
+    private TopicKeyCache createCache(KeyCacheConfig config) {
+        return new TopicKeyCache(config, (topic, previous) -> {
+            numLoads.incrementAndGet();
+            lastPrevious = previous;
+            return topic.equals("unencrypted") ? null : createContext();
+        }, refreshes::add, now::get);
+    }
+
+    private void runRefreshes() {
+        List<Runnable> pending = new ArrayList<>(refreshes);
+        refreshes.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    private static TopicEncryptionContext createContext() throws Exception {
+        KmsDefinition kmsDef = new KmsDefinition()
+                .setName("test")
+                .setType("test");
+        TopicPolicy policy = new TopicPolicy()
+                .setTopic("a")
+                .setKmsName("test")
+                .setKeyReference("test")
+                .setKms(KmsFactoryManager.getInstance().createKms(kmsDef))
+                .validate();
+        CipherSuite suite = CipherSuiteManager.getInstance().getCipherSuite(policy.getEncMethod());
+        return new TopicEncryptionContext(policy, suite, EncUtils.generateAesKey(256),
+                new DataKeyManager(EncUtils.generateAesKey(256), suite, 1, 1), PayloadCodec.NONE);
+    }
+}
@@ -6,9 +6,17 @@ package io.strimzi.kafka.topicenc.enc;
 
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
 
 import javax.crypto.SecretKey;
 
@@ -22,6 +30,7 @@ import io.strimzi.kafka.topicenc.kms.KmsDefinition;
 import io.strimzi.kafka.topicenc.kms.KmsException;
 import io.strimzi.kafka.topicenc.kms.KmsFactoryManager;
 import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDer;
 import io.strimzi.kafka.topicenc.ser.EncSerDerException;
 
 public class AesGcmEncTests {
@@ -70,6 +79,201 @@ public class AesGcmEncTests {
         }
     }
 
+    /**
+     * Interleave encryption and decryption with different keys on the same
+     * thread, exercising re-initialization of cached ciphers.
+     */
+    @Test
+    public void interleavedKeysTestAesGcm() throws Exception {
+        byte[] testMsg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        AesGcmEncrypter enc2 = new AesGcmEncrypter(EncUtils.generateAesKey(256));
+
+        for (int i = 0; i < 10; i++) {
+            EncData encData = enc.encrypt(testMsg);
+            EncData encData2 = enc2.encrypt(testMsg);
+            Assert.assertArrayEquals(testMsg, enc2.decrypt(encData2));
+            Assert.assertArrayEquals(testMsg, enc.decrypt(encData));
+            try {
+                enc.decrypt(encData2);
+                fail("Decryption with the wrong key succeeded.");
+            } catch (GeneralSecurityException e) {
+                // expected: authentication tag mismatch
+            }
+        }
+    }
+
+    /**
+     * Round-trip through the ByteBuffer API with heap and direct buffers, with
+     * the plaintext and ciphertext located at non-zero offsets.
+     */
+    @Test
+    public void byteBufferTestAesGcm() throws Exception {
+        testByteBuffers(ByteBuffer::allocate);
+        testByteBuffers(ByteBuffer::allocateDirect);
+    }
+
+    private void testByteBuffers(IntFunction<ByteBuffer> allocator) throws Exception {
+        byte[] testMsg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        int offset = 7;
+
+        ByteBuffer plaintext = allocator.apply(offset + testMsg.length);
+        plaintext.position(offset);
+        plaintext.put(testMsg);
+        plaintext.position(offset);
+
+        byte[] iv = enc.createIv();
+        int ciphertextLen = enc.getCiphertextSize(testMsg.length);
+        ByteBuffer ciphertext = allocator.apply(offset + ciphertextLen);
+        ciphertext.position(offset);
+        Assert.assertEquals(ciphertextLen, enc.encrypt(plaintext, iv, ciphertext));
+        Assert.assertFalse(plaintext.hasRemaining());
+        ciphertext.position(offset);
+
+        // the array-based API must decrypt what the buffer-based API encrypted
+        Assert.assertArrayEquals(testMsg, enc.decrypt(new EncData(iv, ciphertext.duplicate())));
+
+        ByteBuffer decrypted = allocator.apply(offset + testMsg.length);
+        decrypted.position(offset);
+        Assert.assertEquals(testMsg.length, enc.decrypt(ciphertext, iv, decrypted));
+        decrypted.flip().position(offset);
+        Assert.assertEquals(ByteBuffer.wrap(testMsg), decrypted);
+    }
+
+    /**
+     * Segmented encryption: plaintexts of various segment counts round-trip,
+     * including in place, and segments can be neither altered, dropped nor
+     * reordered.
+     */
+    @Test
+    public void segmentedTestAesGcm() throws Exception {
+        EncrypterDecrypter segmented = enc.getSegmented();
+        Assert.assertSame(segmented, segmented.getSegmented());
+        int segmentSize = SegmentedAeadEncrypter.SEGMENT_SIZE;
+        Random random = new Random(42);
+        for (int len : new int[] {0, 1, segmentSize - 1, segmentSize, segmentSize + 1, 3 * segmentSize + 17}) {
+            byte[] testMsg = new byte[len];
+            random.nextBytes(testMsg);
+            EncData encData = segmented.encrypt(testMsg);
+            int numSegments = Math.max(1, (len + segmentSize - 1) / segmentSize);
+            Assert.assertEquals(len + numSegments * AesGcmEncrypter.TAG_SIZE, encData.getCiphertext().length);
+            Assert.assertEquals(len, segmented.getPlaintextSize(encData.getCiphertext().length));
+            Assert.assertArrayEquals(testMsg, segmented.decrypt(encData));
+
+            // in place, the plaintext written over the ciphertext
+            ByteBuffer buf = ByteBuffer.wrap(encData.getCiphertext().clone());
+            ByteBuffer out = buf.duplicate();
+            Assert.assertEquals(len, segmented.decrypt(buf, encData.getIv(), out));
+            Assert.assertEquals(ByteBuffer.wrap(testMsg), out.flip());
+        }
+
+        byte[] testMsg = new byte[3 * segmentSize];
+        random.nextBytes(testMsg);
+        EncData encData = segmented.encrypt(testMsg);
+        byte[] ciphertext = encData.getCiphertext();
+        int segmentLen = segmentSize + AesGcmEncrypter.TAG_SIZE;
+
+        byte[] truncated = Arrays.copyOf(ciphertext, 2 * segmentLen);
+        byte[] reordered = ciphertext.clone();
+        System.arraycopy(ciphertext, 0, reordered, segmentLen, segmentLen);
+        System.arraycopy(ciphertext, segmentLen, reordered, 0, segmentLen);
+        byte[] altered = ciphertext.clone();
+        altered[segmentLen + 5] ^= 1;
+        for (byte[] bad : new byte[][] {truncated, reordered, altered}) {
+            try {
+                segmented.decrypt(new EncData(encData.getIv(), bad));
+                fail("Tampered segmented ciphertext was decrypted.");
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+        }
+        // the message key is bound to the IV
+        try {
+            segmented.decrypt(new EncData(enc.createIv(), ciphertext));
+            fail("Segmented ciphertext was decrypted with another IV.");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Counter-based nonces are 96 bits, unique and limited in number. Data
+     * encrypted with 16-byte random IVs, as by earlier versions, remains
+     * decryptable.
+     */
+    @Test
+    public void counterNonceTestAesGcm() throws Exception {
+        CounterNonceGenerator nonces = new CounterNonceGenerator(1000);
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] nonce = nonces.next();
+            Assert.assertEquals(CounterNonceGenerator.NONCE_SIZE, nonce.length);
+            Assert.assertTrue("Nonce repeated", seen.add(ByteBuffer.wrap(nonce)));
+        }
+        try {
+            nonces.next();
+            fail("Nonce generated beyond the invocation limit.");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        Assert.assertEquals(1000, nonces.getInvocations());
+
+        byte[] testMsg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(AesGcmEncrypter.IV_SIZE, enc.encrypt(testMsg).getIv().length);
+        EncData legacy = enc.encrypt(testMsg, EncUtils.createRandom(16));
+        Assert.assertArrayEquals(testMsg, enc.decrypt(legacy));
+    }
+
+    /**
+     * With no other provider installed, the AesGcmV1 suite uses SunJCE.
+     */
+    @Test
+    public void providerFallbackTest() throws Exception {
+        AesGcmProviderManager providers = AesGcmProviderManager.getInstance();
+        Assert.assertEquals("jce:SunJCE", providers.getDefaultProvider().getName());
+        try {
+            providers.getProvider("openssl");
+            fail("Unavailable provider was returned.");
+        } catch (NoSuchAlgorithmException e) {
+            // expected
+        }
+        EncrypterDecrypter suiteEnc = CipherSuiteManager.getInstance()
+                .getCipherSuite(AesGcmV1CipherSuite.NAME)
+                .createEncrypterDecrypter(EncUtils.generateAesKey(256));
+        Assert.assertTrue(suiteEnc instanceof AesGcmEncrypter);
+    }
+
+    /**
+     * Providers whose results differ from the known answer are not used, and
+     * the calibration measures each provider.
+     */
+    @Test
+    public void providerSelectionTest() throws Exception {
+        AesGcmProvider jce = new JceAesGcmProvider(AesGcmEncrypter.DEFAULT_JCE_PROVIDER);
+        Assert.assertTrue(AesGcmProviderManager.isKnownAnswerCorrect(jce));
+        AesGcmProvider broken = new AesGcmProvider() {
+            @Override
+            public String getName() {
+                return "broken";
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public EncrypterDecrypter createEncrypterDecrypter(SecretKey key, NonceGenerator nonces)
+                    throws GeneralSecurityException {
+                // encrypts with a different key
+                return jce.createEncrypterDecrypter(EncUtils.generateAesKey(256), nonces);
+            }
+        };
+        Assert.assertFalse(AesGcmProviderManager.isKnownAnswerCorrect(broken));
+
+        Map<String, Long> results = AesGcmProviderManager.calibrate(List.of(jce));
+        Assert.assertTrue(results.get(jce.getName()) > 0);
+    }
+
     /**
      * Basic test of serialization, deserialization of encrypted data.
      */
@@ -79,6 +283,35 @@ public class AesGcmEncTests {
         testSerDer(testMsg);
     }
 
+    /**
+     * The suite writes the compact version 2 layout and reads both layouts.
+     */
+    @Test
+    public void compactSerDerTest() throws Exception {
+        byte[] testMsg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        EncData encData = enc.encrypt(testMsg);
+        EncSerDer compact = CipherSuiteManager.getInstance().getCipherSuite((String) null).getSerDer();
+        EncSerDer legacy = new AesGcmV1SerDer();
+
+        byte[] v2 = compact.serialize(encData);
+        byte[] v1 = legacy.serialize(encData);
+        Assert.assertEquals(1 + AesGcmEncrypter.IV_SIZE + encData.getCiphertext().length, v2.length);
+        Assert.assertEquals(v1.length - 7, v2.length);
+
+        for (byte[] serialized : new byte[][] {v1, v2}) {
+            ByteBuffer buf = ByteBuffer.wrap(serialized);
+            Assert.assertEquals(AesGcmV1SerDer.VERSION, EncSerDer.readVersion(buf));
+            Assert.assertEquals(0, EncSerDer.readCodec(buf));
+            Assert.assertArrayEquals(testMsg, enc.decrypt(compact.deserialize(serialized)));
+        }
+        try {
+            legacy.deserialize(v2);
+            fail("Version 1 serializer read the version 2 layout");
+        } catch (EncSerDerException e) {
+            // expected
+        }
+    }
+
     /**
      * Tests serialization, deserialization of encrypted data using buffers of
      * random size and data.
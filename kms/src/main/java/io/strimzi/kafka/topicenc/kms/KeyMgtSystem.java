@@ -4,6 +4,8 @@
  */
 package io.strimzi.kafka.topicenc.kms;
 
+import java.util.List;
+
 import javax.crypto.SecretKey;
 
 /**
@@ -20,4 +22,19 @@ public interface KeyMgtSystem {
      * @throws KmsException
      */
     SecretKey getKey(String keyReference) throws KmsException;
+
+    /**
+     * Retrieve the versions of the key identified by the provided key
+     * reference that remain available for decryption, the current version
+     * first. Data encrypted before a key was rotated is decrypted with an
+     * earlier version. The default returns the current version only, for
+     * KMSs that do not retain earlier versions.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @return the available versions of the key, the current version first
+     * @throws KmsException
+     */
+    default List<SecretKey> getKeyVersions(String keyReference) throws KmsException {
+        return List.of(getKey(keyReference));
+    }
 }
@@ -4,13 +4,28 @@
  */
 package io.strimzi.kafka.proxy.vertx;
 
+import io.strimzi.kafka.topicenc.KeyCacheConfig;
+
 public class Config {
 
+    /**
+     * The default maximum size of a client request, that of the broker's
+     * default socket.request.max.bytes.
+     */
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 100 * 1024 * 1024;
+
     public static final class PropertyNames {
         public static final String LISTENING_PORT = "listening_port";
         public static final String KAFKA_BROKERS = "kafka_broker";
         public static final String POLICY_REPO = "topic_policies";
         public static final String KMS_CONFIG = "kms_defs";
+        public static final String ENCRYPTION_PARALLELISM = "encryption_parallelism";
+        public static final String KEY_CACHE_TTL_MS = "key_cache_ttl_ms";
+        public static final String KEY_CACHE_REFRESH_AHEAD_MS = "key_cache_refresh_ahead_ms";
+        public static final String KEY_CACHE_MAX_SIZE = "key_cache_max_size";
+        public static final String DECRYPTED_BATCH_CACHE_BYTES = "decrypted_batch_cache_bytes";
+        public static final String AES_GCM_PROVIDER = "aes_gcm_provider";
+        public static final String MAX_REQUEST_BYTES = "max_request_bytes";
 
         private PropertyNames() {
         }
@@ -20,6 +35,11 @@ public class Config {
     private String policyFile;
     private String kmsConfigFile;
     private int listeningPort;
+    private int encryptionParallelism = 1;
+    private KeyCacheConfig keyCacheConfig = new KeyCacheConfig();
+    private long decryptedBatchCacheBytes;
+    private String aesGcmProvider;
+    private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
 
     public int getListeningPort() {
         return listeningPort;
@@ -56,4 +76,69 @@ public class Config {
         this.kmsConfigFile = filename;
         return this;
     }
+
+    /**
+     * Returns the number of threads with which the partitions of a single
+     * request are encrypted or decrypted. 1, the default, processes partitions
+     * sequentially.
+     */
+    public int getEncryptionParallelism() {
+        return encryptionParallelism;
+    }
+
+    public Config setEncryptionParallelism(int parallelism) {
+        this.encryptionParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Returns the configuration of the Encryption Module's cache of topic keys.
+     */
+    public KeyCacheConfig getKeyCacheConfig() {
+        return keyCacheConfig;
+    }
+
+    public Config setKeyCacheConfig(KeyCacheConfig keyCacheConfig) {
+        this.keyCacheConfig = keyCacheConfig;
+        return this;
+    }
+
+    /**
+     * Returns the capacity, in bytes, of the Encryption Module's cache of
+     * decrypted batches. 0, the default, disables the cache.
+     */
+    public long getDecryptedBatchCacheBytes() {
+        return decryptedBatchCacheBytes;
+    }
+
+    public Config setDecryptedBatchCacheBytes(long bytes) {
+        this.decryptedBatchCacheBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Returns the name of the AES GCM provider to use, or null, the default,
+     * to use the fastest, as determined by calibration.
+     */
+    public String getAesGcmProvider() {
+        return aesGcmProvider;
+    }
+
+    public Config setAesGcmProvider(String provider) {
+        this.aesGcmProvider = provider;
+        return this;
+    }
+
+    /**
+     * Returns the maximum size, in bytes, of a client request. A client
+     * sending a larger request is disconnected.
+     */
+    public int getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    public Config setMaxRequestBytes(int bytes) {
+        this.maxRequestBytes = bytes;
+        return this;
+    }
 }
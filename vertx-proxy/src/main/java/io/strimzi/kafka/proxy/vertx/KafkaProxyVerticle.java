@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import io.strimzi.kafka.proxy.vertx.util.ConfigUtil;
 import io.strimzi.kafka.topicenc.EncryptionModule;
+import io.strimzi.kafka.topicenc.enc.AesGcmProviderManager;
 import io.strimzi.kafka.topicenc.policy.InMemoryPolicyRepository;
 import io.strimzi.kafka.topicenc.policy.JsonPolicyLoader;
 import io.strimzi.kafka.topicenc.policy.TopicPolicy;
@@ -32,6 +33,8 @@ public class KafkaProxyVerticle extends AbstractVerticle {
     public static final String CTX_KEY_CONFIG = "topicenc.config";
     public static final String CTX_KEY_ENCMOD = "topicenc.encmod";
 
+    private static final long BATCH_CACHE_STATS_INTERVAL_MS = 60_000;
+
     private Config config;
     private EncryptionModule encMod;
 
@@ -44,13 +47,17 @@ public class KafkaProxyVerticle extends AbstractVerticle {
         context.put(CTX_KEY_CONFIG, config);
 
         try {
+            if (config.getAesGcmProvider() != null) {
+                AesGcmProviderManager.getInstance().setDefaultProvider(config.getAesGcmProvider());
+            }
             List<TopicPolicy> topicPolicy = JsonPolicyLoader.loadTopicPolicies(
                     new File(config.getKmsConfigFile()),
                     new File(config.getPolicyFile()));
 
             InMemoryPolicyRepository policy = new InMemoryPolicyRepository(topicPolicy);
 
-            encMod = new EncryptionModule(policy);
+            encMod = new EncryptionModule(policy, config.getEncryptionParallelism(),
+                    config.getKeyCacheConfig(), config.getDecryptedBatchCacheBytes());
 
         } catch (Exception e) {
             throw new RuntimeException("Error initializing Encryption Module", e);
@@ -62,6 +69,11 @@ public class KafkaProxyVerticle extends AbstractVerticle {
     public void start(Promise<Void> promise) {
         LOGGER.debug("starting");
 
+        if (encMod.getBatchCacheStats() != null) {
+            vertx.setPeriodic(BATCH_CACHE_STATS_INTERVAL_MS,
+                    id -> LOGGER.info("Decrypted batch cache: {}", encMod.getBatchCacheStats()));
+        }
+
         NetServerOptions opts = new NetServerOptions();
         opts.setPort(config.getListeningPort());
 
@@ -77,4 +89,12 @@ public class KafkaProxyVerticle extends AbstractVerticle {
                     }
                 });
     }
+
+    @Override
+    public void stop() {
+        LOGGER.debug("stopping");
+        if (encMod != null) {
+            encMod.close();
+        }
+    }
 }
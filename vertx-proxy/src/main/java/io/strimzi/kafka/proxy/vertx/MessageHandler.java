@@ -12,7 +12,7 @@ import java.util.Objects;
 
 import org.apache.kafka.common.message.FetchResponseData;
 import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
-import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.network.InvalidReceiveException;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.FetchRequest;
@@ -53,9 +53,10 @@ public class MessageHandler implements Handler<Buffer> {
     private NetSocket clientSocket;
     private NetClient brokerClient;
     private Future<NetSocket> brokerSocketFuture;
-    private Map<Integer, RequestHeader> fetchHeaderCache = new HashMap<>();
-    private MessageAccumulator currBrokerRsp = new MessageAccumulator();
-    private MessageAccumulator currClientReq = new MessageAccumulator();
+    private final Map<Integer, RequestHeader> fetchHeaderCache = new HashMap<>();
+    private final MessageAccumulator currBrokerRsp = new MessageAccumulator();
+    private final MessageAccumulator currClientReq;
+    private boolean closed;
 
     /**
      * The real constructor, as opposed to the test constructor.
@@ -76,6 +77,7 @@ public class MessageHandler implements Handler<Buffer> {
         if (Objects.isNull(encMod)) {
             throw new NullPointerException("No encryption module");
         }
+        this.currClientReq = new MessageAccumulator(config.getMaxRequestBytes());
 
         connectToBroker(clientSocket);
         LOGGER.debug("MessageHandler created. isComplete: {}", brokerSocketFuture.isComplete());
@@ -94,6 +96,7 @@ public class MessageHandler implements Handler<Buffer> {
         }
         this.encMod = encMod;
         this.config = config;
+        this.currClientReq = new MessageAccumulator(config.getMaxRequestBytes());
     }
 
     /**
@@ -103,6 +106,7 @@ public class MessageHandler implements Handler<Buffer> {
      */
     public void close() {
         LOGGER.debug("Closing MessageHandler");
+        closed = true;
         if (brokerSocketFuture != null) {
             NetSocket brokerSocket = brokerSocketFuture.result();
             if (brokerSocket != null) {
@@ -113,7 +117,29 @@ public class MessageHandler implements Handler<Buffer> {
         clientSocket = null;
         context = null;
         fetchHeaderCache.clear();
-        fetchHeaderCache = null;
+        currClientReq.clear();
+        currBrokerRsp.clear();
+    }
+
+    /**
+     * Returns whether the handler is closed, as when the client socket has
+     * been closed or a message could not be framed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the client and broker sockets on receiving a message which cannot
+     * be framed, as the stream of messages cannot be resynchronised.
+     */
+    private void closeOnInvalidMessage(String source, InvalidReceiveException e) {
+        LOGGER.error("Invalid message from {}, closing the connection: {}", source, e.getMessage());
+        NetSocket client = clientSocket;
+        close();
+        if (client != null) {
+            client.close();
+        }
     }
 
     /**
@@ -125,9 +151,18 @@ public class MessageHandler implements Handler<Buffer> {
     public void handle(Buffer buffer) {
 
         LOGGER.debug("Request buffer from client arrived");
+        if (closed) {
+            return;
+        }
         currClientReq.append(buffer);
 
-        List<Buffer> sendBuffers = currClientReq.take();
+        List<Buffer> sendBuffers;
+        try {
+            sendBuffers = currClientReq.take();
+        } catch (InvalidReceiveException e) {
+            closeOnInvalidMessage("client", e);
+            return;
+        }
         LOGGER.debug("Number of complete Kafka msgs: {}", sendBuffers.size());
         if (sendBuffers.isEmpty()) {
             return;
@@ -217,24 +252,22 @@ public class MessageHandler implements Handler<Buffer> {
         ProduceRequest req = ProduceRequest.parse(kafkaMsg.getPayload(),
                 kafkaMsg.getHeader().apiVersion());
 
-        // iterate over the request's partitions, passing them to the
-        // encryption module where they are assessed for encryptopn.
+        // pass the request's topics to the encryption module where they are
+        // assessed for encryption. Their partitions may be encrypted in parallel.
         int numEncryptions = 0;
         if (req.data() != null && req.data().topicData() != null) {
-            for (TopicProduceData topicData : req.data().topicData()) {
-                boolean wasEncrypted = encMod.encrypt(topicData);
-                if (wasEncrypted) {
-                    numEncryptions++;
-                }
-            }
+            numEncryptions = encMod.encrypt(req.data().topicData());
         }
 
         if (numEncryptions == 0) {
             // no encryptions performed, return original buffer as-is
             return buffer;
         }
-        // records were altered by encryption. Serialize and return the modified message
-        return MsgUtil.toSendBuffer(kafkaMsg.getHeaderBytes(), req);
+        // records were altered by encryption. Serialize and return the modified message.
+        // Serialization copies the records, so their buffers can be reused.
+        Buffer sendBuffer = MsgUtil.toSendBuffer(kafkaMsg.getHeaderBytes(), req);
+        encMod.releaseEncrypted(req.data().topicData());
+        return sendBuffer;
     }
 
     /**
@@ -308,10 +341,19 @@ public class MessageHandler implements Handler<Buffer> {
     public void processBrokerResponse(Buffer brokerRsp)
             throws EncSerDerException, GeneralSecurityException, KmsException {
 
+        if (closed) {
+            return;
+        }
         // accumulate message fragments
         currBrokerRsp.append(brokerRsp);
 
-        List<Buffer> brokerRspMsgs = currBrokerRsp.take();
+        List<Buffer> brokerRspMsgs;
+        try {
+            brokerRspMsgs = currBrokerRsp.take();
+        } catch (InvalidReceiveException e) {
+            closeOnInvalidMessage("broker", e);
+            return;
+        }
         if (brokerRspMsgs.isEmpty()) {
             return;
         }
@@ -375,20 +417,17 @@ public class MessageHandler implements Handler<Buffer> {
             return buffer;
         }
         List<FetchableTopicResponse> responses = data.responses();
-        int numDecryptions = 0;
-        for (FetchableTopicResponse topicRsp : responses) {
-            boolean wasDecrypted = encMod.decrypt(topicRsp);
-            if (wasDecrypted) {
-                numDecryptions++;
-            }
-        }
+        int numDecryptions = encMod.decrypt(responses);
 
         if (numDecryptions == 0) {
             // no decryptions were performed, return original buffer
             return buffer;
         } else {
-            // records were decrypted. Serialize and return the modified message
-            return MsgUtil.toSendBuffer(fetch, reqHeader);
+            // records were decrypted. Serialize and return the modified message.
+            // Serialization copies the records, so their buffers can be reused.
+            Buffer sendBuffer = MsgUtil.toSendBuffer(fetch, reqHeader);
+            encMod.releaseDecrypted(responses);
+            return sendBuffer;
         }
     }
 
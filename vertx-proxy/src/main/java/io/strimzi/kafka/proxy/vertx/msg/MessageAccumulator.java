@@ -4,9 +4,12 @@
  */
 package io.strimzi.kafka.proxy.vertx.msg;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
+import org.apache.kafka.common.network.InvalidReceiveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +20,16 @@ import io.vertx.core.buffer.Buffer;
  * Receives and appends Kafka message fragments and answers
  * whether the message is complete based on the message length
  * in the first 4 bytes of the message.
+ *
+ * Fragments are kept by reference, not copied into one growing buffer, and
+ * complete messages are returned as slices of the fragment holding them.
+ * A message is copied only when it spans fragments, so the cost of framing
+ * a large, fragmented message is proportional to its size rather than to
+ * the square of its number of fragments.
+ *
+ * A message whose size is negative or exceeds the maximum is rejected with
+ * an InvalidReceiveException, after which the accumulator is to be cleared
+ * and the connection closed, as the stream can no longer be framed.
  */
 public class MessageAccumulator {
 
@@ -27,49 +40,118 @@ public class MessageAccumulator {
     // See: https://kafka.apache.org/protocol.html#protocol_common
     private static final int SIZE_LEN = 4;
 
-    private Buffer buffer;
+    // the fragments not yet taken, the first from position headPos
+    private final Deque<Buffer> fragments = new ArrayDeque<>();
+    private final int maxMessageSize;
+    private int headPos;
+    private long remaining;
 
     public MessageAccumulator() {
-        buffer = Buffer.buffer(0);
+        this(Integer.MAX_VALUE - SIZE_LEN);
+    }
+
+    /**
+     * @param maxMessageSize the maximum size of a message, excluding its size
+     *                       field
+     */
+    public MessageAccumulator(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
     }
 
     public void append(Buffer buffer) {
         if (LOGGER.isDebugEnabled()) {
             LogUtils.hexDump("Msg append", buffer.getBytes());
         }
-        this.buffer.appendBuffer(buffer);
+        if (buffer.length() > 0) {
+            fragments.addLast(buffer);
+            remaining += buffer.length();
+        }
     }
 
     /**
      * @return a list containing the complete Kafka protocol messages accumulated.
      *         These are removed from the accumulator.
+     * @throws InvalidReceiveException if the size of the next message is
+     *         negative or exceeds the maximum
      */
     public List<Buffer> take() {
-        int pos = 0;
-        int remaining = buffer.length();
         ArrayList<Buffer> result = new ArrayList<>();
-        while(remaining > 0) {
-            if (remaining < SIZE_LEN) {
-                break;
+        while (remaining >= SIZE_LEN) {
+            int size = peekSize();
+            if (size < 0 || size > maxMessageSize) {
+                throw new InvalidReceiveException("Invalid Kafka message size: " + size
+                        + ", maximum " + maxMessageSize);
             }
-
-            int nextMsgLen = buffer.getInt(pos) + SIZE_LEN;
+            long nextMsgLen = (long) size + SIZE_LEN;
             if (nextMsgLen > remaining) {
                 break;
             }
+            result.add(read((int) nextMsgLen));
+        }
+        return result;
+    }
 
-            result.add(buffer.slice(pos, pos+nextMsgLen));
+    /**
+     * Discard the fragments accumulated, as when the connection is closed.
+     */
+    public void clear() {
+        fragments.clear();
+        headPos = 0;
+        remaining = 0;
+    }
 
-            remaining -= nextMsgLen;
-            pos += nextMsgLen;
+    /**
+     * Returns the size field at the start of the next message, which may
+     * span fragments.
+     */
+    private int peekSize() {
+        Buffer head = fragments.getFirst();
+        if (head.length() - headPos >= SIZE_LEN) {
+            return head.getInt(headPos);
         }
+        int size = 0;
+        int pos = headPos;
+        int n = 0;
+        for (Buffer fragment : fragments) {
+            for (; pos < fragment.length() && n < SIZE_LEN; pos++, n++) {
+                size = (size << 8) | (fragment.getByte(pos) & 0xff);
+            }
+            if (n == SIZE_LEN) {
+                break;
+            }
+            pos = 0;
+        }
+        return size;
+    }
 
-        if (pos == buffer.length()) {
-            buffer = Buffer.buffer(0);
-        } else {
-            buffer = buffer.getBuffer(pos, buffer.length());
+    /**
+     * Remove the next len bytes, as a slice of the first fragment if it holds
+     * them all, otherwise as a copy.
+     */
+    private Buffer read(int len) {
+        remaining -= len;
+        Buffer head = fragments.getFirst();
+        if (head.length() - headPos >= len) {
+            Buffer msg = head.slice(headPos, headPos + len);
+            advance(head, len);
+            return msg;
+        }
+        Buffer msg = Buffer.buffer(len);
+        while (len > 0) {
+            head = fragments.getFirst();
+            int n = Math.min(len, head.length() - headPos);
+            msg.appendBuffer(head, headPos, n);
+            advance(head, n);
+            len -= n;
         }
+        return msg;
+    }
 
-        return result;
+    private void advance(Buffer head, int len) {
+        headPos += len;
+        if (headPos == head.length()) {
+            fragments.removeFirst();
+            headPos = 0;
+        }
     }
 }
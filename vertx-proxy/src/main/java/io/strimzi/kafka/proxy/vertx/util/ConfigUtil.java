@@ -5,6 +5,7 @@
 package io.strimzi.kafka.proxy.vertx.util;
 
 import io.strimzi.kafka.proxy.vertx.Config;
+import io.strimzi.kafka.topicenc.KeyCacheConfig;
 import io.strimzi.kafka.topicenc.common.Strings;
 import io.vertx.core.json.JsonObject;
 
@@ -27,12 +28,41 @@ public class ConfigUtil {
         int listeningPort = getIntParam(jsonConfig, Config.PropertyNames.LISTENING_PORT);
         String policyRepo = getParam(jsonConfig, Config.PropertyNames.POLICY_REPO);
         String kmsConfigFile = getParam(jsonConfig, Config.PropertyNames.KMS_CONFIG);
+        int parallelism = jsonConfig.getInteger(Config.PropertyNames.ENCRYPTION_PARALLELISM, 1);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Configuration field must be positive, " + Config.PropertyNames.ENCRYPTION_PARALLELISM);
+        }
+        KeyCacheConfig keyCacheConfig = new KeyCacheConfig()
+                .setTtlMs(jsonConfig.getLong(Config.PropertyNames.KEY_CACHE_TTL_MS,
+                        KeyCacheConfig.DEFAULT_TTL_MS))
+                .setRefreshAheadMs(jsonConfig.getLong(Config.PropertyNames.KEY_CACHE_REFRESH_AHEAD_MS,
+                        KeyCacheConfig.DEFAULT_REFRESH_AHEAD_MS))
+                .setMaxSize(jsonConfig.getInteger(Config.PropertyNames.KEY_CACHE_MAX_SIZE,
+                        KeyCacheConfig.DEFAULT_MAX_SIZE))
+                .validate();
+        long batchCacheBytes = jsonConfig.getLong(Config.PropertyNames.DECRYPTED_BATCH_CACHE_BYTES, 0L);
+        if (batchCacheBytes < 0) {
+            throw new IllegalArgumentException(
+                    "Configuration field must not be negative, " + Config.PropertyNames.DECRYPTED_BATCH_CACHE_BYTES);
+        }
+        int maxRequestBytes = jsonConfig.getInteger(Config.PropertyNames.MAX_REQUEST_BYTES,
+                Config.DEFAULT_MAX_REQUEST_BYTES);
+        if (maxRequestBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Configuration field must be positive, " + Config.PropertyNames.MAX_REQUEST_BYTES);
+        }
 
         Config config = new Config()
                 .setBrokers(brokers)
                 .setListeningPort(listeningPort)
                 .setPolicyFile(policyRepo)
-                .setKmsConfigFile(kmsConfigFile);
+                .setKmsConfigFile(kmsConfigFile)
+                .setEncryptionParallelism(parallelism)
+                .setKeyCacheConfig(keyCacheConfig)
+                .setDecryptedBatchCacheBytes(batchCacheBytes)
+                .setAesGcmProvider(jsonConfig.getString(Config.PropertyNames.AES_GCM_PROVIDER))
+                .setMaxRequestBytes(maxRequestBytes);
         return config;
     }
 
@@ -18,6 +18,7 @@ import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.FetchResponse;
 import org.apache.kafka.common.requests.RequestHeader;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -39,6 +40,13 @@ public class EncModTest {
     EncryptionModule encMod;
     Config dummyConfig;
 
+    @After
+    public void testsCleanup() {
+        if (encMod != null) {
+            encMod.close();
+        }
+    }
+
     @Test
     public void testEncryption()
             throws IOException, EncSerDerException, GeneralSecurityException, KmsException,
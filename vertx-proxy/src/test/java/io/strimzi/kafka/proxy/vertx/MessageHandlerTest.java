@@ -0,0 +1,111 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.EncryptionModule;
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+
+/**
+ * Tests of the handling of connections by the proxy, between a client and a
+ * broker each simulated by a socket.
+ */
+public class MessageHandlerTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    private Vertx vertx;
+    private EncryptionModule encMod;
+    private CompletableFuture<NetSocket> brokerSide;
+    private CompletableFuture<Void> brokerSideClosed;
+    private int proxyPort;
+
+    @Before
+    public void testsInit() throws Exception {
+        vertx = Vertx.vertx();
+        encMod = new EncryptionModule(new TestPolicyRepository());
+        brokerSide = new CompletableFuture<>();
+        brokerSideClosed = new CompletableFuture<>();
+        int brokerPort = vertx.createNetServer()
+                .connectHandler(socket -> {
+                    socket.closeHandler(v -> brokerSideClosed.complete(null));
+                    brokerSide.complete(socket);
+                })
+                .listen(0)
+                .toCompletionStage().toCompletableFuture().get(TIMEOUT_S, TimeUnit.SECONDS)
+                .actualPort();
+
+        Context context = vertx.getOrCreateContext();
+        context.put(KafkaProxyVerticle.CTX_KEY_CONFIG, new Config()
+                .setBrokers("localhost:" + brokerPort)
+                .setMaxRequestBytes(1024));
+        context.put(KafkaProxyVerticle.CTX_KEY_ENCMOD, encMod);
+        proxyPort = vertx.createNetServer()
+                .connectHandler(new TopicEncryptingSocketHandler(context))
+                .listen(0)
+                .toCompletionStage().toCompletableFuture().get(TIMEOUT_S, TimeUnit.SECONDS)
+                .actualPort();
+    }
+
+    @After
+    public void testsCleanup() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(TIMEOUT_S, TimeUnit.SECONDS);
+        encMod.close();
+    }
+
+    /**
+     * A client request with a negative size closes the client and broker
+     * connections.
+     */
+    @Test
+    public void negativeRequestSizeTest() throws Exception {
+        assertConnectionClosed(Buffer.buffer().appendInt(-5).appendInt(0), null);
+    }
+
+    /**
+     * A client request exceeding the maximum request size closes the client
+     * and broker connections, without waiting for the request.
+     */
+    @Test
+    public void oversizedRequestTest() throws Exception {
+        assertConnectionClosed(Buffer.buffer().appendInt(1025).appendInt(0), null);
+    }
+
+    /**
+     * A broker response with a negative size closes the client and broker
+     * connections.
+     */
+    @Test
+    public void negativeResponseSizeTest() throws Exception {
+        assertConnectionClosed(null, Buffer.buffer().appendInt(Integer.MIN_VALUE));
+    }
+
+    private void assertConnectionClosed(Buffer request, Buffer response) throws Exception {
+        CompletableFuture<Void> clientSideClosed = new CompletableFuture<>();
+        NetSocket client = vertx.createNetClient()
+                .connect(proxyPort, "localhost")
+                .toCompletionStage().toCompletableFuture().get(TIMEOUT_S, TimeUnit.SECONDS);
+        client.closeHandler(v -> clientSideClosed.complete(null));
+        NetSocket broker = brokerSide.get(TIMEOUT_S, TimeUnit.SECONDS);
+        if (request != null) {
+            client.write(request);
+        }
+        if (response != null) {
+            broker.write(response);
+        }
+        clientSideClosed.get(TIMEOUT_S, TimeUnit.SECONDS);
+        brokerSideClosed.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+}
@@ -2,10 +2,12 @@ package io.strimzi.kafka.proxy.vertx.msg;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.kafka.common.network.InvalidReceiveException;
 import org.junit.Test;
 
 import io.vertx.core.buffer.Buffer;
@@ -121,4 +123,66 @@ public class MessageAccumulatorTest {
                 actualMessages.get(0).getBytes());
         assertEquals(Collections.EMPTY_LIST, acc.take()); // no more messages
     }
+
+    @Test
+    public void sizeSpanningPieces() {
+        MessageAccumulator acc = new MessageAccumulator();
+        acc.append(Buffer.buffer(new byte[] { 0x00, 0x00 }));
+        acc.append(Buffer.buffer(new byte[] { 0x00 }));
+        assertEquals(Collections.EMPTY_LIST, acc.take());
+
+        acc.append(Buffer.buffer(new byte[] { 0x02, 0x03, 0x04, 0x00 }));
+        List<Buffer> actualMessages = acc.take();
+
+        assertEquals(1, actualMessages.size());
+        assertArrayEquals(new byte[] { 0x00, 0x00, 0x00, 0x02, 0x03, 0x04 },
+                actualMessages.get(0).getBytes());
+
+        acc.append(Buffer.buffer(new byte[] { 0x00, 0x00, 0x01, 0x05 }));
+        actualMessages = acc.take();
+        assertArrayEquals(new byte[] { 0x00, 0x00, 0x00, 0x01, 0x05 },
+                actualMessages.get(0).getBytes());
+    }
+
+    // A large message arriving in many pieces is reassembled once complete,
+    // and a message within one piece is returned as a slice of it.
+    @Test
+    public void largeMessageInManyPieces() {
+        int size = 100_000;
+        Buffer msg = Buffer.buffer().appendInt(size);
+        for (int i = 0; i < size; i++) {
+            msg.appendByte((byte) i);
+        }
+        msg.appendBytes(new byte[] { 0x00, 0x00, 0x00, 0x01, 0x07 });
+        MessageAccumulator acc = new MessageAccumulator();
+        for (int pos = 0; pos < msg.length(); pos += 1000) {
+            assertEquals(Collections.EMPTY_LIST, acc.take());
+            acc.append(msg.getBuffer(pos, Math.min(pos + 1000, msg.length())));
+        }
+
+        List<Buffer> actualMessages = acc.take();
+
+        assertEquals(2, actualMessages.size());
+        assertEquals(msg.getBuffer(0, size + 4), actualMessages.get(0));
+        assertArrayEquals(new byte[] { 0x00, 0x00, 0x00, 0x01, 0x07 },
+                actualMessages.get(1).getBytes());
+        assertEquals(Collections.EMPTY_LIST, acc.take());
+    }
+
+    @Test
+    public void invalidSizesAreRejected() {
+        for (int size : new int[] { -1, 11 }) {
+            MessageAccumulator acc = new MessageAccumulator(10);
+            acc.append(Buffer.buffer(new byte[] { 0x00, 0x00, 0x00, 0x01, 0x02 }));
+            acc.append(Buffer.buffer().appendInt(size));
+            try {
+                acc.take();
+                fail("Invalid message size accepted: " + size);
+            } catch (InvalidReceiveException e) {
+                // expected
+            }
+            acc.clear();
+            assertEquals(Collections.EMPTY_LIST, acc.take());
+        }
+    }
 }